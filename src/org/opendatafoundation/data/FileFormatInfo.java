@@ -42,7 +42,7 @@ public class FileFormatInfo {
 
 	/** Export format */
 	public static enum Format {
-		ASCII, SPSS, SAS, STATA
+		ASCII, SPSS, SAS, STATA, ARROW
 	};
 
 	/** Ascii format */
@@ -50,11 +50,24 @@ public class FileFormatInfo {
 		FIXED, DELIMITED, CSV
 	};
 
+	/** Output of a value when exporting value labels */
+	public static enum LabelOutput {
+		LABEL, CODE, EMPTY
+	};
+
 	public Compatibility compatibility = Compatibility.NATIVE;
 	public Format format = Format.ASCII;
 	public ASCIIFormat asciiFormat = ASCIIFormat.FIXED;
 	public char asciiDelimiter = '\t';
 	public boolean namesOnFirstLine = true;
+	public boolean valueLabels = false; // < Export the value labels instead of the codes of the variables with value labels
+	public LabelOutput unlabeledValues = LabelOutput.CODE; // < Output of values without a label when exporting value labels (CODE or EMPTY)
+	public LabelOutput missingValues = LabelOutput.LABEL; // < Output of missing values when exporting value labels (the LABEL if any, else the code, the CODE or EMPTY)
+	public boolean gzip = false; // < Compress the exported file with gzip, on several threads
+	public int compressionThreads = 0; // < The number of gzip compression threads (0 for one thread per available processor)
+	public int stataRelease = 118; // < The .dta format written by STATA exports (118, or 117 for Stata 13)
+	public int batchSize = 0; // < The number of rows of the record batches of ARROW exports (0 for batches of about 64 MB)
+	public boolean arrowStream = false; // < Write ARROW exports in the IPC streaming format instead of the random access file format
 
 	public FileFormatInfo() {
 	}
@@ -73,6 +86,8 @@ public class FileFormatInfo {
 			 */
 			if (compatibility != Compatibility.GENERIC)
 				str += "_" + compatibility.toString();
+			if (valueLabels)
+				str += "_LABELS";
 		}
 		return (str);
 	}
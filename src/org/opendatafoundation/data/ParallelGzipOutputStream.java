@@ -0,0 +1,204 @@
+package org.opendatafoundation.data;
+
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An output stream compressing its data with gzip on several threads. The data is cut into blocks that are compressed independently, each block into a complete gzip member, and the members are written in order. A sequence of members is a valid gzip stream (RFC 1952) that gunzip and GZIPInputStream decompress as a whole.
+ * <p>
+ * The blocks are compressed by a dedicated thread pool. The number of blocks being compressed is bounded, so a writer faster than the compression waits for the oldest block, and the block buffers are recycled.
+ * 
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	final OutputStream out;
+	final ExecutorService executor;
+	final int blockSize;
+	final int level;
+	final int maxPending; // < the maximum number of blocks being compressed
+	final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>(); // < the members being compressed, in output order
+	final LinkedList<byte[]> pendingBlocks = new LinkedList<byte[]>(); // < the input block of each pending member
+	final LinkedList<byte[]> freeBlocks = new LinkedList<byte[]>();
+	byte[] block; // < the block being filled
+	int blockLength;
+	boolean empty = true; // < no member has been written
+	boolean closed;
+
+	/**
+	 * Creates a stream compressing with one thread per available processor
+	 * 
+	 * @param out
+	 *            the destination of the gzip stream
+	 */
+	public ParallelGzipOutputStream(OutputStream out) {
+		this(out, 0, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param out
+	 *            the destination of the gzip stream
+	 * @param threadCount
+	 *            the number of compression threads, or 0 for one thread per available processor
+	 * @param blockSize
+	 *            the size of the blocks compressed independently
+	 * @param level
+	 *            the compression level (0-9, or Deflater.DEFAULT_COMPRESSION)
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int threadCount, int blockSize, int level) {
+		if (threadCount <= 0)
+			threadCount = Runtime.getRuntime().availableProcessors();
+		this.out = out;
+		this.blockSize = Math.max(1024, blockSize);
+		this.level = level;
+		maxPending = 2 * threadCount;
+		executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "gzip-compressor");
+				thread.setDaemon(true);
+				return (thread);
+			}
+		});
+		block = new byte[this.blockSize];
+	}
+
+	public void write(int b) throws IOException {
+		if (blockLength == blockSize)
+			submitBlock();
+		block[blockLength++] = (byte) b;
+	}
+
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (blockLength == blockSize)
+				submitBlock();
+			int count = Math.min(length, blockSize - blockLength);
+			System.arraycopy(bytes, offset, block, blockLength, count);
+			blockLength += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Compresses the data written so far and writes it to the destination. Each flush ends a gzip member, so frequent flushes reduce the compression ratio.
+	 */
+	public void flush() throws IOException {
+		if (blockLength > 0)
+			submitBlock();
+		while (!pending.isEmpty())
+			writeMember();
+		out.flush();
+	}
+
+	/**
+	 * Writes the remaining data, closes the destination and stops the compression threads
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (blockLength > 0 || empty)
+				submitBlock(); // an empty stream is still a gzip member
+			while (!pending.isEmpty())
+				writeMember();
+		} finally {
+			executor.shutdown();
+			out.close();
+		}
+	}
+
+	/**
+	 * Submits the current block for compression, waiting for the oldest block if too many blocks are being compressed
+	 */
+	private void submitBlock() throws IOException {
+		if (closed && executor.isShutdown())
+			throw new IOException("Stream closed");
+		while (pending.size() >= maxPending)
+			writeMember();
+		final byte[] data = block;
+		final int length = blockLength;
+		pending.add(executor.submit(new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+				GZIPOutputStream gzip = new GZIPOutputStream(member, 65536) {
+					{
+						def.setLevel(level);
+					}
+				};
+				gzip.write(data, 0, length);
+				gzip.close();
+				return (member.toByteArray());
+			}
+		}));
+		pendingBlocks.add(data);
+		empty = false;
+		block = freeBlocks.isEmpty() ? new byte[blockSize] : freeBlocks.removeFirst();
+		blockLength = 0;
+	}
+
+	/**
+	 * Waits for the oldest member and writes it
+	 */
+	private void writeMember() throws IOException {
+		Future<byte[]> member = pending.removeFirst();
+		freeBlocks.add(pendingBlocks.removeFirst());
+		try {
+			out.write(member.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Compression interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			IOException failure = new IOException("Compression failed: " + e.getCause());
+			failure.initCause(e.getCause());
+			throw failure;
+		}
+	}
+}
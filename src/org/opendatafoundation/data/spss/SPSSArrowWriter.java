@@ -0,0 +1,700 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatafoundation.data.FileFormatInfo;
+
+/**
+ * Writes the data of a SPSS file in the Apache Arrow IPC format (the random access file format, or the streaming format), readable by pyarrow, pandas, R arrow or polars without parsing; the file format can be memory mapped. A first pass over the data chooses the type of each column and collects the string dictionaries, the records are then decoded into column buffers and written as record batches.
+ * <p>
+ * Numeric variables become int8, int16 or int32 columns when all their values are integers in range, float64 columns otherwise. Dates become date32 columns (timestamp[ms] when they have a time part), date/times timestamp[ms] columns, times stay float64 seconds. System missing values are nulls, user missing values are kept and listed in the field metadata. Strings are dictionary encoded utf8, or plain utf8 when they have too many distinct values. The variable label, the SPSS format, the value labels and the missing values are written in the metadata of each field ("spss.label", "spss.format", "spss.value_labels" and "spss.missing", the last two as JSON).
+ * 
+ */
+public class SPSSArrowWriter {
+	/* Column kinds */
+	static final int KIND_DOUBLE = 0;
+	static final int KIND_INT = 1;
+	static final int KIND_DATE = 2; // < date32 (days since 1 Jan 1970)
+	static final int KIND_TIMESTAMP = 3; // < timestamp[ms] (milliseconds since 1 Jan 1970)
+	static final int KIND_DICTIONARY = 4; // < utf8 dictionary, int32 indices
+	static final int KIND_UTF8 = 5;
+
+	/* Flatbuffer enumerations of the Arrow schema */
+	static final int METADATA_V5 = 4;
+	static final int HEADER_SCHEMA = 1;
+	static final int HEADER_DICTIONARY_BATCH = 2;
+	static final int HEADER_RECORD_BATCH = 3;
+	static final int TYPE_INT = 2;
+	static final int TYPE_FLOATING_POINT = 3;
+	static final int TYPE_UTF8 = 5;
+	static final int TYPE_DATE = 8;
+	static final int TYPE_TIMESTAMP = 10;
+
+	static final int MAX_DICTIONARY_SIZE = 1 << 16; // < the number of distinct values above which strings are not dictionary encoded
+	static final int MAX_DICTIONARY_BYTES = 1 << 24; // < the size of the distinct values above which strings are not dictionary encoded
+	static final int BATCH_BYTES = 1 << 26; // < the approximate size of the record batches when their number of rows is not set
+	static final int MAX_BATCH_ROWS = 1 << 16;
+	static final byte[] MAGIC = { 'A', 'R', 'R', 'O', 'W', '1', 0, 0 };
+	static final byte[] PADDING = new byte[8];
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	SPSSFile file;
+	boolean stream; // < write the streaming format instead of the file format
+	int batchRows; // < the number of rows of the record batches, 0 until the data is analyzed
+	int caseCount;
+	long written; // < the number of bytes written
+
+	// one entry per variable
+	SPSSVariable[] columns;
+	int[] kind;
+	int[] valueWidth; // < the size of a value in the data buffer of the column
+	int[] conversion; // < the date conversion of the numeric variables (see SPSSStataWriter)
+	SPSSByteArrayMap<Integer>[] dictionaries; // < the index of each distinct value of the dictionary encoded strings
+	List<byte[]>[] dictionaryValues;
+	int[] maxLength; // < the length of the longest UTF-8 value of the string variables
+
+	// string conversion
+	boolean sameCharset; // < the strings of the SPSS file are already in UTF-8
+	int convertedLength;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            the SPSS file, with its metadata loaded
+	 * @param dataFormat
+	 *            the export format (the batchSize and arrowStream options select the size of the record batches and the streaming format)
+	 * @throws SPSSFileException
+	 */
+	public SPSSArrowWriter(SPSSFile file, FileFormatInfo dataFormat) throws SPSSFileException {
+		if (dataFormat.batchSize < 0)
+			throw new SPSSFileException("Invalid batch size: " + dataFormat.batchSize);
+		this.file = file;
+		stream = dataFormat.arrowStream;
+		batchRows = dataFormat.batchSize;
+		columns = file.decodePlan.columns;
+		caseCount = file.getRecordCount();
+		if (caseCount < 0)
+			caseCount = 0;
+		int n = columns.length;
+		kind = new int[n];
+		valueWidth = new int[n];
+		conversion = new int[n];
+		maxLength = new int[n];
+		dictionaries = newDictionaries(n);
+		dictionaryValues = newDictionaryValues(n);
+		for (int i = 0; i < n; i++) {
+			if (columns[i].type == SPSSVariable.VariableType.NUMERIC)
+				conversion[i] = SPSSStataWriter.getConversion(columns[i].variableRecord.writeFormatType);
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static SPSSByteArrayMap<Integer>[] newDictionaries(int n) {
+		return (new SPSSByteArrayMap[n]);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static List<byte[]>[] newDictionaryValues(int n) {
+		return (new List[n]);
+	}
+
+	/**
+	 * Writes the Arrow file or stream
+	 * 
+	 * @param out
+	 *            the destination of the file (not closed)
+	 * @param cancel
+	 *            a token stopping the export when cancelled, or null
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void write(OutputStream out, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		analyze(cancel);
+		written = 0;
+		if (!stream)
+			write(out, MAGIC, MAGIC.length);
+
+		SPSSFlatBuffer.Table schema = getSchema();
+		writeMessage(out, HEADER_SCHEMA, schema, 0, new byte[0][], new int[0]);
+		List<long[]> dictionaryBlocks = new ArrayList<long[]>();
+		for (int i = 0; i < columns.length; i++) {
+			if (kind[i] == KIND_DICTIONARY)
+				dictionaryBlocks.add(writeDictionary(out, i));
+		}
+		List<long[]> batchBlocks = writeBatches(out, cancel);
+
+		// end of stream marker
+		writeInt(out, 0xFFFFFFFF);
+		writeInt(out, 0);
+		if (stream)
+			return;
+
+		SPSSFlatBuffer.Table footer = new SPSSFlatBuffer.Table();
+		footer.addShort(0, METADATA_V5);
+		footer.addOffset(1, schema);
+		footer.addOffset(2, getBlocks(dictionaryBlocks));
+		footer.addOffset(3, getBlocks(batchBlocks));
+		byte[] bytes = SPSSFlatBuffer.serialize(footer);
+		write(out, bytes, bytes.length);
+		writeInt(out, bytes.length);
+		write(out, MAGIC, 6);
+	}
+
+	/**
+	 * Reads the data once to choose the type of each column and build the string dictionaries
+	 * 
+	 * @param cancel
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	void analyze(SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		int n = columns.length;
+		boolean[] seen = new boolean[n];
+		boolean[] integral = new boolean[n];
+		double[] min = new double[n];
+		double[] max = new double[n];
+		long[] dictionaryBytes = new long[n];
+		Arrays.fill(integral, true);
+		for (int i = 0; i < n; i++) {
+			if (columns[i].type != SPSSVariable.VariableType.NUMERIC) {
+				dictionaries[i] = new SPSSByteArrayMap<Integer>();
+				dictionaryValues[i] = new ArrayList<byte[]>();
+			}
+		}
+
+		SPSSDataRecord record = new SPSSDataRecord(file);
+		record.setPosition(file.dataStartPosition);
+		sameCharset = UTF8.equals(record.stringDecoder.getCharset());
+		for (int obs = 1; obs <= caseCount; obs++) {
+			if (cancel != null && cancel.isCancelled())
+				throw new SPSSFileException("Export cancelled");
+			record.readRecord();
+			record.trimStrings();
+			for (int i = 0; i < n; i++) {
+				if (columns[i].type == SPSSVariable.VariableType.NUMERIC) {
+					double value = record.numericValues[i];
+					if (Double.isNaN(value))
+						continue;
+					if (conversion[i] == SPSSStataWriter.AS_DAYS && value % 86400 != 0)
+						conversion[i] = SPSSStataWriter.AS_MILLISECONDS; // the dates have a time part
+					if (!seen[i]) {
+						min[i] = value;
+						max[i] = value;
+						seen[i] = true;
+					} else if (value < min[i])
+						min[i] = value;
+					else if (value > max[i])
+						max[i] = value;
+					if (integral[i] && value != Math.rint(value))
+						integral[i] = false;
+				} else {
+					byte[] value = convertString(record, i);
+					if (convertedLength > maxLength[i])
+						maxLength[i] = convertedLength;
+					SPSSByteArrayMap<Integer> dictionary = dictionaries[i];
+					if (dictionary == null || dictionary.get(value, 0, convertedLength) != null)
+						continue;
+					dictionaryBytes[i] += convertedLength;
+					if (dictionary.size() == MAX_DICTIONARY_SIZE || dictionaryBytes[i] > MAX_DICTIONARY_BYTES) {
+						dictionaries[i] = null; // too many distinct values
+						dictionaryValues[i] = null;
+						continue;
+					}
+					byte[] key = Arrays.copyOf(value, convertedLength);
+					dictionary.put(key, dictionary.size());
+					dictionaryValues[i].add(key);
+				}
+			}
+		}
+
+		// choose the column types
+		long rowBytes = 0;
+		for (int i = 0; i < n; i++) {
+			if (columns[i].type != SPSSVariable.VariableType.NUMERIC) {
+				kind[i] = dictionaries[i] != null ? KIND_DICTIONARY : KIND_UTF8;
+				valueWidth[i] = 4;
+				rowBytes += 4 + (kind[i] == KIND_UTF8 ? maxLength[i] : 0);
+				continue;
+			}
+			if (conversion[i] == SPSSStataWriter.AS_DAYS) {
+				kind[i] = KIND_DATE;
+				valueWidth[i] = 4;
+			} else if (conversion[i] == SPSSStataWriter.AS_MILLISECONDS) {
+				kind[i] = KIND_TIMESTAMP;
+				valueWidth[i] = 8;
+			} else if (conversion[i] == SPSSStataWriter.AS_NUMBER && seen[i] && integral[i] && min[i] >= Integer.MIN_VALUE && max[i] <= Integer.MAX_VALUE) {
+				kind[i] = KIND_INT;
+				if (min[i] >= Byte.MIN_VALUE && max[i] <= Byte.MAX_VALUE)
+					valueWidth[i] = 1;
+				else if (min[i] >= Short.MIN_VALUE && max[i] <= Short.MAX_VALUE)
+					valueWidth[i] = 2;
+				else
+					valueWidth[i] = 4;
+			} else {
+				kind[i] = KIND_DOUBLE;
+				valueWidth[i] = 8;
+			}
+			rowBytes += valueWidth[i];
+		}
+		if (batchRows == 0)
+			batchRows = (int) Math.max(1, Math.min(MAX_BATCH_ROWS, BATCH_BYTES / Math.max(1, rowBytes)));
+	}
+
+	/**
+	 * Builds the schema: one nullable field per variable, with the SPSS metadata
+	 * 
+	 * @return the Schema table
+	 * @throws SPSSFileException
+	 */
+	SPSSFlatBuffer.Table getSchema() throws SPSSFileException {
+		SPSSFlatBuffer.Vector fields = new SPSSFlatBuffer.Vector();
+		for (int i = 0; i < columns.length; i++) {
+			SPSSVariable var = columns[i];
+			SPSSFlatBuffer.Table field = new SPSSFlatBuffer.Table();
+			field.addString(0, var.getName());
+			field.addBool(1, true);
+			switch (kind[i]) {
+			case KIND_DOUBLE:
+				field.addUnion(2, TYPE_FLOATING_POINT, new SPSSFlatBuffer.Table().addShort(0, 2)); // DOUBLE
+				break;
+			case KIND_INT:
+				field.addUnion(2, TYPE_INT, getIntType(8 * valueWidth[i]));
+				break;
+			case KIND_DATE:
+				field.addUnion(2, TYPE_DATE, new SPSSFlatBuffer.Table().addShort(0, 0)); // DAY
+				break;
+			case KIND_TIMESTAMP:
+				field.addUnion(2, TYPE_TIMESTAMP, new SPSSFlatBuffer.Table().addShort(0, 1)); // MILLISECOND, no time zone
+				break;
+			default:
+				field.addUnion(2, TYPE_UTF8, new SPSSFlatBuffer.Table());
+			}
+			if (kind[i] == KIND_DICTIONARY) {
+				SPSSFlatBuffer.Table encoding = new SPSSFlatBuffer.Table();
+				encoding.addLong(0, i); // the dictionary id
+				encoding.addOffset(1, getIntType(32));
+				field.addOffset(4, encoding);
+			}
+			field.addOffset(5, new SPSSFlatBuffer.Vector());
+
+			SPSSFlatBuffer.Vector metadata = new SPSSFlatBuffer.Vector();
+			String label = var.getLabel();
+			if (label != null && label.length() > 0)
+				metadata.add(getKeyValue("spss.label", label));
+			metadata.add(getKeyValue("spss.format", var.getSPSSFormat()));
+			String valueLabels = getValueLabels(var);
+			if (valueLabels != null)
+				metadata.add(getKeyValue("spss.value_labels", valueLabels));
+			String missing = getMissingValues(var);
+			if (missing != null)
+				metadata.add(getKeyValue("spss.missing", missing));
+			field.addOffset(6, metadata);
+			fields.add(field);
+		}
+
+		SPSSFlatBuffer.Table schema = new SPSSFlatBuffer.Table();
+		schema.addShort(0, 0); // little-endian
+		schema.addOffset(1, fields);
+		String fileLabel = file.infoRecord.fileLabel == null ? "" : file.infoRecord.fileLabel.trim();
+		if (fileLabel.length() > 0)
+			schema.addOffset(2, new SPSSFlatBuffer.Vector().add(getKeyValue("spss.file_label", fileLabel)));
+		return (schema);
+	}
+
+	/**
+	 * Gets the value labels of a variable as a JSON object, keyed on the values (numbers without their SPSS format)
+	 * 
+	 * @param var
+	 * @return the JSON object, or null if the variable has no value labels
+	 * @throws SPSSFileException
+	 */
+	static String getValueLabels(SPSSVariable var) throws SPSSFileException {
+		if (!var.hasValueLabels())
+			return (null);
+		StringBuilder json = new StringBuilder("{");
+		Iterator<Map.Entry<String, SPSSVariableCategory>> it = var.getCategoryMap().entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, SPSSVariableCategory> entry = it.next();
+			SPSSVariableCategory cat = entry.getValue();
+			if (cat.label == null || cat.label.length() == 0)
+				continue;
+			if (json.length() > 1)
+				json.append(',');
+			String value = var.type == SPSSVariable.VariableType.NUMERIC ? jsonNumber(cat.value) : entry.getKey();
+			json.append(SPSSUtils.jsonString(value)).append(':').append(SPSSUtils.jsonString(cat.label));
+		}
+		if (json.length() == 1)
+			return (null);
+		return (json.append('}').toString());
+	}
+
+	/**
+	 * Gets the user missing values of a variable as a JSON object: {"values":[...]} for discrete values, {"range":[low,high]} for a range, with the optional discrete value of the range in "values"
+	 * 
+	 * @param var
+	 * @return the JSON object, or null if the variable has no user missing values
+	 */
+	static String getMissingValues(SPSSVariable var) {
+		int code = var.variableRecord.missingValueFormatCode;
+		if (code == 0)
+			return (null);
+		String[] values = new String[Math.abs(code)];
+		for (int i = 0; i < values.length; i++) {
+			byte[] bytes = var.variableRecord.missingValue[i];
+			if (var.type == SPSSVariable.VariableType.NUMERIC)
+				values[i] = jsonNumber(((SPSSNumericVariable) var).getMissingValues()[i]);
+			else
+				values[i] = SPSSUtils.jsonString((var.file.charset == null ? SPSSUtils.byte8ToString(bytes) : SPSSUtils.byte8ToString(bytes, var.file.charset)).trim());
+		}
+		StringBuilder json = new StringBuilder("{");
+		if (code < 0) {
+			json.append("\"range\":[").append(values[0]).append(',').append(values[1]).append(']');
+			if (code == -3)
+				json.append(",\"values\":[").append(values[2]).append(']');
+		} else {
+			json.append("\"values\":[");
+			for (int i = 0; i < values.length; i++)
+				json.append(i > 0 ? "," : "").append(values[i]);
+			json.append(']');
+		}
+		return (json.append('}').toString());
+	}
+
+	/**
+	 * Writes the dictionary batch of a string variable
+	 * 
+	 * @param out
+	 * @param column
+	 * @return the block of the message
+	 * @throws IOException
+	 */
+	long[] writeDictionary(OutputStream out, int column) throws IOException {
+		List<byte[]> values = dictionaryValues[column];
+		int count = values.size();
+		ByteBuffer offsets = ByteBuffer.allocate(4 * (count + 1)).order(ByteOrder.LITTLE_ENDIAN);
+		int length = 0;
+		offsets.putInt(0);
+		for (int i = 0; i < count; i++) {
+			length += values.get(i).length;
+			offsets.putInt(length);
+		}
+		byte[] data = new byte[length];
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			byte[] value = values.get(i);
+			System.arraycopy(value, 0, data, position, value.length);
+			position += value.length;
+		}
+		byte[][] buffers = { null, offsets.array(), data };
+		int[] lengths = { 0, offsets.capacity(), length };
+		SPSSFlatBuffer.Table batch = getRecordBatch(count, new long[] { count, 0 }, lengths);
+		SPSSFlatBuffer.Table dictionary = new SPSSFlatBuffer.Table();
+		dictionary.addLong(0, column);
+		dictionary.addOffset(1, batch);
+		return (writeMessage(out, HEADER_DICTIONARY_BATCH, dictionary, getBodyLength(lengths), buffers, lengths));
+	}
+
+	/**
+	 * Decodes the records into column buffers and writes them as record batches
+	 * 
+	 * @param out
+	 * @param cancel
+	 * @return the blocks of the record batch messages
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	List<long[]> writeBatches(OutputStream out, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		final int n = columns.length;
+		List<long[]> blocks = new ArrayList<long[]>();
+		if (caseCount == 0)
+			return (blocks);
+		int rowsPerBatch = Math.min(batchRows, caseCount);
+
+		// buffers of each column: validity bitmap, values (or offsets), string data
+		byte[][] validity = new byte[n][];
+		ByteBuffer[] values = new ByteBuffer[n];
+		byte[][] data = new byte[n][];
+		int[] dataLength = new int[n];
+		long[] nullCount = new long[n];
+		for (int i = 0; i < n; i++) {
+			validity[i] = new byte[(rowsPerBatch + 7) / 8];
+			values[i] = ByteBuffer.allocate(valueWidth[i] * (kind[i] == KIND_UTF8 ? rowsPerBatch + 1 : rowsPerBatch)).order(ByteOrder.LITTLE_ENDIAN);
+			if (kind[i] == KIND_UTF8)
+				data[i] = new byte[Math.max(64, Math.min(rowsPerBatch * maxLength[i], 1 << 20))];
+		}
+
+		SPSSDataRecord record = new SPSSDataRecord(file);
+		record.setPosition(file.dataStartPosition);
+		int rows = 0;
+		for (int obs = 1; obs <= caseCount; obs++) {
+			if (cancel != null && cancel.isCancelled())
+				throw new SPSSFileException("Export cancelled after " + (obs - 1) + " records");
+			record.readRecord();
+			record.trimStrings();
+			if (rows == 0) {
+				for (int i = 0; i < n; i++) {
+					Arrays.fill(validity[i], (byte) 0);
+					nullCount[i] = 0;
+					dataLength[i] = 0;
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				ByteBuffer buffer = values[i];
+				if (kind[i] == KIND_DICTIONARY) {
+					byte[] value = convertString(record, i);
+					buffer.putInt(4 * rows, dictionaries[i].get(value, 0, convertedLength));
+					continue;
+				} else if (kind[i] == KIND_UTF8) {
+					byte[] value = convertString(record, i);
+					if (dataLength[i] > Integer.MAX_VALUE - 8 - convertedLength)
+						throw new SPSSFileException("The strings of variable " + columns[i].getName() + " do not fit in a record batch, use a smaller batch size");
+					if (dataLength[i] + convertedLength > data[i].length)
+						data[i] = Arrays.copyOf(data[i], (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * data[i].length, dataLength[i] + convertedLength)));
+					System.arraycopy(value, 0, data[i], dataLength[i], convertedLength);
+					dataLength[i] += convertedLength;
+					buffer.putInt(4 * (rows + 1), dataLength[i]);
+					continue;
+				}
+				double value = record.numericValues[i];
+				if (Double.isNaN(value)) {
+					nullCount[i]++; // the value is cleared
+					switch (valueWidth[i]) {
+					case 1:
+						buffer.put(rows, (byte) 0);
+						break;
+					case 2:
+						buffer.putShort(2 * rows, (short) 0);
+						break;
+					case 4:
+						buffer.putInt(4 * rows, 0);
+						break;
+					default:
+						buffer.putLong(8 * rows, 0);
+					}
+					continue;
+				}
+				validity[i][rows >> 3] |= 1 << (rows & 7);
+				switch (kind[i]) {
+				case KIND_INT:
+					if (valueWidth[i] == 1)
+						buffer.put(rows, (byte) value);
+					else if (valueWidth[i] == 2)
+						buffer.putShort(2 * rows, (short) value);
+					else
+						buffer.putInt(4 * rows, (int) value);
+					break;
+				case KIND_DATE:
+					buffer.putInt(4 * rows, (int) Math.floor((value - SPSSUtils.EPOCH_1970) / 86400));
+					break;
+				case KIND_TIMESTAMP:
+					buffer.putLong(8 * rows, Math.round((value - SPSSUtils.EPOCH_1970) * 1000));
+					break;
+				default:
+					buffer.putDouble(8 * rows, value);
+				}
+			}
+			if (++rows == rowsPerBatch || obs == caseCount) {
+				blocks.add(writeBatch(out, rows, validity, values, data, dataLength, nullCount));
+				rows = 0;
+			}
+		}
+		return (blocks);
+	}
+
+	/**
+	 * Writes a record batch
+	 * 
+	 * @return the block of the message
+	 * @throws IOException
+	 */
+	long[] writeBatch(OutputStream out, int rows, byte[][] validity, ByteBuffer[] values, byte[][] data, int[] dataLength, long[] nullCount) throws IOException {
+		final int n = columns.length;
+		long[] nodes = new long[2 * n];
+		List<byte[]> buffers = new ArrayList<byte[]>();
+		int[] lengths = new int[3 * n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			nodes[2 * i] = rows;
+			nodes[2 * i + 1] = nullCount[i];
+			buffers.add(validity[i]);
+			lengths[count++] = nullCount[i] > 0 ? (rows + 7) / 8 : 0; // no bitmap when all the values are valid
+			buffers.add(values[i].array());
+			lengths[count++] = valueWidth[i] * (kind[i] == KIND_UTF8 ? rows + 1 : rows);
+			if (kind[i] == KIND_UTF8) {
+				buffers.add(data[i]);
+				lengths[count++] = dataLength[i];
+			}
+		}
+		lengths = Arrays.copyOf(lengths, count);
+		return (writeMessage(out, HEADER_RECORD_BATCH, getRecordBatch(rows, nodes, lengths), getBodyLength(lengths), buffers.toArray(new byte[count][]), lengths));
+	}
+
+	/**
+	 * Builds a RecordBatch table
+	 * 
+	 * @param rows
+	 * @param nodes
+	 *            the length and null count of each field
+	 * @param lengths
+	 *            the length of each buffer of the body
+	 * @return the table
+	 */
+	static SPSSFlatBuffer.Table getRecordBatch(int rows, long[] nodes, int[] lengths) {
+		ByteBuffer nodeStructs = ByteBuffer.allocate(8 * nodes.length).order(ByteOrder.LITTLE_ENDIAN);
+		nodeStructs.asLongBuffer().put(nodes);
+		ByteBuffer bufferStructs = ByteBuffer.allocate(16 * lengths.length).order(ByteOrder.LITTLE_ENDIAN);
+		long offset = 0;
+		for (int i = 0; i < lengths.length; i++) {
+			bufferStructs.putLong(offset);
+			bufferStructs.putLong(lengths[i]);
+			offset += pad(lengths[i]);
+		}
+		SPSSFlatBuffer.Table batch = new SPSSFlatBuffer.Table();
+		batch.addLong(0, rows);
+		batch.addOffset(1, new SPSSFlatBuffer.StructVector(nodeStructs.array(), nodes.length / 2));
+		batch.addOffset(2, new SPSSFlatBuffer.StructVector(bufferStructs.array(), lengths.length));
+		return (batch);
+	}
+
+	/**
+	 * Writes an encapsulated message: the continuation marker, the length of the metadata, the Message flatbuffer and the body, each buffer padded to 8 bytes
+	 * 
+	 * @return the block of the message: its offset, the length of its metadata and the length of its body
+	 * @throws IOException
+	 */
+	long[] writeMessage(OutputStream out, int headerType, SPSSFlatBuffer.Table header, long bodyLength, byte[][] buffers, int[] lengths) throws IOException {
+		SPSSFlatBuffer.Table message = new SPSSFlatBuffer.Table();
+		message.addShort(0, METADATA_V5);
+		message.addUnion(1, headerType, header);
+		message.addLong(3, bodyLength);
+		byte[] metadata = SPSSFlatBuffer.serialize(message);
+		long[] block = { written, 8 + metadata.length, bodyLength };
+		writeInt(out, 0xFFFFFFFF);
+		writeInt(out, metadata.length);
+		write(out, metadata, metadata.length);
+		for (int i = 0; i < buffers.length; i++) {
+			if (lengths[i] == 0)
+				continue;
+			write(out, buffers[i], lengths[i]);
+			write(out, PADDING, pad(lengths[i]) - lengths[i]);
+		}
+		return (block);
+	}
+
+	/**
+	 * Builds a vector of Block structs
+	 */
+	static SPSSFlatBuffer.StructVector getBlocks(List<long[]> blocks) {
+		ByteBuffer structs = ByteBuffer.allocate(24 * blocks.size()).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < blocks.size(); i++) {
+			long[] block = blocks.get(i);
+			structs.putLong(block[0]);
+			structs.putInt((int) block[1]);
+			structs.putInt(0); // padding
+			structs.putLong(block[2]);
+		}
+		return (new SPSSFlatBuffer.StructVector(structs.array(), blocks.size()));
+	}
+
+	static SPSSFlatBuffer.Table getIntType(int bitWidth) {
+		return (new SPSSFlatBuffer.Table().addInt(0, bitWidth).addBool(1, true));
+	}
+
+	static SPSSFlatBuffer.Table getKeyValue(String key, String value) {
+		return (new SPSSFlatBuffer.Table().addString(0, key).addString(1, value));
+	}
+
+	static long getBodyLength(int[] lengths) {
+		long length = 0;
+		for (int i = 0; i < lengths.length; i++)
+			length += pad(lengths[i]);
+		return (length);
+	}
+
+	static int pad(int length) {
+		return ((length + 7) & ~7);
+	}
+
+	/**
+	 * Formats a number as JSON (integers without a decimal part)
+	 */
+	static String jsonNumber(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return ("null");
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return (Long.toString((long) value));
+		return (Double.toString(value));
+	}
+
+	/**
+	 * Gets the UTF-8 bytes of the value of a string variable in the current record
+	 * 
+	 * @param record
+	 * @param column
+	 * @return the bytes, the length being in convertedLength
+	 */
+	byte[] convertString(SPSSDataRecord record, int column) {
+		byte[] bytes = record.stringValues[column];
+		int length = record.stringLengths[column];
+		if (sameCharset || (record.stringDecoder.isAsciiCompatible && SPSSUtils.isAscii(bytes, length))) {
+			convertedLength = length;
+			return (bytes);
+		}
+		byte[] converted = record.stringDecoder.decode(bytes, 0, length).getBytes(UTF8);
+		convertedLength = converted.length;
+		return (converted);
+	}
+
+	void write(OutputStream out, byte[] bytes, int length) throws IOException {
+		out.write(bytes, 0, length);
+		written += length;
+	}
+
+	void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+		written += 4;
+	}
+}
@@ -0,0 +1,161 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map keyed on the content of byte arrays. Lookups can be done on a slice of a larger buffer without copying it or decoding it to a String.
+ * <p>
+ * The map only grows: entries cannot be removed.
+ * 
+ * @param <V>
+ *            the value type
+ */
+public class SPSSByteArrayMap<V> {
+	private byte[][] keys;
+	private int[] hashes;
+	private Object[] values;
+	private int size;
+	private int mask;
+
+	public SPSSByteArrayMap() {
+		this(8);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            the number of entries the map is sized for
+	 */
+	public SPSSByteArrayMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		keys = new byte[capacity][];
+		hashes = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(byte[] buffer, int offset, int length) {
+		int h = 0x811c9dc5;
+		for (int i = offset; i < offset + length; i++) {
+			h ^= buffer[i];
+			h *= 0x01000193;
+		}
+		return (h ^ (h >>> 16));
+	}
+
+	private static boolean equals(byte[] key, byte[] buffer, int offset, int length) {
+		if (key.length != length)
+			return (false);
+		for (int i = 0; i < length; i++) {
+			if (key[i] != buffer[offset + i])
+				return (false);
+		}
+		return (true);
+	}
+
+	/**
+	 * @return the value mapped to the whole array, or null
+	 */
+	public V get(byte[] key) {
+		return (get(key, 0, key.length));
+	}
+
+	/**
+	 * @return the value mapped to the bytes buffer[offset] to buffer[offset+length-1], or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(byte[] buffer, int offset, int length) {
+		int h = hash(buffer, offset, length);
+		int i = h & mask;
+		while (values[i] != null) {
+			if (hashes[i] == h && equals(keys[i], buffer, offset, length))
+				return ((V) values[i]);
+			i = (i + 1) & mask;
+		}
+		return (null);
+	}
+
+	/**
+	 * Maps a key to a (non null) value. The key is copied.
+	 * 
+	 * @return the previous value, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(byte[] key, V value) {
+		if (value == null)
+			throw new NullPointerException("null values are not allowed");
+		int h = hash(key, 0, key.length);
+		int i = h & mask;
+		while (values[i] != null) {
+			if (hashes[i] == h && equals(keys[i], key, 0, key.length)) {
+				V previous = (V) values[i];
+				values[i] = value;
+				return (previous);
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = Arrays.copyOf(key, key.length);
+		hashes[i] = h;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			resize();
+		return (null);
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return (size);
+	}
+
+	private void resize() {
+		byte[][] oldKeys = keys;
+		int[] oldHashes = hashes;
+		Object[] oldValues = values;
+		keys = new byte[oldKeys.length * 2][];
+		hashes = new int[oldKeys.length * 2];
+		values = new Object[oldKeys.length * 2];
+		mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] != null) {
+				int i = oldHashes[j] & mask;
+				while (values[i] != null)
+					i = (i + 1) & mask;
+				keys[i] = oldKeys[j];
+				hashes[i] = oldHashes[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+/**
+ * A flag requesting a running export to stop. The export checks the token between records and fails with a SPSSFileException once it has been cancelled, for instance when the client of a streamed export disconnects.
+ * 
+ */
+public class SPSSCancellationToken {
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Requests the export to stop
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return true if the export has been cancelled
+	 */
+	public boolean isCancelled() {
+		return (cancelled);
+	}
+}
@@ -0,0 +1,101 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An immutable set of categories shared by all the variables with identical value labels and missing values definitions (for example the items of a questionnaire battery). Schemes are interned by the SPSSFile when the categories of a variable are first loaded.
+ * 
+ */
+public class SPSSCategoryScheme {
+	final SPSSVariable owner; // < The first variable the scheme was built for. Its identifiers are used for the DDI schemes
+	final Map<String, SPSSVariableCategory> categoryMap; // < The read-only map of categories, returned by getCategoryMap() of the variables sharing the scheme (SPSSVariable.addCategory() copies it before a change)
+	final SPSSDoubleMap<SPSSVariableCategory> valueMap; // < The categories of a numeric scheme keyed on their value
+	final SPSSByteArrayMap<SPSSVariableCategory> bytesMap; // < The categories of a string scheme keyed on their raw bytes
+
+	SPSSCategoryScheme(SPSSVariable owner, Map<String, SPSSVariableCategory> categoryMap) {
+		this.owner = owner;
+		this.categoryMap = Collections.unmodifiableMap(categoryMap);
+		if (owner.type == SPSSVariable.VariableType.NUMERIC) {
+			valueMap = new SPSSDoubleMap<SPSSVariableCategory>(categoryMap.size());
+			bytesMap = null;
+		} else {
+			valueMap = null;
+			bytesMap = new SPSSByteArrayMap<SPSSVariableCategory>(categoryMap.size());
+		}
+		Iterator<SPSSVariableCategory> it = categoryMap.values().iterator();
+		while (it.hasNext()) {
+			SPSSVariableCategory cat = it.next();
+			if (valueMap != null)
+				valueMap.put(cat.value, cat);
+			else if (cat.byteValue != null)
+				bytesMap.put(cat.byteValue, cat);
+		}
+	}
+
+	/**
+	 * Gets the category of a numeric value with a single hash probe
+	 * 
+	 * @return the category, or null if the value has no category or this is not a numeric scheme
+	 */
+	public SPSSVariableCategory getCategory(double value) {
+		return (valueMap != null ? valueMap.get(value) : null);
+	}
+
+	/**
+	 * Gets the category of a raw string value with a single hash probe
+	 * 
+	 * @param buffer
+	 *            the buffer holding the value
+	 * @param length
+	 *            the length of the right trimmed value
+	 * @return the category, or null if the value has no category or this is not a string scheme
+	 */
+	public SPSSVariableCategory getCategory(byte[] buffer, int length) {
+		return (bytesMap != null ? bytesMap.get(buffer, 0, length) : null);
+	}
+
+	/**
+	 * @return the read-only map of categories keyed on the value string
+	 */
+	public Map<String, SPSSVariableCategory> getCategoryMap() {
+		return (categoryMap);
+	}
+
+	/**
+	 * @return the variable the scheme was built for
+	 */
+	public SPSSVariable getOwner() {
+		return (owner);
+	}
+}
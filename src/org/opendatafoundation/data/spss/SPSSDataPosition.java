@@ -0,0 +1,67 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+/**
+ * The position of a case in the data section of a file: the file offset and, for compressed files, the state of the compression cluster being read. A reader set at this position decodes the case without reading the previous ones.
+ * 
+ */
+public class SPSSDataPosition {
+	final int caseNumber; // < the 0-based number of the case
+	final long offset; // < the file offset of the next block to read
+	final byte[] cluster; // < the compression codes of the current cluster
+	final int clusterIndex; // < the index of the next code in the cluster (8 if a new cluster must be read)
+
+	SPSSDataPosition(int caseNumber, long offset, byte[] cluster, int clusterIndex) {
+		this.caseNumber = caseNumber;
+		this.offset = offset;
+		this.cluster = cluster.clone();
+		this.clusterIndex = clusterIndex;
+	}
+
+	/**
+	 * @return the 0-based number of the case at this position
+	 */
+	public int getCaseNumber() {
+		return (caseNumber);
+	}
+
+	/**
+	 * @return the file offset of the position
+	 */
+	public long getOffset() {
+		return (offset);
+	}
+
+	public String toString() {
+		return ("case " + caseNumber + " at " + offset + (clusterIndex < 8 ? " (code " + clusterIndex + " of cluster)" : ""));
+	}
+}
@@ -29,20 +29,144 @@ package org.opendatafoundation.data.spss;
  * 
  */
 
+
 import java.io.IOException;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
- * Class to read SPSS comrepssed/uncompressedf data record
+ * Class to read SPSS compressed/uncompressed data records
  * 
  * @author Pascal Heus (pheus@opendatafoundation)
  */
 public class SPSSDataRecord {
+	static final int BUFFER_SIZE = 65536; // < Minimum size of the read buffer
+
 	SPSSFile file;
-	long fileLocation;
+	SPSSDecodePlan plan; // < the decode plan of the file
+	long fileLocation; // < location of the current record in the file
+
+	// read buffer, filled with positional reads so the file pointer is never moved
+	byte[] buffer;
+	ByteBuffer bufferView; // < endian aware view on the buffer for numeric values
+	long bufferStart = -1; // < file offset of buffer[0]
+	int bufferPosition = 0;
+	int bufferLimit = 0;
+
+	// compression cluster (this value is retained between records)
+	byte[] cluster = new byte[8];
+	int clusterIndex = 8;
+
+	// record values (one entry per column of the plan)
+	double[] numericValues;
+	byte[][] stringValues; // < reusable string buffers
+	int[] stringLengths; // < length of the right trimmed string values
+	SPSSStringDecoder stringDecoder;
+
+	/**
+	 * Constructor
+	 */
+	public SPSSDataRecord() {
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            the SPSSFile to read the records from
+	 * @throws SPSSFileException
+	 */
+	public SPSSDataRecord(SPSSFile file) throws SPSSFileException {
+		init(file);
+	}
+
+	/**
+	 * Allocates the buffers for the decode plan of a file.
+	 * 
+	 * @param is
+	 * @throws SPSSFileException
+	 */
+	void init(SPSSFile is) throws SPSSFileException {
+		if (is.decodePlan == null)
+			throw new SPSSFileException("Metadata has not been loaded");
+		file = is;
+		plan = is.decodePlan;
+		numericValues = new double[plan.columns.length];
+		stringValues = new byte[plan.columns.length][];
+		stringLengths = new int[plan.columns.length];
+		stringDecoder = new SPSSStringDecoder(is.charset);
+		for (int i = 0; i < plan.columns.length; i++) {
+			if (plan.columnWidth[i] > 0)
+				stringValues[i] = new byte[plan.columnWidth[i]];
+		}
 
-	static byte[] cluster = new byte[8]; // 8-byte cluster for compressed files (this value is retained between calls)
-	static byte clusterIndex = 8; // for compressed files (once initialized, this value is retained between calls)
+		// an uncompressed record and a full cluster must always fit in the buffer
+		buffer = new byte[Math.max(BUFFER_SIZE, plan.getRecordLength() + 72)];
+		bufferView = ByteBuffer.wrap(buffer).order(plan.isBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		bufferStart = -1;
+		bufferPosition = 0;
+		bufferLimit = 0;
+		clusterIndex = 8;
+	}
+
+	/**
+	 * Returns the file location of the next record to read.
+	 * 
+	 * @return the file offset
+	 */
+	public long getPosition() {
+		return (bufferStart + bufferPosition);
+	}
+
+	/**
+	 * Positions the reader at the specified file location and resets the compression cluster.
+	 * 
+	 * @param position
+	 *            the file offset of the next record to read
+	 */
+	public void setPosition(long position) {
+		if (bufferStart >= 0 && position >= bufferStart && position <= bufferStart + bufferLimit) {
+			// already buffered
+			bufferPosition = (int) (position - bufferStart);
+		} else {
+			bufferStart = position;
+			bufferPosition = 0;
+			bufferLimit = 0;
+		}
+		clusterIndex = 8;
+	}
+
+	/**
+	 * Returns the position of the next record to read, including the state of the compression cluster.
+	 * 
+	 * @param caseNumber
+	 *            the 0-based number of the next record
+	 * @return the position
+	 */
+	public SPSSDataPosition getDataPosition(int caseNumber) {
+		return (new SPSSDataPosition(caseNumber, getPosition(), cluster, clusterIndex));
+	}
+
+	/**
+	 * Positions the reader at a position returned by getDataPosition().
+	 * 
+	 * @param position
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void setDataPosition(SPSSDataPosition position) throws IOException, SPSSFileException {
+		setPosition(position.offset);
+		System.arraycopy(position.cluster, 0, cluster, 0, 8);
+		clusterIndex = position.clusterIndex;
+		// buffer the literal values that follow the remaining codes of the cluster
+		int literals = 0;
+		for (int i = clusterIndex; i < 8; i++) {
+			if (cluster[i] == (byte) 253)
+				literals++;
+		}
+		if (literals > 0)
+			ensureBuffered(8 * literals);
+	}
 
 	/**
 	 * Reads the values for the current observation into memory. This assumes that the file pointer is properly positionned.
@@ -61,164 +185,262 @@ public class SPSSDataRecord {
 	 * @throws SPSSFileException
 	 */
 	public void read(SPSSFile is, boolean fromDisk) throws IOException, SPSSFileException {
-		SPSSNumericVariable numVar = null;
-		double numData = Double.NaN;
-		SPSSStringVariable strVar = null;
-		String strData = "";
-
-		// init
-		file = is;
-		fileLocation = file.getFilePointer();
-
-		// read data for each variable
-		Iterator varIterator = file.variableMap.keySet().iterator();
-		while (varIterator.hasNext()) {
-			SPSSVariable var = file.variableMap.get(varIterator.next());
+		if (file != is) {
+			init(is);
+			setPosition(is.getFilePointer());
+		} else if (is.getFilePointer() != getPosition()) {
+			// the file pointer has been moved since the last record
+			setPosition(is.getFilePointer());
+		}
+		readRecord();
+		storeRecord(fromDisk);
+		// leave the file pointer after the record
+		is.seek(getPosition());
+	}
 
-			// file.log("\nVARIABLE "+var.variableRecord.name+" pointer "+file.getFilePointer());
+	/**
+	 * Decodes the next record into the record values.
+	 * 
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	void readRecord() throws IOException, SPSSFileException {
+		fileLocation = getPosition();
+		if (plan.isCompressed)
+			readCompressedRecord();
+		else
+			readUncompressedRecord();
+	}
 
-			// compute number of blocks used by this variable
-			int blocksToRead = 0;
-			/** Number of data storage blocks used by the current variable */
-			int charactersToRead = 0;
-			/** Number of chacarters to read for a string variable */
-			int dataIndex = 0;
+	/**
+	 * Moves past the next record without decoding its values. Only the compression codes of compressed records are read.
+	 * 
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	void skipRecord() throws IOException, SPSSFileException {
+		if (!plan.isCompressed) {
+			setPosition(getPosition() + plan.getRecordLength());
+			return;
+		}
+		int slot = 0;
+		while (slot < plan.slotCount) {
+			if (clusterIndex > 7)
+				readCluster();
+			int code = cluster[clusterIndex++] & 0xFF;
+			if (code == 0) // padding, not a value
+				continue;
+			if (code == 252)
+				throw new SPSSFileException("Error reading data: unexpected end of compressed data file (cluster code 252)");
+			if (code == 253)
+				bufferPosition += 8;
+			slot++;
+		}
+	}
 
-			// init
-			if (var.type == SPSSVariable.VariableType.NUMERIC) {
-				numData = Double.NaN;
-				blocksToRead = 1;
-			} else {
-				strData = "";
-				// string: depends on string length but always in blocks of 8 bytes
-				charactersToRead = var.variableRecord.variableTypeCode;
-				blocksToRead = ((charactersToRead - 1) / 8) + 1;
+	/**
+	 * Decodes an uncompressed record: all slots are stored as 8-byte blocks.
+	 * 
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	private void readUncompressedRecord() throws IOException, SPSSFileException {
+		final byte[] slotAction = plan.slotAction;
+		final int[] slotColumn = plan.slotColumn;
+		final int slotCount = plan.slotCount;
+		final double sysmiss = plan.sysmiss;
+		ensureBuffered(plan.getRecordLength());
+		int pos = bufferPosition;
+		for (int slot = 0; slot < slotCount; slot++) {
+			switch (slotAction[slot]) {
+			case SPSSDecodePlan.NUMERIC:
+				double value = bufferView.getDouble(pos);
+				numericValues[slotColumn[slot]] = (value == sysmiss) ? Double.NaN : value;
+				break;
+			case SPSSDecodePlan.STRING_START:
+			case SPSSDecodePlan.STRING_CONTINUATION:
+				System.arraycopy(buffer, pos, stringValues[slotColumn[slot]], plan.slotOffset[slot], plan.slotLength[slot]);
+				break;
 			}
+			pos += 8;
+		}
+		bufferPosition = pos;
+	}
 
-			// read the variable from the file
-			while (blocksToRead > 0) {
-				// file.log("REMAINING #blocks ="+blocksToRead);
-				if (file.isCompressed()) {
-					/* COMPRESSED DATA FILE */
-					// file.log("cluster index "+clusterIndex);
-					if (clusterIndex > 7) {
-						// file.log("READ CLUSTER");
-						// need to read a new compression cluster of up to 8 variables
-						file.read(cluster);
-						clusterIndex = 0;
-					}
-					// convert byte to an unsigned byte in an int
-					int byteValue = (0x000000FF & (int) cluster[clusterIndex]);
-					// file.log("Variable "+var.variableRecord.name+" cluster byte"+(clusterIndex)+"="+byteValue);
-					clusterIndex++;
-
-					switch (byteValue) {
-					case 0: // skip this code
-						break;
-					case 252: // end of file, no more data to follow. This should not happen.
-						throw new SPSSFileException("Error reading data: unexpected end of compressed data file (cluster code 252)");
-					case 253: // data cannot be compressed, the value follows the cluster
-						if (var.type == SPSSVariable.VariableType.NUMERIC) {
-							numData = file.readSPSSDouble();
-						} else { // STRING
-							// read a maximum of 8 characters but could be less if this is the last block
-							int blockStringLength = Math.min(8, charactersToRead);
-							// append to existing value
-							strData += file.readSPSSString(blockStringLength);
-							// if this is the last block, skip the remaining dummy byte(s) (in the block of 8 bytes)
-							if (charactersToRead < 8) {
-								file.skipBytes(8 - charactersToRead);
-							}
-							// update the characters counter
-							charactersToRead -= blockStringLength;
-						}
-						break;
-					case 254: // all blanks
-						if (var.type == SPSSVariable.VariableType.NUMERIC) {
-							// note: not sure this is used for numeric values (?)
-							numData = 0.0;
-						} else {
-							// append 8 spaces to existing value
-							strData += "        ";
-						}
-						break;
-					case 255: // system missing value
-						if (var.type == SPSSVariable.VariableType.NUMERIC) {
-							// numeric variable
-							numData = Double.NaN;
-						} else {
-							// string variable
-							throw new SPSSFileException("Error reading data: unexpected SYSMISS for string variable");
-						}
-						break;
-					default: // 1-251 value is code minus the compression BIAS (normally always equal to 100)
-						if (var.type == SPSSVariable.VariableType.NUMERIC) {
-							// numeric variable
-							numData = byteValue - file.infoRecord.compressionBias;
-							// file.log(""+numVar.data.get(numVar.data.size()-1));
-						} else {
-							// string variable
-							throw new SPSSFileException("Error reading data: unexpected compression code for string variable");
-						}
-						break;
-					}
-				} else {
-					/* UNCOMPRESSED DATA */
-					if (var.type == SPSSVariable.VariableType.NUMERIC) {
-						numData = file.readSPSSDouble();
-					} else {
-						// read a maximum of 8 characters but could be less if this is the last block
-						int blockStringLength = Math.min(8, charactersToRead);
-						// append to existing value
-						strData += file.readSPSSString(blockStringLength);
-						// if this is the last block, skip the remaining dummy byte(s) (in block of 8 bytes)
-						if (charactersToRead < 8) {
-							// file.log("SKIP "+file.skipBytes(8-charactersToRead)+"/"+(8-charactersToRead));
-						}
-						// update counter
-						charactersToRead -= blockStringLength;
-					}
+	/**
+	 * Decodes a compressed record. Each cluster of 8 compression codes is buffered together with the literal values that follow it, the codes are then dispatched on the slot action table.
+	 * 
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	private void readCompressedRecord() throws IOException, SPSSFileException {
+		final byte[] slotAction = plan.slotAction;
+		final int[] slotColumn = plan.slotColumn;
+		final int slotCount = plan.slotCount;
+		int slot = 0;
+		while (slot < slotCount) {
+			if (clusterIndex > 7)
+				readCluster();
+			int code = cluster[clusterIndex++] & 0xFF;
+			if (code == 0) // padding, not a value
+				continue;
+			if (code == 252) // end of file, no more data to follow. This should not happen.
+				throw new SPSSFileException("Error reading data: unexpected end of compressed data file (cluster code 252)");
+			switch (slotAction[slot]) {
+			case SPSSDecodePlan.NUMERIC:
+				switch (code) {
+				case 253: // data cannot be compressed, the value follows the cluster
+					double value = bufferView.getDouble(bufferPosition);
+					bufferPosition += 8;
+					numericValues[slotColumn[slot]] = (value == plan.sysmiss) ? Double.NaN : value;
+					break;
+				case 254: // all blanks
+					// note: not sure this is used for numeric values (?)
+					numericValues[slotColumn[slot]] = 0.0;
+					break;
+				case 255: // system missing value
+					numericValues[slotColumn[slot]] = Double.NaN;
+					break;
+				default: // 1-251 value is code minus the compression BIAS (normally always equal to 100)
+					numericValues[slotColumn[slot]] = code - plan.compressionBias;
+					break;
 				}
-				blocksToRead--;
-			}
-			// Post=processing for string variables
-			if (var.type == SPSSVariable.VariableType.STRING) {
-				// If the variable is a string and all the blocks where blank (254), make it an empty string
-				if (strData.trim().length() == 0) {
-					strData = "";
-				} else {
-					// right trim only
-					strData = strData.replaceAll("\\s+$", "");
+				break;
+			case SPSSDecodePlan.STRING_START:
+			case SPSSDecodePlan.STRING_CONTINUATION:
+				switch (code) {
+				case 253: // data cannot be compressed, the value follows the cluster
+					System.arraycopy(buffer, bufferPosition, stringValues[slotColumn[slot]], plan.slotOffset[slot], plan.slotLength[slot]);
+					bufferPosition += 8;
+					break;
+				case 254: // all blanks
+					byte[] str = stringValues[slotColumn[slot]];
+					for (int i = plan.slotOffset[slot], end = i + plan.slotLength[slot]; i < end; i++)
+						str[i] = ' ';
+					break;
+				case 255: // system missing value
+					throw new SPSSFileException("Error reading data: unexpected SYSMISS for string variable");
+				default:
+					throw new SPSSFileException("Error reading data: unexpected compression code for string variable");
 				}
+				break;
+			default: // SKIP: discard the value
+				if (code == 253)
+					bufferPosition += 8;
+				break;
+			}
+			slot++;
+		}
+	}
+
+	/**
+	 * Reads the next cluster of compression codes and makes sure the literal values that follow it are buffered.
+	 * 
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	private void readCluster() throws IOException, SPSSFileException {
+		ensureBuffered(8);
+		System.arraycopy(buffer, bufferPosition, cluster, 0, 8);
+		bufferPosition += 8;
+		clusterIndex = 0;
+		int literals = 0;
+		for (int i = 0; i < 8; i++) {
+			if (cluster[i] == (byte) 253)
+				literals++;
+		}
+		if (literals > 0)
+			ensureBuffered(8 * literals);
+	}
+
+	/**
+	 * Makes sure at least the specified number of bytes are available in the buffer, reading from the file if necessary.
+	 * 
+	 * @param length
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	private void ensureBuffered(int length) throws IOException, SPSSFileException {
+		if (bufferLimit - bufferPosition >= length)
+			return;
+		// move the remaining bytes to the start of the buffer
+		int remaining = bufferLimit - bufferPosition;
+		System.arraycopy(buffer, bufferPosition, buffer, 0, remaining);
+		bufferStart += bufferPosition;
+		bufferPosition = 0;
+		bufferLimit = remaining;
+		// fill the buffer
+		while (bufferLimit < length) {
+			int n = readData(buffer, bufferLimit, buffer.length - bufferLimit, bufferStart + bufferLimit);
+			if (n < 0)
+				throw new SPSSFileException("Error reading data: unexpected end of file at location " + (bufferStart + bufferLimit));
+			bufferLimit += n;
+		}
+	}
+
+	/**
+	 * Reads bytes of the data section into the read buffer. The bytes are requested in sequence, each read starting where the previous one ended unless the reader has been positioned. The file is read with a positional read that does not move its file pointer.
+	 * 
+	 * @param bytes
+	 *            the destination
+	 * @param offset
+	 *            the offset in the destination
+	 * @param length
+	 *            the maximum number of bytes to read
+	 * @param position
+	 *            the file offset of the first byte
+	 * @return the number of bytes read, or -1 at the end of the file
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	int readData(byte[] bytes, int offset, int length, long position) throws IOException, SPSSFileException {
+		return (file.getChannel().read(ByteBuffer.wrap(bytes, offset, length), position));
+	}
+
+	/**
+	 * Right trims the string values of the current record at the byte level.
+	 */
+	void trimStrings() {
+		final int[] columnWidth = plan.columnWidth;
+		for (int i = 0; i < columnWidth.length; i++) {
+			if (columnWidth[i] > 0) {
+				int length = SPSSUtils.rightTrim(stringValues[i], columnWidth[i]);
+				// If all the characters are blank (254), make it an empty string
+				if (length > 0 && SPSSUtils.isBlank(stringValues[i], length))
+					length = 0;
+				stringLengths[i] = length;
 			}
+		}
+	}
 
-			// Store in variable
+	/**
+	 * Copies the record values into the variables. When reading from disk and string decoding is turned off for the file, string variables only receive the raw bytes of their value.
+	 * 
+	 * @param fromDisk
+	 *            if true, the values are loaded into the variable single values instead of the data list
+	 */
+	void storeRecord(boolean fromDisk) {
+		final SPSSVariable[] columns = plan.columns;
+		final boolean decode = !fromDisk || file.decodeStrings;
+		trimStrings();
+		for (int i = 0; i < columns.length; i++) {
+			SPSSVariable var = columns[i];
 			if (var.type == SPSSVariable.VariableType.NUMERIC) {
-				numVar = (SPSSNumericVariable) var;
-				// numeric: always uses 1 block of 8 bytes
-				if (fromDisk)
-					numVar.value = numData;
-				else {
-					numVar.data.add(Double.NaN);
-					dataIndex = numVar.data.size() - 1;
-					numVar.data.set(dataIndex, numData);
-				}
-			} else { // STRING
-				strVar = (SPSSStringVariable) var;
+				SPSSNumericVariable numVar = (SPSSNumericVariable) var;
 				if (fromDisk)
+					numVar.value = numericValues[i];
+				else
+					numVar.data.add(numericValues[i]);
+			} else {
+				SPSSStringVariable strVar = (SPSSStringVariable) var;
+				String strData = decode ? stringDecoder.decode(stringValues[i], 0, stringLengths[i]) : null;
+				if (fromDisk) {
 					strVar.value = strData;
-				else {
-					strVar.data.add("");
-					dataIndex = strVar.data.size() - 1;
-					strVar.data.set(dataIndex, strData);
-				}
-				// file.log("chars "+charactersToRead+" blocks "+blocksToRead);
+					strVar.valueBytes = stringValues[i];
+					strVar.valueLength = stringLengths[i];
+				} else
+					strVar.data.add(strData);
 			}
-
-			// debug trace
-			/*
-			 * if(var.variableRecord.variableTypeCode==0) { file.log("Numeric variable "+var.variableRecord.name+" value "+numVar.data.get( numVar.data.size()-1) ) ; } else { file.log("String variable "+var.variableRecord.name+" value ["+strVar.data.get( strVar.data.size()-1) +"]") ; }
-			 */
-		} // next variable
+		}
 	}
 }
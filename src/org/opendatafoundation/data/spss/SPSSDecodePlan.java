@@ -0,0 +1,147 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Immutable decode plan for the data records of a file. The plan is compiled once when the dictionary is loaded and holds one instruction for each 8-byte slot of a record together with the destination column of the slot. It is shared by all the record readers of the file.
+ */
+public class SPSSDecodePlan {
+	/* Slot instructions */
+	static final byte NUMERIC = 0; // < 8-byte numeric value
+	static final byte STRING_START = 1; // < first 8-byte block of a string value
+	static final byte STRING_CONTINUATION = 2; // < following 8-byte blocks of a string value
+	static final byte SKIP = 3; // < slot not mapped to a column, the value is read and discarded
+
+	final int slotCount; // < number of 8-byte slots in a record
+	final byte[] slotAction; // < instruction for each slot
+	final int[] slotColumn; // < destination column of each slot
+	final int[] slotOffset; // < offset of the slot in the string value of the column
+	final int[] slotLength; // < number of string characters stored in the slot
+
+	final SPSSVariable[] columns; // < the variables in file order
+	final int[] columnWidth; // < string width of each column (0 for numeric columns)
+
+	final boolean isCompressed;
+	final boolean isBigEndian;
+	final double compressionBias;
+	final double sysmiss;
+
+	/**
+	 * Compiles the plan from the file dictionary.
+	 * 
+	 * @param file
+	 *            the SPSSFile the plan is compiled for
+	 * @param slotCount
+	 *            the number of 8-byte slots in a record (number of type 2 records)
+	 * @throws SPSSFileException
+	 */
+	SPSSDecodePlan(SPSSFile file, int slotCount) throws SPSSFileException {
+		this.slotCount = slotCount;
+		isCompressed = file.isCompressed();
+		isBigEndian = file.isBigEndian;
+		compressionBias = file.infoRecord.compressionBias;
+		sysmiss = (file.floatInformationRecord != null) ? file.floatInformationRecord.sysmiss : -Double.MAX_VALUE;
+
+		slotAction = new byte[slotCount];
+		slotColumn = new int[slotCount];
+		slotOffset = new int[slotCount];
+		slotLength = new int[slotCount];
+		columns = new SPSSVariable[file.variableMap.size()];
+		columnWidth = new int[columns.length];
+
+		// slots not claimed by a variable are skipped
+		for (int slot = 0; slot < slotCount; slot++)
+			slotAction[slot] = SKIP;
+
+		// the variable map is keyed on the first slot of each variable
+		Iterator<Map.Entry<Integer, SPSSVariable>> varIterator = file.variableMap.entrySet().iterator();
+		int column = 0;
+		while (varIterator.hasNext()) {
+			Map.Entry<Integer, SPSSVariable> entry = varIterator.next();
+			SPSSVariable var = entry.getValue();
+			int slot = entry.getKey();
+			columns[column] = var;
+			if (var.type == SPSSVariable.VariableType.NUMERIC) {
+				setSlot(slot, NUMERIC, column, 0, 0);
+			} else {
+				SPSSStringVariable strVar = (SPSSStringVariable) var;
+				int width = strVar.getWidth();
+				columnWidth[column] = width;
+				if (strVar.segmentSlot == null) {
+					for (int offset = 0; offset < width; offset += 8) {
+						setSlot(slot++, offset == 0 ? STRING_START : STRING_CONTINUATION, column, offset, Math.min(8, width - offset));
+					}
+				} else {
+					// very long string: each segment holds up to 255 characters of the value, the rest of the segment is padding
+					for (int segment = 0; segment < strVar.segmentSlot.length; segment++) {
+						int start = 255 * segment;
+						int used = Math.max(0, Math.min(255, width - start));
+						int segmentSlots = (strVar.segmentWidth[segment] + 7) / 8;
+						for (int k = 0; k < segmentSlots; k++) {
+							int offset = 8 * k;
+							if (offset < used)
+								setSlot(strVar.segmentSlot[segment] + k, start + offset == 0 ? STRING_START : STRING_CONTINUATION, column, start + offset, Math.min(8, used - offset));
+							else if (strVar.segmentSlot[segment] + k >= slotCount)
+								setSlot(strVar.segmentSlot[segment] + k, SKIP, column, 0, 0); // reports the overflow
+						}
+					}
+				}
+			}
+			column++;
+		}
+	}
+
+	private void setSlot(int slot, byte action, int column, int offset, int length) throws SPSSFileException {
+		if (slot < 0 || slot >= slotCount)
+			throw new SPSSFileException("Error compiling decode plan: variable " + columns[column].getShortName() + " does not fit in the record (slot " + slot + " of " + slotCount + ")");
+		slotAction[slot] = action;
+		slotColumn[slot] = column;
+		slotOffset[slot] = offset;
+		slotLength[slot] = length;
+	}
+
+	/**
+	 * @return the number of columns (variables) decoded by this plan
+	 */
+	public int getColumnCount() {
+		return (columns.length);
+	}
+
+	/**
+	 * @return the number of bytes of an uncompressed record
+	 */
+	public int getRecordLength() {
+		return (8 * slotCount);
+	}
+}
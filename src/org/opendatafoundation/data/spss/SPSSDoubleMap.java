@@ -0,0 +1,140 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+/**
+ * An open addressing hash map keyed on the bits of a double value. Lookups do not box the key or format it to a String. Positive and negative zero are the same key, all NaN values are the same key.
+ * <p>
+ * The map only grows: entries cannot be removed.
+ * 
+ * @param <V>
+ *            the value type
+ */
+public class SPSSDoubleMap<V> {
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+
+	public SPSSDoubleMap() {
+		this(8);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            the number of entries the map is sized for
+	 */
+	public SPSSDoubleMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private static long bits(double key) {
+		if (key == 0.0)
+			return (0L); // -0.0 == 0.0
+		return (Double.doubleToLongBits(key));
+	}
+
+	private static int hash(long bits) {
+		bits ^= bits >>> 33;
+		bits *= 0xff51afd7ed558ccdL;
+		bits ^= bits >>> 33;
+		return ((int) bits);
+	}
+
+	/**
+	 * @return the value mapped to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(double key) {
+		long bits = bits(key);
+		int i = hash(bits) & mask;
+		while (values[i] != null) {
+			if (keys[i] == bits)
+				return ((V) values[i]);
+			i = (i + 1) & mask;
+		}
+		return (null);
+	}
+
+	/**
+	 * Maps a key to a (non null) value
+	 * 
+	 * @return the previous value, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(double key, V value) {
+		if (value == null)
+			throw new NullPointerException("null values are not allowed");
+		long bits = bits(key);
+		int i = hash(bits) & mask;
+		while (values[i] != null) {
+			if (keys[i] == bits) {
+				V previous = (V) values[i];
+				values[i] = value;
+				return (previous);
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = bits;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			resize();
+		return (null);
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return (size);
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new Object[oldKeys.length * 2];
+		mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] != null) {
+				int i = hash(oldKeys[j]) & mask;
+				while (values[i] != null)
+					i = (i + 1) & mask;
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+}
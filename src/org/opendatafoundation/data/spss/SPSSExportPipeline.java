@@ -0,0 +1,488 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opendatafoundation.data.FileFormatInfo;
+
+/**
+ * Exports the data of a file through a pipeline of stages running in their own threads, so that the file I/O overlaps with the decoding and formatting work:
+ * <ul>
+ * <li>the read stage reads the data section in large chunks</li>
+ * <li>the decode stage decodes the chunks into batches of rows</li>
+ * <li>several format stages render the batches into bytes</li>
+ * <li>the write stage (the calling thread) writes the batches in their original order</li>
+ * </ul>
+ * The stages are connected by bounded lock-free rings with a single producer and a single consumer (SPSSRingBuffer): the decode stage deals the batches in turn to the format threads, each format thread has its own input and output ring, and the write stage takes the batches back from the output rings in the same order. A stage waiting on a ring yields and then parks for short periods, so the threads never contend for a lock. The chunks and the batches are allocated once and recycled, which bounds the memory used by the export. The metrics of each stage tell how busy it was and how full its input queue was, to find the bottleneck of an export.
+ * 
+ */
+public class SPSSExportPipeline {
+	static final int SPIN_COUNT = 16; // < number of times a waiting stage yields before it parks
+	static final long PARK_NANOS = 100000; // < time a waiting stage parks between two checks of its ring
+
+	final SPSSFile file;
+	final FileFormatInfo dataFormat;
+	int formatThreads = Runtime.getRuntime().availableProcessors();
+	int batchSize = 1024; // < number of rows per batch
+	int chunkSize = 1 << 20; // < size of the chunks read from the file
+	int queueCapacity = 4; // < number of chunks and batches queued between two stages
+
+	final StageMetrics readStage = new StageMetrics("read");
+	final StageMetrics decodeStage = new StageMetrics("decode");
+	final StageMetrics formatStage = new StageMetrics("format");
+	final StageMetrics writeStage = new StageMetrics("write");
+
+	// the first failure of a stage, the other stages stop when it is set
+	final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/**
+	 * A chunk of the data section
+	 */
+	static class Chunk {
+		final byte[] data;
+		int length;
+
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+
+	/**
+	 * Metrics of a pipeline stage
+	 */
+	public static class StageMetrics {
+		final String name;
+		final AtomicLong items = new AtomicLong();
+		final AtomicLong activeNanos = new AtomicLong(); // < total running time of the stage threads
+		final AtomicLong waitNanos = new AtomicLong(); // < time spent waiting on the queues
+		final AtomicLong queueSamples = new AtomicLong();
+		final AtomicLong queueTotal = new AtomicLong(); // < sum of the input queue sizes seen when taking an item
+		int queueCapacity;
+
+		StageMetrics(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return the name of the stage
+		 */
+		public String getName() {
+			return (name);
+		}
+
+		/**
+		 * @return the number of chunks (read stage) or batches processed by the stage
+		 */
+		public long getItems() {
+			return (items.get());
+		}
+
+		/**
+		 * @return the time the stage spent working, in milliseconds (summed over the threads of the stage)
+		 */
+		public long getBusyTime() {
+			return ((activeNanos.get() - waitNanos.get()) / 1000000);
+		}
+
+		/**
+		 * @return the time the stage spent waiting for input or for room in its output queue, in milliseconds
+		 */
+		public long getWaitTime() {
+			return (waitNanos.get() / 1000000);
+		}
+
+		/**
+		 * @return the fraction of its running time the stage was busy (0-1)
+		 */
+		public double getOccupancy() {
+			long active = activeNanos.get();
+			return (active == 0 ? 0 : (double) (active - waitNanos.get()) / active);
+		}
+
+		/**
+		 * @return the average number of items in the input queue of the stage (the free chunks for the read stage)
+		 */
+		public double getAverageQueueSize() {
+			long samples = queueSamples.get();
+			return (samples == 0 ? 0 : (double) queueTotal.get() / samples);
+		}
+
+		public String toString() {
+			return (String.format(Locale.US, "%-6s %8d items, busy %5.1f%% (%d ms), waiting %d ms, input queue %.1f/%d", name, getItems(), 100 * getOccupancy(), getBusyTime(), getWaitTime(), getAverageQueueSize(), queueCapacity));
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            the file, its metadata must be loaded
+	 * @param dataFormat
+	 *            the export format
+	 * @throws SPSSFileException
+	 */
+	public SPSSExportPipeline(SPSSFile file, FileFormatInfo dataFormat) throws SPSSFileException {
+		if (file.decodePlan == null)
+			throw new SPSSFileException("Metadata has not been loaded");
+		this.file = file;
+		this.dataFormat = dataFormat;
+	}
+
+	/**
+	 * Sets the number of format threads (one per available processor by default)
+	 */
+	public void setFormatThreads(int formatThreads) {
+		this.formatThreads = Math.max(1, formatThreads);
+	}
+
+	/**
+	 * Sets the number of rows per batch (1024 by default)
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Sets the size in bytes of the chunks read from the file (1 MB by default)
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = Math.max(4096, chunkSize);
+	}
+
+	/**
+	 * Sets the number of chunks and of batches queued between two stages (4 by default)
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+
+	/**
+	 * @return the metrics of the read, decode, format and write stages
+	 */
+	public StageMetrics[] getMetrics() {
+		return (new StageMetrics[] { readStage, decodeStage, formatStage, writeStage });
+	}
+
+	/**
+	 * @return a report of the stage metrics, one line per stage
+	 */
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		StageMetrics[] metrics = getMetrics();
+		for (int i = 0; i < metrics.length; i++)
+			sb.append(metrics[i]).append('\n');
+		return (sb.toString());
+	}
+
+	/**
+	 * Exports the records of the file, without header line
+	 * 
+	 * @param out
+	 *            the output stream, it is not closed
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void export(final OutputStream out) throws IOException, SPSSFileException {
+		final int caseCount = file.getRecordCount();
+		if (caseCount <= 0)
+			return;
+
+		// recycled chunks and batches
+		final int chunkCount = queueCapacity + 2; // < queued, being read and being decoded
+		final int batchCount = 2 * queueCapacity + formatThreads;
+		final SPSSRingBuffer<Chunk> freeChunks = new SPSSRingBuffer<Chunk>(chunkCount);
+		final SPSSRingBuffer<Chunk> readChunks = new SPSSRingBuffer<Chunk>(chunkCount + 1);
+		final SPSSRingBuffer<SPSSRowBatch> freeBatches = new SPSSRingBuffer<SPSSRowBatch>(batchCount);
+		// one input and one output ring per format thread, each large enough for all the batches and the end marker
+		final List<SPSSRingBuffer<SPSSRowBatch>> decodedBatches = new ArrayList<SPSSRingBuffer<SPSSRowBatch>>();
+		final List<SPSSRingBuffer<SPSSRowBatch>> formattedBatches = new ArrayList<SPSSRingBuffer<SPSSRowBatch>>();
+		for (int i = 0; i < formatThreads; i++) {
+			decodedBatches.add(new SPSSRingBuffer<SPSSRowBatch>(batchCount + 1));
+			formattedBatches.add(new SPSSRingBuffer<SPSSRowBatch>(batchCount + 1));
+		}
+		for (int i = 0; i < chunkCount; i++)
+			freeChunks.offer(new Chunk(chunkSize));
+		for (int i = 0; i < batchCount; i++)
+			freeBatches.offer(new SPSSRowBatch(file.decodePlan, batchSize));
+		final Chunk endChunk = new Chunk(0);
+		final SPSSRowBatch endBatch = new SPSSRowBatch(file.decodePlan, 0);
+		final AtomicBoolean decodeDone = new AtomicBoolean(); // < stops the read stage when the data ends before the file
+		readStage.queueCapacity = freeChunks.capacity();
+		decodeStage.queueCapacity = readChunks.capacity();
+		formatStage.queueCapacity = decodedBatches.get(0).capacity();
+		writeStage.queueCapacity = formattedBatches.get(0).capacity();
+
+		ExecutorService executor = Executors.newFixedThreadPool(2 + formatThreads);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		try {
+			// read stage
+			final FileChannel channel = file.getChannel();
+			final long dataEnd = file.length();
+			results.add(executor.submit(new StageTask(readStage) {
+				void run() throws IOException, SPSSFileException {
+					long position = file.dataStartPosition;
+					while (position < dataEnd && !decodeDone.get()) {
+						Chunk chunk = take(freeChunks);
+						ByteBuffer bb = ByteBuffer.wrap(chunk.data, 0, (int) Math.min(chunk.data.length, dataEnd - position));
+						while (bb.hasRemaining()) {
+							if (channel.read(bb, position + bb.position()) < 0)
+								break;
+						}
+						chunk.length = bb.position();
+						position += chunk.length;
+						put(readChunks, chunk);
+						stage.items.incrementAndGet();
+						if (bb.hasRemaining())
+							break; // the file has been truncated
+					}
+					put(readChunks, endChunk);
+				}
+			}));
+
+			// decode stage
+			results.add(executor.submit(new StageTask(decodeStage) {
+				void run() throws IOException, SPSSFileException {
+					/**
+					 * Reads the data from the chunks of the read stage
+					 */
+					class ChunkedDataRecord extends SPSSDataRecord {
+						Chunk chunk; // < the chunk being decoded
+						int chunkPosition;
+
+						int readData(byte[] bytes, int offset, int length, long position) throws SPSSFileException {
+							if (chunk == null || (chunk != endChunk && chunkPosition == chunk.length)) {
+								release();
+								chunk = take(readChunks);
+								chunkPosition = 0;
+							}
+							if (chunk == endChunk)
+								return (-1);
+							int count = Math.min(length, chunk.length - chunkPosition);
+							System.arraycopy(chunk.data, chunkPosition, bytes, offset, count);
+							chunkPosition += count;
+							return (count);
+						}
+
+						void release() throws SPSSFileException {
+							if (chunk != null && chunk != endChunk)
+								put(freeChunks, chunk);
+							chunk = null;
+						}
+					}
+					ChunkedDataRecord record = new ChunkedDataRecord();
+					record.init(file);
+					record.setPosition(file.dataStartPosition);
+					long sequence = 0;
+					int remaining = caseCount;
+					while (remaining > 0) {
+						SPSSRowBatch batch = take(freeBatches);
+						batch.size = Math.min(batchSize, remaining);
+						batch.sequence = sequence++;
+						for (int row = 0; row < batch.size; row++) {
+							// decode the values in place in the batch
+							record.numericValues = batch.numericValues[row];
+							record.stringValues = batch.stringValues[row];
+							record.stringLengths = batch.stringLengths[row];
+							record.readRecord();
+							record.trimStrings();
+						}
+						put(decodedBatches.get((int) (batch.sequence % formatThreads)), batch);
+						stage.items.incrementAndGet();
+						remaining -= batch.size;
+					}
+					for (int i = 0; i < formatThreads; i++)
+						put(decodedBatches.get(i), endBatch);
+					decodeDone.set(true);
+					record.release();
+				}
+			}));
+
+			// format stages
+			for (int i = 0; i < formatThreads; i++) {
+				final SPSSRingBuffer<SPSSRowBatch> input = decodedBatches.get(i);
+				final SPSSRingBuffer<SPSSRowBatch> output = formattedBatches.get(i);
+				results.add(executor.submit(new StageTask(formatStage) {
+					void run() throws IOException, SPSSFileException {
+						SPSSRecordFormatter formatter = new SPSSRecordFormatter(file, dataFormat);
+						while (true) {
+							SPSSRowBatch batch = take(input);
+							if (batch == endBatch)
+								break;
+							batch.outputLength = 0;
+							for (int row = 0; row < batch.size; row++) {
+								formatter.format(batch.numericValues[row], batch.stringValues[row], batch.stringLengths[row]);
+								batch.append(formatter.getBuffer(), formatter.getLength());
+								batch.append((byte) '\n');
+							}
+							put(output, batch);
+							stage.items.incrementAndGet();
+						}
+						put(output, endBatch);
+					}
+				}));
+			}
+
+			// write stage: the batches are taken in sequence from the rings they were dealt to
+			new StageTask(writeStage) {
+				void run() throws IOException, SPSSFileException {
+					long next = 0;
+					while (true) {
+						SPSSRowBatch batch = take(formattedBatches.get((int) (next % formatThreads)));
+						if (batch == endBatch)
+							break;
+						out.write(batch.output, 0, batch.outputLength);
+						put(freeBatches, batch);
+						stage.items.incrementAndGet();
+						next++;
+					}
+				}
+			}.call();
+		} catch (Exception e) {
+			// reported below with the failures of the other stages
+		} finally {
+			// the tasks are not interrupted: this would close the channel of the file
+			executor.shutdown();
+		}
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (ExecutionException e) {
+				// the first failure is kept by the tasks
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SPSSFileException("Export interrupted");
+			}
+		}
+		SPSSFile.rethrow(failure.get());
+	}
+
+	/**
+	 * The work of a stage. The first exception thrown by a stage is recorded as the failure of the export, which stops the other stages.
+	 */
+	abstract class StageTask implements Callable<Object> {
+		final StageMetrics stage;
+
+		StageTask(StageMetrics stage) {
+			this.stage = stage;
+		}
+
+		abstract void run() throws IOException, SPSSFileException;
+
+		public Object call() throws Exception {
+			long start = System.nanoTime();
+			try {
+				run();
+				return (null);
+			} catch (Exception e) {
+				failure.compareAndSet(null, e);
+				throw e;
+			} catch (Error e) {
+				failure.compareAndSet(null, e);
+				throw e;
+			} finally {
+				stage.activeNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Takes the next item of a ring, waiting if necessary
+		 * 
+		 * @throws SPSSFileException
+		 *             if another stage has failed
+		 */
+		<T> T take(SPSSRingBuffer<T> ring) throws SPSSFileException {
+			stage.queueTotal.addAndGet(ring.size());
+			stage.queueSamples.incrementAndGet();
+			T item = ring.poll();
+			if (item != null)
+				return (item);
+			long start = System.nanoTime();
+			try {
+				for (int spins = 0; (item = ring.poll()) == null; spins++)
+					pause(spins);
+				return (item);
+			} finally {
+				stage.waitNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Puts an item in a ring, waiting for room if necessary
+		 * 
+		 * @throws SPSSFileException
+		 *             if another stage has failed
+		 */
+		<T> void put(SPSSRingBuffer<T> ring, T item) throws SPSSFileException {
+			if (ring.offer(item))
+				return;
+			long start = System.nanoTime();
+			try {
+				for (int spins = 0; !ring.offer(item); spins++)
+					pause(spins);
+			} finally {
+				stage.waitNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Waits before the next attempt on a ring: yields first, then parks
+		 * 
+		 * @throws SPSSFileException
+		 *             if another stage has failed or the thread has been interrupted
+		 */
+		private void pause(int spins) throws SPSSFileException {
+			if (failure.get() != null)
+				throw new SPSSFileException("Export aborted");
+			if (Thread.currentThread().isInterrupted())
+				throw new SPSSFileException("Export interrupted");
+			if (spins < SPIN_COUNT)
+				Thread.yield();
+			else
+				LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.File;
+import java.io.OutputStream;
+
+import org.opendatafoundation.data.FileFormatInfo;
+
+/**
+ * An output of a multi-format export: a file or a stream, its format and optionally the variables to export.
+ * 
+ */
+public class SPSSExportTarget {
+	File file;
+	OutputStream outputStream;
+	FileFormatInfo dataFormat;
+	String[] variableNames; // < the variables of the output columns, null for all the variables
+
+	/**
+	 * Creates a target exporting all the variables to a file
+	 * 
+	 * @param file
+	 * @param dataFormat
+	 */
+	public SPSSExportTarget(File file, FileFormatInfo dataFormat) {
+		this.file = file;
+		this.dataFormat = dataFormat;
+	}
+
+	/**
+	 * Creates a target exporting all the variables to a stream. The stream is flushed but not closed by the export.
+	 * 
+	 * @param out
+	 * @param dataFormat
+	 */
+	public SPSSExportTarget(OutputStream out, FileFormatInfo dataFormat) {
+		this.outputStream = out;
+		this.dataFormat = dataFormat;
+	}
+
+	/**
+	 * Restricts the output to some variables
+	 * 
+	 * @param variableNames
+	 *            the names of the variables, in the order of the output columns, or null for all the variables
+	 */
+	public void setVariables(String... variableNames) {
+		this.variableNames = variableNames;
+	}
+
+	/**
+	 * @return the file of the target, or null if the target is a stream
+	 */
+	public File getFile() {
+		return (file);
+	}
+
+	/**
+	 * @return the format of the target
+	 */
+	public FileFormatInfo getDataFormat() {
+		return (dataFormat);
+	}
+
+	/**
+	 * @return the names of the variables of the output columns, or null for all the variables
+	 */
+	public String[] getVariables() {
+		return (variableNames);
+	}
+
+	public String toString() {
+		return ((file != null ? file.toString() : "stream") + " [" + dataFormat + "]");
+	}
+}
@@ -29,23 +29,39 @@ package org.opendatafoundation.data.spss;
  * 
  */
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Writer;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -53,6 +69,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 
 import org.opendatafoundation.data.FileFormatInfo;
+import org.opendatafoundation.data.ParallelGzipOutputStream;
 import org.opendatafoundation.data.Utils;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
@@ -116,6 +133,8 @@ public class SPSSFile extends RandomAccessFile {
 	long cachePointer = -1;
 	long cacheEnd = -1;
 	Charset charset = null;
+	public boolean decodeStrings = true; // < Decode string values read from disk. If false, string variables only hold the raw bytes of their value
+	public Set<Integer> skippedRecord7Subtypes = new HashSet<Integer>(); // < Record type 7 subtypes that are skipped when loading the dictionary, even if the subtype is known
 
 	// SPSS Metadata
 	SPSSRecordType1 infoRecord; // < the SPSS type 1 record
@@ -126,12 +145,23 @@ public class SPSSFile extends RandomAccessFile {
 	SPSSRecordType7Subtype5 variableSetsInformationRecord;
 	SPSSRecordType7Subtype11 variableDisplayParamsRecord;
 	SPSSRecordType7Subtype13 longVariableNamesRecord;
+	SPSSRecordType7Subtype14 veryLongStringsRecord;
+	SPSSRecordType7Subtype20 encodingRecord;
+	SPSSRecordType7Subtype21 longStringValueLabelsRecord;
+	List<SPSSRecordType7> extensionRecords; // < the type 7 records that were skipped, in file order
+	SPSSDecodePlan decodePlan; // < the data record decode plan compiled from the dictionary
+	Map<ByteBuffer, SPSSCategoryScheme> categorySchemes; // < the category schemes shared by the variables, keyed on their definition
 	public boolean isMetadataLoaded = false;
 
 	// SPSS Data (actual values stored in variables)
 	long dataStartPosition = -1;
+	SPSSDataRecord dataRecord; // < the record reader used by getRecordFromDisk
+	SPSSRecordFormatter recordFormatter; // < the formatter used by getRecord and getRecordFromDisk (kept while the format options do not change)
 	public boolean isDataLoaded = false;
 
+	// Export
+	public static final int STREAM_CHUNK_SIZE = 65536; // < the number of bytes written between flushes of exports to a stream
+
 	/**
 	 * Constructor
 	 * 
@@ -340,50 +370,637 @@ public class SPSSFile extends RandomAccessFile {
 		if (file.isDirectory()) {
 			throw new SPSSFileException("File should not be a directory: " + file);
 		}
+		if (!isMetadataLoaded)
+			loadMetadata();
 		// write file
 		log("\nExporting data to " + file.getCanonicalPath());
 		start = System.currentTimeMillis();
-		FileOutputStream fos = new FileOutputStream(file);
-		OutputStreamWriter out = new OutputStreamWriter(fos, "UTF-8");
+		OutputStream out = new BufferedOutputStream(openOutput(file, dataFormat), 65536);
+		try {
+			writeData(out, dataFormat, null, 0);
+		} finally {
+			out.close();
+		}
+
+		elapsed = System.currentTimeMillis() - start;
+		log("" + elapsed + " ms, file size  " + file.length() / 1024 + "Kb");
+		return (elapsed);
+	}
 
+	/**
+	 * Reads the data from the disk and exports it to a stream based on the specified format. The stream is flushed after the first record and then every STREAM_CHUNK_SIZE bytes, so the data reaches a slow consumer (an HTTP response for instance) while the export goes on. The stream is flushed but not closed.
+	 * 
+	 * @param out
+	 *            the destination of the export
+	 * @param dataFormat
+	 * @param cancel
+	 *            a token stopping the export when cancelled, or null
+	 * @return The number of milliseconds taken to export the data
+	 * @throws SPSSFileException
+	 *             if the export has been cancelled
+	 * @throws IOException
+	 *             if the stream fails (the export stops at the first write failure)
+	 */
+	public long exportData(OutputStream out, FileFormatInfo dataFormat, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		// check arguments
+		if (out == null) {
+			throw new SPSSFileException("Output stream should not be null.");
+		}
+		if (!isMetadataLoaded)
+			loadMetadata();
+		log("\nExporting data to stream");
+		start = System.currentTimeMillis();
+		OutputStream buffered = new BufferedOutputStream(out, STREAM_CHUNK_SIZE);
+		writeData(buffered, dataFormat, cancel, STREAM_CHUNK_SIZE);
+		buffered.flush();
+
+		elapsed = System.currentTimeMillis() - start;
+		log("" + elapsed + " ms");
+		return (elapsed);
+	}
+
+	/**
+	 * Reads the data from the disk and exports it to a channel based on the specified format (see exportData(OutputStream, FileFormatInfo, SPSSCancellationToken)). The channel is not closed.
+	 * 
+	 * @param channel
+	 *            the destination of the export
+	 * @param dataFormat
+	 * @param cancel
+	 *            a token stopping the export when cancelled, or null
+	 * @return The number of milliseconds taken to export the data
+	 * @throws SPSSFileException
+	 * @throws IOException
+	 */
+	public long exportData(WritableByteChannel channel, FileFormatInfo dataFormat, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		if (channel == null) {
+			throw new SPSSFileException("Channel should not be null.");
+		}
+		return (exportData(Channels.newOutputStream(channel), dataFormat, cancel));
+	}
+
+	/**
+	 * Writes the header and the records of a single format export (the Stata, SAS, SPSS and Arrow exports are written by SPSSStataWriter, SPSSXportWriter, SPSSSavWriter and SPSSArrowWriter)
+	 * 
+	 * @param out
+	 * @param dataFormat
+	 * @param cancel
+	 *            a token stopping the export when cancelled, or null
+	 * @param flushSize
+	 *            the number of bytes written between flushes of the stream, or 0 to let the stream buffer the data
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	void writeData(OutputStream out, FileFormatInfo dataFormat, SPSSCancellationToken cancel, int flushSize) throws IOException, SPSSFileException {
+		if (dataFormat.format == FileFormatInfo.Format.STATA) {
+			new SPSSStataWriter(this, dataFormat).write(out, cancel);
+			return;
+		} else if (dataFormat.format == FileFormatInfo.Format.SAS) {
+			new SPSSXportWriter(this, dataFormat).write(out, cancel);
+			return;
+		} else if (dataFormat.format == FileFormatInfo.Format.SPSS) {
+			new SPSSSavWriter(this).write(out, cancel);
+			return;
+		} else if (dataFormat.format == FileFormatInfo.Format.ARROW) {
+			new SPSSArrowWriter(this, dataFormat).write(out, cancel);
+			return;
+		}
 		// 20070915-PH: added test for empty files
 		if (infoRecord.numberOfCases > 0) {
-			// write header for delimited/CSV ASCII
-			if (dataFormat.format == FileFormatInfo.Format.ASCII && (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.DELIMITED || dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV) && dataFormat.namesOnFirstLine) {
-				String recordStr = "";
-				Iterator varIterator = variableMap.keySet().iterator();
-				int n = 1;
-				while (varIterator.hasNext()) {
-					SPSSVariable var = variableMap.get(varIterator.next());
-					if (n > 1) {
-						if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV)
-							recordStr += ",";
-						else
-							recordStr += dataFormat.asciiDelimiter;
+			// the records are formatted straight to UTF-8 bytes
+			SPSSRecordFormatter formatter = new SPSSRecordFormatter(this, dataFormat);
+
+			writeHeader(out, formatter);
+
+			// write data
+			SPSSDataRecord record = new SPSSDataRecord(this);
+			record.setPosition(dataStartPosition);
+			long unflushed = flushSize; // the first record is flushed at once
+			for (int i = 1; i <= getRecordCount(); i++) {
+				if (cancel != null && cancel.isCancelled())
+					throw new SPSSFileException("Export cancelled after " + (i - 1) + " records");
+				record.readRecord();
+				record.trimStrings();
+				formatter.format(record);
+				out.write(formatter.getBuffer(), 0, formatter.getLength());
+				out.write('\n');
+				if (flushSize > 0) {
+					unflushed += formatter.getLength() + 1;
+					if (unflushed >= flushSize) {
+						out.flush();
+						unflushed = 0;
 					}
-					recordStr += var.getName();
-					n++;
 				}
-				out.write(recordStr + "\n");
 			}
+		} else {
+			log("WARNING: files does not contain any data");
+		}
+	}
 
-			// write data
-			out.write(getRecordFromDisk(dataFormat, true) + "\n");
-			for (int i = 2; i <= getRecordCount(); i++) {
-				out.write(getRecordFromDisk(dataFormat, false) + "\n");
+	/**
+	 * Reads the data from the disk once and exports it to several targets: each case is decoded once and formatted for every target. Each target has its own ASCII format and may be restricted to some variables.
+	 * 
+	 * @param targets
+	 * @return The number of milliseconds taken to export the files
+	 * @throws SPSSFileException
+	 * @throws IOException
+	 */
+	public long exportData(List<SPSSExportTarget> targets) throws IOException, SPSSFileException {
+		// check arguments
+		Iterator<SPSSExportTarget> it = targets.iterator();
+		while (it.hasNext()) {
+			SPSSExportTarget target = it.next();
+			if (target.outputStream == null && target.file == null) {
+				throw new SPSSFileException("File should not be null.");
 			}
-		} else {
+			if (target.file != null && target.file.isDirectory()) {
+				throw new SPSSFileException("File should not be a directory: " + target.file);
+			}
+			if (target.dataFormat.format != FileFormatInfo.Format.ASCII) {
+				throw new SPSSFileException("Only the ASCII formats can be exported to several targets: " + target.dataFormat.format);
+			}
+		}
+		if (!isMetadataLoaded)
+			loadMetadata();
+		start = System.currentTimeMillis();
+		SPSSRecordFormatter[] formatters = new SPSSRecordFormatter[targets.size()];
+		for (int i = 0; i < formatters.length; i++) {
+			SPSSExportTarget target = targets.get(i);
+			formatters[i] = new SPSSRecordFormatter(this, target.dataFormat, getColumnIndexes(target.variableNames));
+		}
+		OutputStream[] outs = new OutputStream[targets.size()];
+		try {
+			for (int i = 0; i < formatters.length; i++) {
+				SPSSExportTarget target = targets.get(i);
+				if (target.file != null) {
+					log("\nExporting data to " + target.file.getCanonicalPath());
+					outs[i] = new BufferedOutputStream(openOutput(target.file, target.dataFormat), 65536);
+				} else
+					outs[i] = new BufferedOutputStream(target.outputStream, 65536);
+			}
+
+			// 20070915-PH: added test for empty files
+			if (infoRecord.numberOfCases > 0) {
+				for (int i = 0; i < formatters.length; i++)
+					writeHeader(outs[i], formatters[i]);
+
+				// write data: the record is decoded once for all the targets
+				SPSSDataRecord record = new SPSSDataRecord(this);
+				record.setPosition(dataStartPosition);
+				for (int n = 1; n <= getRecordCount(); n++) {
+					record.readRecord();
+					record.trimStrings();
+					for (int i = 0; i < formatters.length; i++) {
+						formatters[i].format(record);
+						outs[i].write(formatters[i].getBuffer(), 0, formatters[i].getLength());
+						outs[i].write('\n');
+					}
+				}
+			} else {
+				log("WARNING: files does not contain any data");
+			}
+		} finally {
+			// close the files, flush the streams
+			IOException failure = null;
+			for (int i = 0; i < outs.length; i++) {
+				try {
+					if (outs[i] != null) {
+						if (targets.get(i).file != null)
+							outs[i].close();
+						else
+							outs[i].flush();
+					}
+				} catch (IOException e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+			if (failure != null)
+				throw failure;
+		}
+
+		elapsed = System.currentTimeMillis() - start;
+		log("" + elapsed + " ms, " + targets.size() + " files");
+		return (elapsed);
+	}
+
+	/**
+	 * Reads the data from the disk and exports one file per value of a variable, in a single pass. See SPSSPartitionedExport for the naming of the files.
+	 * 
+	 * @param file
+	 *            the template of the partition files (data.csv gives data_North.csv, data_South.csv...)
+	 * @param dataFormat
+	 *            an ASCII format
+	 * @param variableName
+	 *            the partition variable
+	 * @param byLabel
+	 *            if true, the partitions are named after the value labels, otherwise after the codes
+	 * @return the exporter, holding the partition files and their row counts
+	 * @throws SPSSFileException
+	 * @throws IOException
+	 */
+	public SPSSPartitionedExport exportPartitionedData(File file, FileFormatInfo dataFormat, String variableName, boolean byLabel) throws IOException, SPSSFileException {
+		// check arguments
+		if (file == null) {
+			throw new SPSSFileException("File should not be null.");
+		}
+		if (file.isDirectory()) {
+			throw new SPSSFileException("File should not be a directory: " + file);
+		}
+		if (dataFormat.format != FileFormatInfo.Format.ASCII) {
+			throw new SPSSFileException("Only the ASCII formats can be partitioned: " + dataFormat.format);
+		}
+		if (!isMetadataLoaded)
+			loadMetadata();
+		log("\nExporting data to " + file.getCanonicalPath() + " partitioned by " + variableName);
+		start = System.currentTimeMillis();
+		SPSSPartitionedExport export = new SPSSPartitionedExport(this, dataFormat, variableName, byLabel);
+		if (infoRecord.numberOfCases > 0)
+			export.export(file);
+		else
 			log("WARNING: files does not contain any data");
+		elapsed = System.currentTimeMillis() - start;
+		log("" + elapsed + " ms, " + export.getFiles().size() + " files");
+		return (export);
+	}
+
+	/**
+	 * Reads the data from the disk and exports it into shards limited by a number of rows and/or bytes, with a manifest. See SPSSShardedExport for the naming of the files.
+	 * 
+	 * @param file
+	 *            the template of the shard files (data.csv gives data-00000.csv, data-00001.csv... and data.manifest)
+	 * @param dataFormat
+	 *            an ASCII format
+	 * @param maxRows
+	 *            the maximum number of rows per shard, or 0 for no limit
+	 * @param maxBytes
+	 *            the maximum size of a shard in bytes, or 0 for no limit
+	 * @param threadCount
+	 *            the number of shards written concurrently when they are only limited by rows, or 0 to use one thread per available processor
+	 * @return the exporter, holding the shard list
+	 * @throws SPSSFileException
+	 * @throws IOException
+	 */
+	public SPSSShardedExport exportShardedData(File file, FileFormatInfo dataFormat, long maxRows, long maxBytes, int threadCount) throws IOException, SPSSFileException {
+		// check arguments
+		if (file == null) {
+			throw new SPSSFileException("File should not be null.");
+		}
+		if (file.isDirectory()) {
+			throw new SPSSFileException("File should not be a directory: " + file);
+		}
+		if (dataFormat.format != FileFormatInfo.Format.ASCII) {
+			throw new SPSSFileException("Only the ASCII formats can be sharded: " + dataFormat.format);
+		}
+		if (!isMetadataLoaded)
+			loadMetadata();
+		log("\nExporting data to " + file.getCanonicalPath() + " in shards");
+		start = System.currentTimeMillis();
+		SPSSShardedExport export = new SPSSShardedExport(this, dataFormat, maxRows, maxBytes);
+		if (threadCount > 0)
+			export.setThreadCount(threadCount);
+		export.export(file);
+		elapsed = System.currentTimeMillis() - start;
+		log("" + elapsed + " ms, " + export.getShards().size() + " shards");
+		return (export);
+	}
+
+	/**
+	 * Gets the column index of variables in the decoded records
+	 * 
+	 * @param variableNames
+	 *            the names of the variables (case insensitive), or null for all the variables
+	 * @return the index of each variable in the decode plan, or null if variableNames is null
+	 * @throws SPSSFileException
+	 *             if a variable does not exist
+	 */
+	public int[] getColumnIndexes(String[] variableNames) throws SPSSFileException {
+		if (variableNames == null)
+			return (null);
+		if (decodePlan == null)
+			throw new SPSSFileException("Metadata has not been loaded");
+		int[] indexes = new int[variableNames.length];
+		for (int i = 0; i < variableNames.length; i++) {
+			indexes[i] = -1;
+			for (int n = 0; n < decodePlan.columns.length; n++) {
+				if (decodePlan.columns[n].getName().equalsIgnoreCase(variableNames[i])) {
+					indexes[i] = n;
+					break;
+				}
+			}
+			if (indexes[i] < 0)
+				throw new SPSSFileException("Unknown variable: " + variableNames[i]);
+		}
+		return (indexes);
+	}
+
+	/**
+	 * Reads the data from the disk and exports a file based on the specified format through a pipeline of threads: the file is read in large chunks, decoded into batches of rows, formatted by several threads and written in order, so the I/O overlaps with the decoding and formatting. The metrics of the pipeline stages are logged.
+	 * 
+	 * @param file
+	 * @param dataFormat
+	 *            an ASCII format
+	 * @param formatThreads
+	 *            the number of format threads, or 0 to use one thread per available processor
+	 * @return The number of milliseconds taken to export the file
+	 * @throws SPSSFileException
+	 * @throws IOException
+	 */
+	public long exportDataPipelined(File file, FileFormatInfo dataFormat, int formatThreads) throws IOException, SPSSFileException {
+		// check arguments
+		if (file == null) {
+			throw new SPSSFileException("File should not be null.");
+		}
+		if (file.isDirectory()) {
+			throw new SPSSFileException("File should not be a directory: " + file);
+		}
+		if (dataFormat.format != FileFormatInfo.Format.ASCII) {
+			throw new SPSSFileException("Only the ASCII formats can be exported through a pipeline: " + dataFormat.format);
+		}
+		if (!isMetadataLoaded)
+			loadMetadata();
+		// write file
+		log("\nExporting data to " + file.getCanonicalPath());
+		start = System.currentTimeMillis();
+		OutputStream out = openOutput(file, dataFormat);
+		try {
+			if (infoRecord.numberOfCases > 0) {
+				SPSSExportPipeline pipeline = new SPSSExportPipeline(this, dataFormat);
+				if (formatThreads > 0)
+					pipeline.setFormatThreads(formatThreads);
+				BufferedOutputStream header = new BufferedOutputStream(out);
+				writeHeader(header, new SPSSRecordFormatter(this, dataFormat));
+				header.flush();
+				pipeline.export(out); // the batches are large enough to be written directly
+				log(pipeline.getReport());
+			} else {
+				log("WARNING: files does not contain any data");
+			}
+		} finally {
+			out.close();
+		}
+
+		elapsed = System.currentTimeMillis() - start;
+		log("" + elapsed + " ms, file size  " + file.length() / 1024 + "Kb");
+		return (elapsed);
+	}
+
+	/**
+	 * Opens an export file, compressed with gzip if requested by the format
+	 * 
+	 * @param file
+	 * @param dataFormat
+	 * @return the output stream of the file
+	 * @throws IOException
+	 */
+	OutputStream openOutput(File file, FileFormatInfo dataFormat) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		if (dataFormat.gzip)
+			out = new ParallelGzipOutputStream(out, dataFormat.compressionThreads, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+		return (out);
+	}
+
+	/**
+	 * Writes the header line of delimited/CSV ASCII exports (the variable names), if requested by the format of the formatter
+	 * 
+	 * @param out
+	 * @param formatter
+	 * @throws IOException
+	 */
+	void writeHeader(OutputStream out, SPSSRecordFormatter formatter) throws IOException {
+		FileFormatInfo dataFormat = formatter.dataFormat;
+		if (dataFormat.format == FileFormatInfo.Format.ASCII && (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.DELIMITED || dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV) && dataFormat.namesOnFirstLine) {
+			formatter.formatNames();
+			out.write(formatter.getBuffer(), 0, formatter.getLength());
+			out.write('\n');
 		}
+	}
 
-		// close file
-		out.close();
+	/**
+	 * Reads the data from the disk and exports a fixed ASCII file using several threads. The cases are split into ranges that are decoded, formatted and written in parallel: every line has the same length in bytes (non-ASCII values are padded in bytes) so each range is written at its computed offset in the output file. If the UTF-8 bytes of a value do not fit in its column, the file is exported again serially, as by exportData(). The file is deleted if the export fails.
+	 * 
+	 * @param file
+	 * @param dataFormat
+	 *            a fixed ASCII format
+	 * @param threadCount
+	 *            the number of threads, or 0 to use one thread per available processor
+	 * @return The number of milliseconds taken to export the file
+	 * @throws SPSSFileException
+	 *             if the format is not fixed ASCII
+	 * @throws IOException
+	 */
+	public long exportFixedData(File file, FileFormatInfo dataFormat, int threadCount) throws IOException, SPSSFileException {
+		// check arguments
+		if (file == null) {
+			throw new SPSSFileException("File should not be null.");
+		}
+		if (file.isDirectory()) {
+			throw new SPSSFileException("File should not be a directory: " + file);
+		}
+		if (dataFormat.format != FileFormatInfo.Format.ASCII || dataFormat.asciiFormat != FileFormatInfo.ASCIIFormat.FIXED) {
+			throw new SPSSFileException("Parallel export requires the fixed ASCII format: " + dataFormat);
+		}
+		if (!isMetadataLoaded)
+			loadMetadata();
+		if (threadCount <= 0)
+			threadCount = Runtime.getRuntime().availableProcessors();
+		// write file
+		log("\nExporting data to " + file.getCanonicalPath() + " using " + threadCount + " threads");
+		start = System.currentTimeMillis();
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		boolean done = false;
+		try {
+			out.setLength(0);
+			if (getRecordCount() > 0) {
+				int lineLength = new SPSSRecordFormatter(this, dataFormat).getRecordLength() + 1;
+				out.setLength((long) getRecordCount() * lineLength);
+				SPSSDataPosition[] ranges = getDataPositions(Math.min(threadCount, getRecordCount()));
+				AtomicBoolean failed = new AtomicBoolean();
+				AtomicBoolean overflow = new AtomicBoolean();
+				ExecutorService executor = Executors.newFixedThreadPool(ranges.length);
+				try {
+					List<Future<Object>> results = new ArrayList<Future<Object>>();
+					for (int i = 0; i < ranges.length; i++) {
+						int end = (i + 1 < ranges.length) ? ranges[i + 1].caseNumber : getRecordCount();
+						results.add(executor.submit(new SPSSFixedExportTask(this, dataFormat, ranges[i], end - ranges[i].caseNumber, out.getChannel(), failed, overflow)));
+					}
+					waitFor(results);
+				} finally {
+					// the tasks are not interrupted: this would close the channel of the file
+					executor.shutdown();
+				}
+				if (overflow.get()) {
+					log("WARNING: values do not fit in their column in bytes, exporting serially");
+					out.setLength(0);
+					out.seek(0);
+					OutputStream serial = new BufferedOutputStream(Channels.newOutputStream(out.getChannel()), 65536);
+					writeData(serial, dataFormat, null, 0);
+					serial.flush();
+				}
+			} else {
+				log("WARNING: files does not contain any data");
+			}
+			done = true;
+		} finally {
+			out.close();
+			if (!done)
+				file.delete();
+		}
 
 		elapsed = System.currentTimeMillis() - start;
 		log("" + elapsed + " ms, file size  " + file.length() / 1024 + "Kb");
 		return (elapsed);
 	}
 
+	/**
+	 * Waits for the tasks of a parallel export and rethrows the first failure
+	 * 
+	 * @param results
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	void waitFor(List<Future<Object>> results) throws IOException, SPSSFileException {
+		Throwable failure = null;
+		Iterator<Future<Object>> it = results.iterator();
+		while (it.hasNext()) {
+			Future<Object> result = it.next();
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SPSSFileException("Export interrupted");
+			}
+		}
+		rethrow(failure);
+	}
+
+	/**
+	 * Rethrows the failure of a task of a parallel export
+	 * 
+	 * @param failure
+	 *            the exception thrown by the task, or null
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	static void rethrow(Throwable failure) throws IOException, SPSSFileException {
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof SPSSFileException)
+			throw (SPSSFileException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null)
+			throw new SPSSFileException("Export failed: " + failure);
+	}
+
+	/**
+	 * Splits the cases of the file into ranges of (nearly) equal size.
+	 * 
+	 * @param count
+	 *            the number of ranges
+	 * @return the position of the first case of each range
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public SPSSDataPosition[] getDataPositions(int count) throws IOException, SPSSFileException {
+		if (!isMetadataLoaded)
+			loadMetadata();
+		count = Math.max(1, Math.min(count, getRecordCount()));
+		int[] caseNumbers = new int[count];
+		for (int i = 0; i < count; i++)
+			caseNumbers[i] = (int) ((long) getRecordCount() * i / count);
+		return (getDataPositions(caseNumbers));
+	}
+
+	/**
+	 * Gets the position of some cases. The positions of uncompressed cases are computed, compressed files are scanned once up to the last case, reading only the compression codes.
+	 * 
+	 * @param caseNumbers
+	 *            the 0-based numbers of the cases, in ascending order
+	 * @return the position of each case
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public SPSSDataPosition[] getDataPositions(int[] caseNumbers) throws IOException, SPSSFileException {
+		if (!isMetadataLoaded)
+			loadMetadata();
+		SPSSDataPosition[] positions = new SPSSDataPosition[caseNumbers.length];
+		SPSSDataRecord record = new SPSSDataRecord(this);
+		record.setPosition(dataStartPosition);
+		int caseNumber = 0;
+		for (int i = 0; i < caseNumbers.length; i++) {
+			int next = caseNumbers[i];
+			if (next < caseNumber || next > getRecordCount())
+				throw new SPSSFileException("Invalid case number [" + next + "]");
+			if (decodePlan.isCompressed) {
+				while (caseNumber < next) {
+					record.skipRecord();
+					caseNumber++;
+				}
+			} else {
+				record.setPosition(dataStartPosition + (long) next * decodePlan.getRecordLength());
+				caseNumber = next;
+			}
+			positions[i] = record.getDataPosition(caseNumber);
+		}
+		return (positions);
+	}
+
+	/**
+	 * Gets a token for the end of the data, to read only the cases appended later with exportNewData(). Compressed files are scanned once, reading only the compression codes.
+	 * 
+	 * @return the token after the last case
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public SPSSResumeToken getResumeToken() throws IOException, SPSSFileException {
+		return (SPSSResumeToken.create(this, getDataPositions(new int[] { getRecordCount() })[0]));
+	}
+
+	/**
+	 * Reads the cases appended to the file since a token was taken and exports them to a stream based on the specified ASCII format. The cases before the token are not read: the token is checked against the dictionary and the last 4 KB of data before its position (see SPSSResumeToken), and the reader starts at its position. Without a token, the header line and all the cases are exported.
+	 * 
+	 * @param out
+	 *            the destination of the export, which is not closed
+	 * @param dataFormat
+	 *            an ASCII format
+	 * @param token
+	 *            the token returned by the previous export or by getResumeToken(), or null to export all the cases
+	 * @return the token after the last case, for the next export
+	 * @throws SPSSFileException
+	 *             if the token does not match the file (the file must then be exported again from the first case)
+	 * @throws IOException
+	 */
+	public SPSSResumeToken exportNewData(OutputStream out, FileFormatInfo dataFormat, SPSSResumeToken token) throws IOException, SPSSFileException {
+		if (dataFormat.format != FileFormatInfo.Format.ASCII)
+			throw new SPSSFileException("Only the ASCII formats can be exported incrementally");
+		if (!isMetadataLoaded)
+			loadMetadata();
+		SPSSRecordFormatter formatter = new SPSSRecordFormatter(this, dataFormat);
+		SPSSDataRecord record = new SPSSDataRecord(this);
+		int first = 0;
+		if (token == null) {
+			writeHeader(out, formatter);
+			record.setPosition(dataStartPosition);
+		} else {
+			record.setDataPosition(token.validate(this));
+			first = token.caseCount;
+		}
+		log("\nExporting cases " + (first + 1) + " to " + getRecordCount());
+		for (int i = first; i < getRecordCount(); i++) {
+			record.readRecord();
+			record.trimStrings();
+			formatter.format(record);
+			out.write(formatter.getBuffer(), 0, formatter.getLength());
+			out.write('\n');
+		}
+		return (SPSSResumeToken.create(this, record.getDataPosition(Math.max(first, getRecordCount()))));
+	}
+
 	/**
 	 * Determines if the data section of the file is compressed
 	 * 
@@ -608,20 +1225,20 @@ public class SPSSFile extends RandomAccessFile {
 			elem = (Element) variableSchemeReference.appendChild(doc.createElementNS(SPSSFile.DDI3_REUSABLE_NAMESPACE, "ID"));
 			elem.setTextContent(getDDI3DefaultVariableSchemeID());
 
-			// Create category schemes (one per variable with label set)
+			// Create category schemes (one per shared label set, written with the first variable using it)
 			Iterator varIterator = variableMap.keySet().iterator();
 			while (varIterator.hasNext()) {
 				SPSSVariable var = variableMap.get(varIterator.next());
-				if (var.hasValueLabels()) {
+				if (var.hasValueLabels() && var.isCategorySchemeOwner()) {
 					logicalProduct.appendChild(var.getDDI3CategoryScheme(doc));
 				}
 			}
 
-			// Create code schemes (one per variable with label set)
+			// Create code schemes (one per shared label set, the other variables reference it)
 			varIterator = variableMap.keySet().iterator();
 			while (varIterator.hasNext()) {
 				SPSSVariable var = variableMap.get(varIterator.next());
-				if (var.hasValueLabels()) {
+				if (var.hasValueLabels() && var.isCategorySchemeOwner()) {
 					logicalProduct.appendChild(var.getDDI3CodeScheme(doc));
 				}
 			}
@@ -1007,27 +1624,12 @@ public class SPSSFile extends RandomAccessFile {
 			throw new SPSSFileException("Metadata has not been loaded");
 		if (!isDataLoaded)
 			throw new SPSSFileException("Data has not been loaded");
-		String recordStr = "";
 		if (obsNumber < 1 || obsNumber > getRecordCount()) {
 			throw new SPSSFileException("Invalid record number [" + obsNumber + ". Range is 1 to " + getRecordCount() + "]");
-		} else {
-			Iterator varIterator = variableMap.keySet().iterator();
-			int n = 1;
-			while (varIterator.hasNext()) {
-				// prefix
-				if (n > 1) {
-					if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.DELIMITED)
-						recordStr += dataFormat.asciiDelimiter;
-					else if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV)
-						recordStr += ",";
-				}
-				// value
-				SPSSVariable var = variableMap.get(varIterator.next());
-				recordStr += var.getValueAsString(obsNumber, dataFormat);
-				n++;
-			}
 		}
-		return (recordStr);
+		SPSSRecordFormatter formatter = getRecordFormatter(dataFormat);
+		formatter.format(obsNumber);
+		return (formatter.toString());
 	}
 
 	/**
@@ -1044,37 +1646,34 @@ public class SPSSFile extends RandomAccessFile {
 		if (!isMetadataLoaded)
 			loadMetadata();
 
-		String recordStr = "";
-
-		// read record
-		SPSSDataRecord data = new SPSSDataRecord();
-
 		// rewind if necessary
-		if (rewind) {
-			seek(dataStartPosition);
-			SPSSDataRecord.clusterIndex = 8; // must reset static member of SPSSDataRecord as well
+		if (rewind || dataRecord == null) {
+			if (dataRecord == null)
+				dataRecord = new SPSSDataRecord(this);
+			dataRecord.setPosition(dataStartPosition);
 		}
 
 		// Read data
-		data.read(this, true);
+		dataRecord.readRecord();
+		dataRecord.storeRecord(true);
 
-		// read variables
-		Iterator varIterator = variableMap.keySet().iterator();
-		int n = 1;
-		while (varIterator.hasNext()) {
-			// prefix
-			if (n > 1) {
-				if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.DELIMITED)
-					recordStr += dataFormat.asciiDelimiter;
-				else if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV)
-					recordStr += ",";
-			}
-			// value
-			SPSSVariable var = variableMap.get(varIterator.next());
-			recordStr += var.getValueAsString(0, dataFormat);
-			n++;
-		}
-		return (recordStr);
+		// format the record values
+		SPSSRecordFormatter formatter = getRecordFormatter(dataFormat);
+		formatter.format(dataRecord);
+		return (formatter.toString());
+	}
+
+	/**
+	 * Gets the formatter used by getRecord and getRecordFromDisk. It is kept as long as the format options do not change.
+	 * 
+	 * @param dataFormat
+	 * @return the formatter
+	 * @throws SPSSFileException
+	 */
+	private SPSSRecordFormatter getRecordFormatter(FileFormatInfo dataFormat) throws SPSSFileException {
+		if (recordFormatter == null || !recordFormatter.isFor(dataFormat))
+			recordFormatter = new SPSSRecordFormatter(this, dataFormat);
+		return (recordFormatter);
 	}
 
 	/**
@@ -1110,6 +1709,27 @@ public class SPSSFile extends RandomAccessFile {
 			return ((SPSSVariable) variableMap.values().toArray()[index]);
 	}
 
+	/**
+	 * Reads the raw data of a record type 7 that was skipped when loading the dictionary (unknown subtype or subtype listed in skippedRecord7Subtypes).
+	 * 
+	 * @param subtype
+	 *            the record subtype
+	 * @return the data bytes of the first record with this subtype, or null if no such record was skipped
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public byte[] getExtensionRecordData(int subtype) throws IOException, SPSSFileException {
+		if (extensionRecords == null)
+			throw new SPSSFileException("Metadata has not been loaded");
+		Iterator<SPSSRecordType7> it = extensionRecords.iterator();
+		while (it.hasNext()) {
+			SPSSRecordType7 record7 = it.next();
+			if (record7.getSubtype() == subtype)
+				return (record7.getData(this));
+		}
+		return (null);
+	}
+
 	/**
 	 * Returns the total number of variables in the file.
 	 * 
@@ -1131,11 +1751,12 @@ public class SPSSFile extends RandomAccessFile {
 			throw new SPSSFileException("Error: data location pointer not initialized.");
 
 		}
-		SPSSDataRecord data = new SPSSDataRecord();
-		seek(dataStartPosition);
+		SPSSDataRecord data = new SPSSDataRecord(this);
+		data.setPosition(dataStartPosition);
 		for (int i = 0; i < infoRecord.numberOfCases; i++) {
-			// log("\nRECORD "+(i+1)+" offset "+this.getFilePointer());
-			data.read(this);
+			// log("\nRECORD "+(i+1)+" offset "+data.getPosition());
+			data.readRecord();
+			data.storeRecord(false);
 		}
 		isDataLoaded = true;
 	}
@@ -1154,6 +1775,7 @@ public class SPSSFile extends RandomAccessFile {
 		if (isMetadataLoaded)
 			throw new SPSSFileException("Metadata is already loaded");
 
+		Charset dictionaryCharset = charset; // < the charset used to decode the dictionary strings
 		int varIndex = 0;
 		seek(0);
 
@@ -1164,6 +1786,7 @@ public class SPSSFile extends RandomAccessFile {
 
 		// Init Type 2 records map (variables) (need "linked" hash map to retain natural order)
 		variableMap = new LinkedHashMap<Integer, SPSSVariable>();
+		categorySchemes = new HashMap<ByteBuffer, SPSSCategoryScheme>();
 
 		// Read Type 2 records (at least one)
 		// This was changed from for(int i=0; i < this.infoRecord.OBSperObservation; i++) {
@@ -1198,31 +1821,7 @@ public class SPSSFile extends RandomAccessFile {
 				variableMap.put(count, var);
 				var.variableNumber = variableMap.size();
 
-				// add missing values as categories
-				if (type2Record.missingValueFormatCode > 0) {
-					// 1-3 --> discrete missing value codes (up to three)
-					for (int j = 0; j < type2Record.missingValueFormatCode; j++) {
-						// if the value does not exist as a regular category, we need to create the catgry
-						SPSSVariableCategory cat = var.addCategory(type2Record.missingValue[j], "");
-						cat.isMissing = true;
-
-					}
-				} else if (type2Record.missingValueFormatCode <= -2) {
-					// -2 --> range of missing value codes
-					// Note1: This is only allowed for numeric variable
-					// Note2: We assume that the range ius made of integral values and increments by 1!!
-					int from = (int) SPSSUtils.byte8ToDouble(type2Record.missingValue[0]);
-					int to = (int) SPSSUtils.byte8ToDouble(type2Record.missingValue[1]);
-					for (int j = from; j <= to; j++) {
-						SPSSVariableCategory cat = ((SPSSNumericVariable) var).addCategory((double) j, "");
-						cat.isMissing = true;
-					}
-					if (type2Record.missingValueFormatCode == -3) {
-						// -3 --> an extra discrete value is also specified
-						SPSSVariableCategory cat = var.addCategory(type2Record.missingValue[2], "");
-						cat.isMissing = true;
-					}
-				}
+				// missing values are added as categories when the categories are first needed
 			}
 			// read next record type
 			count++;
@@ -1246,6 +1845,7 @@ public class SPSSFile extends RandomAccessFile {
 		}
 
 		// Loop over other records until we find the record type 999
+		extensionRecords = new ArrayList<SPSSRecordType7>();
 		do {
 			// get filePointer and read the record type
 			filePointer = getFilePointer();
@@ -1254,9 +1854,9 @@ public class SPSSFile extends RandomAccessFile {
 			case 3: // Value label sets (and associated variableMap index record type 4)
 				// rewind
 				seek(filePointer);
-				// read type 3
+				// index type 3 (the labels are decoded when first needed)
 				SPSSRecordType3 record3 = new SPSSRecordType3();
-				record3.read(this);
+				record3.index(this);
 				log(record3.toString());
 
 				// read type 4 record (that must follow type 3!)
@@ -1268,12 +1868,6 @@ public class SPSSFile extends RandomAccessFile {
 				for (int i = 0; i < record4.numberOfVariables; i++) {
 					SPSSVariable var = variableMap.get(record4.variableIndex[i] - 1); // SPSS variableMap index is 1-based
 					var.valueLabelRecord = record3;
-					// add each category to the variable list
-					Iterator catIterator = record3.valueLabel.keySet().iterator();
-					while (catIterator.hasNext()) {
-						byte[] key = (byte[]) catIterator.next();
-						SPSSVariableCategory cat = var.addCategory(key, record3.valueLabel.get(key));
-					}
 				}
 				break;
 			case 6:
@@ -1290,6 +1884,9 @@ public class SPSSFile extends RandomAccessFile {
 				subrecordType = readSPSSInt();
 				// rewind
 				seek(filePointer);
+				// unwanted subtypes are skipped like unknown ones
+				if (skippedRecord7Subtypes.contains(subrecordType))
+					subrecordType = -1;
 				switch (subrecordType) {
 				case 3:
 					integerInformationRecord = new SPSSRecordType7Subtype3();
@@ -1324,27 +1921,48 @@ public class SPSSFile extends RandomAccessFile {
 					longVariableNamesRecord.read(this);
 					log(longVariableNamesRecord.toString());
 					// update variables
+					// the record has no entry for the segments of very long strings: match on the short name
+					Map<String, SPSSVariable> shortNameMap = new HashMap<String, SPSSVariable>();
+					Iterator<SPSSVariable> varIt = variableMap.values().iterator();
+					while (varIt.hasNext()) {
+						SPSSVariable var = varIt.next();
+						shortNameMap.put(var.variableShortName.toUpperCase(), var);
+					}
 					Iterator it = longVariableNamesRecord.nameMap.entrySet().iterator();
-					varIndex = 0;
 					while (it.hasNext()) {
 						Map.Entry entry = (Map.Entry) it.next();
-						SPSSVariable var = getVariable(varIndex);
-						// make sure the short name matches and that it's not a string continuation
-						// daxplore: variableTypeCode seems to be 0 for all but the first variable (why? correct?)
-						// daxplore: disabled check to be able to get long variable names
-						if (/* var.variableRecord.variableTypeCode!=0 && */var.variableShortName.equalsIgnoreCase((String) entry.getKey())) {
+						SPSSVariable var = shortNameMap.get(((String) entry.getKey()).toUpperCase());
+						if (var != null) {
 							var.variableName = (String) entry.getValue();
 						}
-						/*
-						 * else { log(var.variableShortName+"!="+entry.getKey()); }
-						 */
-						varIndex++;
 					}
 					break;
-				default: // generic type 7
+				case 14: // Very long string variables
+					veryLongStringsRecord = new SPSSRecordType7Subtype14();
+					veryLongStringsRecord.read(this);
+					log(veryLongStringsRecord.toString());
+					break;
+				case 20: // Character encoding
+					encodingRecord = new SPSSRecordType7Subtype20();
+					encodingRecord.read(this);
+					log(encodingRecord.toString());
+					// use the file encoding unless a charset was given to the constructor
+					if (charset == null) {
+						charset = encodingRecord.getCharset();
+						if (charset == null)
+							log("Encoding " + encodingRecord.encoding + " is not supported, using the default charset");
+					}
+					break;
+				case 21: // Long string value labels
+					longStringValueLabelsRecord = new SPSSRecordType7Subtype21();
+					longStringValueLabelsRecord.read(this);
+					log(longStringValueLabelsRecord.toString());
+					break;
+				default: // generic type 7: the data is skipped
 					SPSSRecordType7 record7 = new SPSSRecordType7();
 					record7.read(this);
 					log(record7.toString());
+					extensionRecords.add(record7);
 					break;
 				}
 				break;
@@ -1358,14 +1976,93 @@ public class SPSSFile extends RandomAccessFile {
 					throw new SPSSFileException("Error reading record type 999: Non-zero value found.");
 				// This location s where the data starts
 				dataStartPosition = getFilePointer();
+				// the segments of very long strings become a single variable
+				if (veryLongStringsRecord != null)
+					mergeVeryLongStrings();
+				// long string value labels refer to the merged variables
+				if (longStringValueLabelsRecord != null)
+					addLongStringValueLabels();
+				// compile the record decode plan
+				decodePlan = new SPSSDecodePlan(this, count);
 				break;
 			default:
 				throw new SPSSFileException("Read error: invalid record type [" + recordType + "]");
 			}
 		} while (recordType != 999);
+
+		// the dictionary strings were decoded before the encoding record was found: read them again
+		if (dictionaryCharset == null && charset != null && !charset.equals(Charset.defaultCharset())) {
+			log("\nRe-reading dictionary with encoding " + charset.name());
+			loadMetadata();
+			return;
+		}
 		isMetadataLoaded = true;
 	}
 
+	/**
+	 * Replaces the segments of each very long string (record type 7 subtype 14) by a single variable. The first segment keeps its place in the dictionary and gets the full width, the other segments are removed.
+	 * 
+	 * @throws SPSSFileException
+	 */
+	private void mergeVeryLongStrings() throws SPSSFileException {
+		List<Map.Entry<Integer, SPSSVariable>> entries = new ArrayList<Map.Entry<Integer, SPSSVariable>>(variableMap.entrySet());
+		Map<Integer, SPSSVariable> mergedMap = new LinkedHashMap<Integer, SPSSVariable>();
+		for (int i = 0; i < entries.size(); i++) {
+			Map.Entry<Integer, SPSSVariable> entry = entries.get(i);
+			SPSSVariable var = entry.getValue();
+			mergedMap.put(entry.getKey(), var);
+			var.variableNumber = mergedMap.size();
+
+			Integer width = null;
+			Iterator<Map.Entry<String, Integer>> it = veryLongStringsRecord.widthMap.entrySet().iterator();
+			while (width == null && it.hasNext()) {
+				Map.Entry<String, Integer> widthEntry = it.next();
+				if (widthEntry.getKey().equalsIgnoreCase(var.variableShortName))
+					width = widthEntry.getValue();
+			}
+			if (width == null || var.type != SPSSVariable.VariableType.STRING)
+				continue;
+
+			// the value is split into segments of 255 characters, each stored in a 256-byte string
+			SPSSStringVariable strVar = (SPSSStringVariable) var;
+			int segments = (width + 251) / 252;
+			if (i + segments > entries.size())
+				throw new SPSSFileException("Error merging very long string " + var.variableShortName + ": " + segments + " segments expected, only " + (entries.size() - i) + " variables left");
+			strVar.segmentSlot = new int[segments];
+			strVar.segmentWidth = new int[segments];
+			for (int j = 0; j < segments; j++) {
+				Map.Entry<Integer, SPSSVariable> segment = entries.get(i + j);
+				if (segment.getValue().type != SPSSVariable.VariableType.STRING)
+					throw new SPSSFileException("Error merging very long string " + var.variableShortName + ": segment " + segment.getValue().variableShortName + " is not a string");
+				strVar.segmentSlot[j] = segment.getKey();
+				strVar.segmentWidth[j] = segment.getValue().variableRecord.variableTypeCode;
+			}
+			// the segment records declare at most 255 characters, the formats carry the full width
+			strVar.variableRecord.printFormatWidth = width;
+			strVar.variableRecord.writeFormatWidth = width;
+			i += segments - 1;
+		}
+		variableMap = mergedMap;
+	}
+
+	/**
+	 * Associates the long string value labels (record type 7 subtype 21) with their variables
+	 */
+	private void addLongStringValueLabels() {
+		Iterator<SPSSRecordType7Subtype21.LongStringValueLabels> labelsIterator = longStringValueLabelsRecord.variableLabels.iterator();
+		while (labelsIterator.hasNext()) {
+			SPSSRecordType7Subtype21.LongStringValueLabels labels = labelsIterator.next();
+			Iterator<SPSSVariable> varIterator = variableMap.values().iterator();
+			while (varIterator.hasNext()) {
+				SPSSVariable var = varIterator.next();
+				if (var.type == SPSSVariable.VariableType.STRING && (labels.variableName.equalsIgnoreCase(var.variableName) || labels.variableName.equalsIgnoreCase(var.variableShortName))) {
+					var.longStringValueLabels = labels;
+					break;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Logs a message to the console.
 	 * 
@@ -1429,6 +2126,50 @@ public class SPSSFile extends RandomAccessFile {
 		return (SPSSUtils.byte4ToInt(buffer));
 	}
 
+	/**
+	 * Closes the file. The value labels that have not been decoded yet are read first, so the categories of the variables remain available once the file is closed.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			if (isMetadataLoaded && getChannel().isOpen()) {
+				Iterator<SPSSVariable> it = variableMap.values().iterator();
+				while (it.hasNext()) {
+					SPSSVariable var = it.next();
+					if (var.categoriesPending && var.valueLabelRecord != null)
+						var.valueLabelRecord.readData(this);
+				}
+			}
+		} catch (SPSSFileException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			super.close();
+		}
+	}
+
+	/**
+	 * Reads bytes at a given position without moving the file pointer. This is safe to use from several threads.
+	 * 
+	 * @param position
+	 *            the file position to read from
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 *            the number of bytes to read
+	 * @return the number of bytes read, less than length only at the end of the file
+	 * @throws IOException
+	 */
+	int readAt(long position, byte[] buffer, int offset, int length) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buffer, offset, length);
+		FileChannel channel = getChannel();
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, position + bb.position() - offset) < 0)
+				break;
+		}
+		return (bb.position() - offset);
+	}
+
 	/**
 	 * Reads a string from the SPSS file
 	 * 
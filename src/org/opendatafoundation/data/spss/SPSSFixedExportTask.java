@@ -0,0 +1,107 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opendatafoundation.data.FileFormatInfo;
+
+/**
+ * Exports a range of cases of a parallel fixed ASCII export. All the lines have the same length in bytes, so the task writes its cases at their computed offset in the output file with positional writes, independently of the other tasks.
+ * 
+ */
+class SPSSFixedExportTask implements Callable<Object> {
+	static final int CHUNK_SIZE = 1 << 20; // < approximate size of the blocks written to the output file
+
+	final SPSSFile file;
+	final FileFormatInfo dataFormat;
+	final SPSSDataPosition start; // < the position of the first case of the range
+	final int caseCount; // < the number of cases of the range
+	final FileChannel out;
+	final AtomicBoolean failed; // < set when a task of the export fails, the other tasks then stop
+	final AtomicBoolean overflow; // < set when a value does not fit in its column in bytes, the file must then be exported serially
+
+	SPSSFixedExportTask(SPSSFile file, FileFormatInfo dataFormat, SPSSDataPosition start, int caseCount, FileChannel out, AtomicBoolean failed, AtomicBoolean overflow) {
+		this.file = file;
+		this.dataFormat = dataFormat;
+		this.start = start;
+		this.caseCount = caseCount;
+		this.out = out;
+		this.failed = failed;
+		this.overflow = overflow;
+	}
+
+	public Object call() throws IOException, SPSSFileException {
+		try {
+			SPSSRecordFormatter formatter = new SPSSRecordFormatter(file, dataFormat);
+			int lineLength = formatter.getRecordLength() + 1;
+			int linesPerChunk = Math.max(1, CHUNK_SIZE / lineLength);
+			byte[] chunk = new byte[linesPerChunk * lineLength];
+			long position = (long) start.caseNumber * lineLength;
+
+			SPSSDataRecord record = new SPSSDataRecord(file);
+			record.setDataPosition(start);
+			int remaining = caseCount;
+			while (remaining > 0 && !failed.get()) {
+				int lines = Math.min(linesPerChunk, remaining);
+				for (int i = 0; i < lines; i++) {
+					record.readRecord();
+					record.trimStrings();
+					if (!formatter.tryFormatFixedBytes(record)) {
+						overflow.set(true);
+						failed.set(true);
+						return (null);
+					}
+					System.arraycopy(formatter.getBuffer(), 0, chunk, i * lineLength, lineLength - 1);
+					chunk[(i + 1) * lineLength - 1] = '\n';
+				}
+				ByteBuffer bb = ByteBuffer.wrap(chunk, 0, lines * lineLength);
+				while (bb.hasRemaining())
+					position += out.write(bb, position);
+				remaining -= lines;
+			}
+			return (null);
+		} catch (IOException e) {
+			failed.set(true);
+			throw e;
+		} catch (SPSSFileException e) {
+			failed.set(true);
+			throw e;
+		} catch (RuntimeException e) {
+			failed.set(true);
+			throw e;
+		}
+	}
+}
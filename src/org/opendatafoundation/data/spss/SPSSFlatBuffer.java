@@ -0,0 +1,240 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A minimal FlatBuffers encoder for the metadata of the Arrow IPC format. The buffer is described as a tree of tables, strings and vectors, then serialized in one pass with each node written before its children, so every offset points forward as required by the FlatBuffers format.
+ */
+final class SPSSFlatBuffer {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** A node of the buffer */
+	static abstract class Node {
+	}
+
+	/** A table: scalar fields and offsets to other nodes, indexed by field slot */
+	static class Table extends Node {
+		List<long[]> scalars = new ArrayList<long[]>(); // < {slot, size, value}
+		List<Object[]> offsets = new ArrayList<Object[]>(); // < {slot, node}
+		int slotCount = 0;
+
+		Table add(int slot, int size, long value) {
+			scalars.add(new long[] { slot, size, value });
+			slotCount = Math.max(slotCount, slot + 1);
+			return (this);
+		}
+
+		Table addLong(int slot, long value) {
+			return (add(slot, 8, value));
+		}
+
+		Table addInt(int slot, int value) {
+			return (add(slot, 4, value));
+		}
+
+		Table addShort(int slot, int value) {
+			return (add(slot, 2, value));
+		}
+
+		Table addByte(int slot, int value) {
+			return (add(slot, 1, value));
+		}
+
+		Table addBool(int slot, boolean value) {
+			return (add(slot, 1, value ? 1 : 0));
+		}
+
+		Table addOffset(int slot, Node node) {
+			offsets.add(new Object[] { slot, node });
+			slotCount = Math.max(slotCount, slot + 1);
+			return (this);
+		}
+
+		Table addString(int slot, String value) {
+			return (addOffset(slot, new StringNode(value)));
+		}
+
+		/**
+		 * Adds a union field: the type in a slot, the value table in the next slot
+		 */
+		Table addUnion(int slot, int type, Table value) {
+			addByte(slot, type);
+			return (addOffset(slot + 1, value));
+		}
+	}
+
+	/** A string */
+	static class StringNode extends Node {
+		byte[] bytes;
+
+		StringNode(String value) {
+			bytes = value.getBytes(UTF8);
+		}
+	}
+
+	/** A vector of tables or strings */
+	static class Vector extends Node {
+		List<Node> items = new ArrayList<Node>();
+
+		Vector add(Node node) {
+			items.add(node);
+			return (this);
+		}
+	}
+
+	/** A vector of structs, given as the little-endian bytes of the structs (8-byte aligned) */
+	static class StructVector extends Node {
+		byte[] bytes;
+		int count;
+
+		StructVector(byte[] bytes, int count) {
+			this.bytes = bytes;
+			this.count = count;
+		}
+	}
+
+	byte[] buffer = new byte[1024];
+	int position = 0;
+
+	/**
+	 * Serializes a buffer
+	 * 
+	 * @param root
+	 *            the root table
+	 * @return the buffer, its length padded to a multiple of 8
+	 */
+	static byte[] serialize(Table root) {
+		SPSSFlatBuffer fb = new SPSSFlatBuffer();
+		fb.position = 4;
+		fb.putInt(0, fb.write(root));
+		fb.align(8, 0);
+		return (Arrays.copyOf(fb.buffer, fb.position));
+	}
+
+	/**
+	 * Writes a node and its children
+	 * 
+	 * @return the position of the node
+	 */
+	private int write(Node node) {
+		if (node instanceof StringNode) {
+			byte[] bytes = ((StringNode) node).bytes;
+			align(4, 0);
+			int start = position;
+			reserve(4);
+			putInt(start, bytes.length);
+			int at = reserve(bytes.length + 1);
+			System.arraycopy(bytes, 0, buffer, at, bytes.length);
+			return (start);
+		} else if (node instanceof StructVector) {
+			StructVector vector = (StructVector) node;
+			align(8, 4); // the structs start on an 8-byte boundary
+			int start = reserve(4);
+			putInt(start, vector.count);
+			int at = reserve(vector.bytes.length);
+			System.arraycopy(vector.bytes, 0, buffer, at, vector.bytes.length);
+			return (start);
+		} else if (node instanceof Vector) {
+			List<Node> items = ((Vector) node).items;
+			align(4, 0);
+			int start = reserve(4 + 4 * items.size());
+			putInt(start, items.size());
+			for (int i = 0; i < items.size(); i++) {
+				int field = start + 4 + 4 * i;
+				putInt(field, write(items.get(i)) - field);
+			}
+			return (start);
+		}
+
+		Table table = (Table) node;
+		// vtable: its size, the table size, then the offset of each field in the table (0 if absent)
+		align(2, 0);
+		int vtable = reserve(4 + 2 * table.slotCount);
+		// table: the offset to the vtable, then the fields by decreasing size so each one is aligned
+		align(8, 4);
+		int start = reserve(4);
+		int[] fields = new int[table.offsets.size()]; // < the position of the offset fields, set once the children are written
+		for (int size = 8; size >= 1; size /= 2) {
+			for (int i = 0; i < table.scalars.size(); i++) {
+				long[] scalar = table.scalars.get(i);
+				if (scalar[1] != size)
+					continue;
+				int at = reserve(size);
+				for (int k = 0; k < size; k++)
+					buffer[at + k] = (byte) (scalar[2] >>> (8 * k));
+				putShort(vtable + 4 + 2 * (int) scalar[0], at - start);
+			}
+			if (size == 4) {
+				for (int i = 0; i < table.offsets.size(); i++) {
+					fields[i] = reserve(4);
+					putShort(vtable + 4 + 2 * (Integer) table.offsets.get(i)[0], fields[i] - start);
+				}
+			}
+		}
+		putShort(vtable, 4 + 2 * table.slotCount);
+		putShort(vtable + 2, position - start);
+		putInt(start, start - vtable);
+		for (int i = 0; i < fields.length; i++)
+			putInt(fields[i], write((Node) table.offsets.get(i)[1]) - fields[i]);
+		return (start);
+	}
+
+	/**
+	 * Pads the buffer until position % alignment == remainder
+	 */
+	private void align(int alignment, int remainder) {
+		while (position % alignment != remainder)
+			reserve(1);
+	}
+
+	private int reserve(int length) {
+		if (position + length > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, position + length));
+		int at = position;
+		position += length;
+		return (at);
+	}
+
+	private void putShort(int at, int value) {
+		buffer[at] = (byte) value;
+		buffer[at + 1] = (byte) (value >>> 8);
+	}
+
+	private void putInt(int at, int value) {
+		putShort(at, value);
+		putShort(at + 2, value >>> 16);
+	}
+}
@@ -0,0 +1,178 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.opendatafoundation.data.FileFormatInfo;
+
+/**
+ * Lookup table used to export the value labels of a variable instead of its codes. The table is built once per export: it holds the output bytes of each category, already escaped for CSV or padded to the column width for fixed ASCII, after applying the FileFormatInfo fallbacks for unlabeled and missing values.
+ * 
+ */
+public class SPSSLabelTable {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	static final byte[] CODE = new byte[0]; // < marks the categories whose code is written
+
+	final SPSSVariable variable;
+	final FileFormatInfo dataFormat;
+	final int width; // < the column width in fixed ASCII format (the widest of the labels and the codes)
+	final SPSSDoubleMap<byte[]> numericForms; // < output of the numeric categories
+	final SPSSByteArrayMap<byte[]> stringForms; // < output of the string categories, keyed on the raw bytes
+	final byte[] emptyForm; // < output of an EMPTY value
+	final boolean emptyMissing; // < missing values without an entry are written empty
+	final boolean emptyUnlabeled; // < unlabeled values are written empty
+
+	/**
+	 * Builds the table of a variable
+	 * 
+	 * @param variable
+	 * @param dataFormat
+	 *            the export format
+	 * @throws SPSSFileException
+	 */
+	public SPSSLabelTable(SPSSVariable variable, FileFormatInfo dataFormat) throws SPSSFileException {
+		this.variable = variable;
+		this.dataFormat = dataFormat;
+		width = getWidth(variable, dataFormat);
+		emptyMissing = dataFormat.missingValues == FileFormatInfo.LabelOutput.EMPTY;
+		emptyUnlabeled = dataFormat.unlabeledValues == FileFormatInfo.LabelOutput.EMPTY;
+		emptyForm = encode("");
+
+		int size = variable.getCategoryMap().size();
+		if (variable.type == SPSSVariable.VariableType.NUMERIC) {
+			numericForms = new SPSSDoubleMap<byte[]>(size);
+			stringForms = null;
+		} else {
+			numericForms = null;
+			stringForms = new SPSSByteArrayMap<byte[]>(size);
+		}
+		Iterator<SPSSVariableCategory> it = variable.getCategoryMap().values().iterator();
+		while (it.hasNext()) {
+			SPSSVariableCategory cat = it.next();
+			String output = getOutput(cat, dataFormat);
+			byte[] form = output == null ? CODE : output.length() == 0 ? emptyForm : encode(output);
+			if (numericForms != null)
+				numericForms.put(cat.value, form);
+			else if (cat.byteValue != null)
+				stringForms.put(cat.byteValue, form);
+		}
+	}
+
+	/**
+	 * @return the text written for a category, or null if the code is written
+	 */
+	private static String getOutput(SPSSVariableCategory cat, FileFormatInfo dataFormat) {
+		if (cat.isMissing) {
+			if (dataFormat.missingValues == FileFormatInfo.LabelOutput.EMPTY)
+				return ("");
+			if (dataFormat.missingValues == FileFormatInfo.LabelOutput.LABEL && cat.label.length() > 0)
+				return (cat.label);
+			return (null);
+		}
+		if (cat.label.length() > 0)
+			return (cat.label);
+		if (dataFormat.unlabeledValues == FileFormatInfo.LabelOutput.EMPTY)
+			return ("");
+		return (null);
+	}
+
+	/**
+	 * Computes the width of a variable column when exporting its value labels: the widest of the variable format and of the labels written.
+	 * 
+	 * @throws SPSSFileException
+	 */
+	static int getWidth(SPSSVariable variable, FileFormatInfo dataFormat) throws SPSSFileException {
+		int width = variable.variableRecord.writeFormatWidth;
+		Iterator<SPSSVariableCategory> it = variable.getCategoryMap().values().iterator();
+		while (it.hasNext()) {
+			String output = getOutput(it.next(), dataFormat);
+			if (output != null)
+				width = Math.max(width, output.length());
+		}
+		return (width);
+	}
+
+	/**
+	 * Encodes a label for the export format: escaped for CSV, left aligned in the column for fixed ASCII
+	 * 
+	 * @return the UTF-8 bytes of the label
+	 */
+	private byte[] encode(String label) {
+		if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.FIXED) {
+			char[] padding = new char[width - label.length()];
+			Arrays.fill(padding, ' ');
+			label = label + new String(padding);
+		} else if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV) {
+			label = SPSSUtils.csvEscape(label);
+		}
+		return (label.getBytes(UTF8));
+	}
+
+	/**
+	 * Gets the output of a numeric value
+	 * 
+	 * @return the bytes to write, or null if the formatted code is written
+	 */
+	public byte[] getForm(double value) {
+		byte[] form = numericForms.get(value);
+		if (form != null)
+			return (form == CODE ? null : form);
+		if (Double.isNaN(value) || variable.isMissingValueCode(value))
+			return (emptyMissing ? emptyForm : null);
+		return (emptyUnlabeled ? emptyForm : null);
+	}
+
+	/**
+	 * Gets the output of a raw string value
+	 * 
+	 * @param buffer
+	 *            the buffer holding the value
+	 * @param length
+	 *            the length of the right trimmed value
+	 * @return the bytes to write, or null if the code is written
+	 */
+	public byte[] getForm(byte[] buffer, int length) {
+		byte[] form = stringForms.get(buffer, 0, length);
+		if (form != null)
+			return (form == CODE ? null : form);
+		// string missing values are discrete: they all have a category
+		return (emptyUnlabeled ? emptyForm : null);
+	}
+
+	/**
+	 * @return the column width in fixed ASCII format
+	 */
+	public int getWidth() {
+		return (width);
+	}
+}
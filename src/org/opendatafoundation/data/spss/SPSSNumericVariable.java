@@ -29,6 +29,8 @@ package org.opendatafoundation.data.spss;
  * 
  */
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
@@ -57,6 +59,9 @@ public class SPSSNumericVariable extends SPSSVariable {
 	public double max_wgt = Double.MIN_VALUE;
 	public double mean_wgt = 0.0;
 
+	/** the decoded user missing values (the discrete values, or the range and its optional discrete value), set on first use */
+	double[] missingValues;
+
 	/**
 	 * Class constructor
 	 */
@@ -83,6 +88,8 @@ public class SPSSNumericVariable extends SPSSVariable {
 	 */
 	public SPSSVariableCategory addCategory(double value, String label) throws SPSSFileException {
 		SPSSVariableCategory cat;
+		loadCategories();
+		detachCategoryScheme();
 		String strValue = valueToString(value).trim();
 		cat = categoryMap.get(strValue);
 		if (cat == null) {
@@ -112,7 +119,20 @@ public class SPSSNumericVariable extends SPSSVariable {
 	 * @throws SPSSFileException
 	 */
 	public SPSSVariableCategory getCategory(double value) throws SPSSFileException {
-		return (categoryMap.get(valueToString(value)));
+		loadCategories();
+		if (categoryScheme != null)
+			return (categoryScheme.getCategory(value));
+		return (categoryMap.get(valueToString(value).trim()));
+	}
+
+	/**
+	 * Gets the category of the single value read from disk
+	 * 
+	 * @return the category, or null if the value has no category
+	 * @throws SPSSFileException
+	 */
+	public SPSSVariableCategory getValueCategory() throws SPSSFileException {
+		return (getCategory(value));
 	}
 
 	/**
@@ -207,7 +227,6 @@ public class SPSSNumericVariable extends SPSSVariable {
 	 * @throws SPSSFileException
 	 */
 	public String getValueAsString(int obsNumber, FileFormatInfo dataFormat) throws SPSSFileException {
-		String strValue;
 		double val;
 
 		// check range
@@ -221,6 +240,41 @@ public class SPSSNumericVariable extends SPSSVariable {
 			throw new SPSSFileException("No data availble");
 		else
 			val = data.get(obsNumber - 1);
+		return (formatValue(val, dataFormat));
+	}
+
+	/**
+	 * Formats a value based on the specified data and variable format
+	 * 
+	 * @param val
+	 *            the value
+	 * @param dataFormat
+	 *            the file format
+	 * @return the formatted value
+	 * @throws SPSSFileException
+	 */
+	public String formatValue(double val, FileFormatInfo dataFormat) throws SPSSFileException {
+		String strValue = formatUnquotedValue(val, dataFormat);
+
+		// some number formats may contain a comma
+		if (dataFormat.format == FileFormatInfo.Format.ASCII && dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV && mayContainSeparator()) {
+			strValue = SPSSUtils.csvEscape(strValue);
+		}
+		return (strValue);
+	}
+
+	/**
+	 * Formats a value based on the specified data and variable format, without the CSV escaping
+	 * 
+	 * @param val
+	 *            the value
+	 * @param dataFormat
+	 *            the file format
+	 * @return the formatted value
+	 * @throws SPSSFileException
+	 */
+	String formatUnquotedValue(double val, FileFormatInfo dataFormat) throws SPSSFileException {
+		String strValue;
 
 		// convert
 		strValue = valueToString(val);
@@ -240,7 +294,7 @@ public class SPSSNumericVariable extends SPSSVariable {
 					int dotPosition = strValue.lastIndexOf(".");
 					// TODO: when a value is less between 1 and -1 (0.1234), SPSS also removes the leading zero
 					if (dotPosition + 2 <= getLength()) { // we can fit at least one decimal
-						strValue = String.format(Locale.US, "%" + this.getLength() + "." + (this.getLength() - dotPosition - 1) + "f", value);
+						strValue = String.format(Locale.US, "%" + this.getLength() + "." + (this.getLength() - dotPosition - 1) + "f", val);
 					} else if (dotPosition <= getLength()) { // we can fit the non-decimal protion
 						strValue = Utils.leftPad(strValue.substring(1, dotPosition - 1), this.getLength());
 					} else
@@ -253,16 +307,67 @@ public class SPSSNumericVariable extends SPSSVariable {
 			strValue = strValue.trim();
 		}
 
-		// some number formats may contain a comma
-		if (dataFormat.format == FileFormatInfo.Format.ASCII) {
-			if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV) {
-				if (strValue.contains(",") || strValue.contains("\"") || strValue.contains("\n")) {
-					strValue = "\"" + strValue + "\"";
-				}
+		return (strValue);
+	}
+
+	/**
+	 * Gets the rank of a value in the user missing values of the variable, for the export formats distinguishing several missing values (.a to .c in Stata, .A to .C in SAS)
+	 * 
+	 * @param value
+	 * @return 0 if the value is not a user missing value, 1 to 3 for the discrete missing values, 1 for the range and 2 for the discrete value added to a range
+	 */
+	int getMissingValueIndex(double value) {
+		int code = variableRecord.missingValueFormatCode;
+		if (code == 0)
+			return (0);
+		double[] missingValues = getMissingValues();
+		if (code > 0) {
+			for (int i = 0; i < missingValues.length; i++) {
+				if (value == missingValues[i])
+					return (i + 1);
 			}
+		} else if (value >= missingValues[0] && value <= missingValues[1])
+			return (1);
+		else if (code == -3 && value == missingValues[2])
+			return (2);
+		return (0);
+	}
+
+	/**
+	 * Decodes the user missing values of the variable in the byte order of the file, like the data values
+	 * 
+	 * @return the discrete missing values, or the range followed by its optional discrete value
+	 */
+	double[] getMissingValues() {
+		if (missingValues == null) {
+			double[] values = new double[Math.abs(variableRecord.missingValueFormatCode)];
+			for (int i = 0; i < values.length; i++)
+				values[i] = ByteBuffer.wrap(variableRecord.missingValue[i]).order(file.isBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN).getDouble();
+			missingValues = values;
 		}
+		return (missingValues);
+	}
 
-		return (strValue);
+	/**
+	 * Determines if the write format of the variable can produce a comma, a double-quote or a line break. Fixed, scientific, currency and date formats never do, only the formats with a thousands separator (or a decimal comma) need to be escaped in CSV files.
+	 * 
+	 * @return false if the formatted values never need to be escaped
+	 */
+	boolean mayContainSeparator() {
+		switch (variableRecord.writeFormatType) {
+		case 4: // dollar
+		case 5: // fixed format
+		case 17: // scientific notation
+		case 33: // custom currency A-E
+		case 34:
+		case 35:
+		case 36:
+		case 37:
+			return (false);
+		default:
+			// dates and times
+			return (!(variableRecord.writeFormatType >= 20 && variableRecord.writeFormatType <= 30) && variableRecord.writeFormatType != 38 && variableRecord.writeFormatType != 39);
+		}
 	}
 
 	/**
@@ -0,0 +1,366 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports numeric variables as NumPy .npy files, one file per variable holding its values as little-endian doubles (dtype '&lt;f8'), which numpy.load(mmap_mode='r') maps without parsing. System missing values are written as NaN, the other values (user missing values included) as is. A metadata.json file alongside lists for each variable its file, label, SPSS format, user missing values and value labels.
+ * <p>
+ * The records are read in large chunks and the columns of each chunk are written concurrently, the next chunk being read while the previous one is written. The values of uncompressed little-endian files are copied straight from the record bytes, the other files are decoded record by record.
+ * 
+ */
+public class SPSSNumpyExport {
+	static final String METADATA_FILE = "metadata.json";
+	static final int CHUNK_BYTES = 1 << 23; // < the size of the data read at once
+	static final int HEADER_ALIGNMENT = 64; // < the .npy data starts on a multiple of 64 bytes
+	static final long NAN_BITS = Double.doubleToLongBits(Double.NaN);
+
+	final SPSSFile file;
+	final String[] variableNames; // < the exported variables, null for all the numeric variables
+	int threadCount = Runtime.getRuntime().availableProcessors();
+	int maxOpenFiles = 256;
+
+	final Map<String, File> files = new LinkedHashMap<String, File>();
+
+	/**
+	 * An exported variable
+	 */
+	class Column {
+		final SPSSNumericVariable var;
+		final int index; // < the index of the variable in the decode plan
+		final File file;
+		OutputStream out;
+
+		Column(SPSSNumericVariable var, int index, File file) {
+			this.var = var;
+			this.index = index;
+			this.file = file;
+		}
+
+		/**
+		 * Appends values to the file, which is closed again when there are too many columns to keep them all open
+		 */
+		void write(byte[] bytes, int length, boolean keepOpen) throws IOException {
+			if (out == null)
+				out = new FileOutputStream(file, true);
+			out.write(bytes, 0, length);
+			if (!keepOpen)
+				close();
+		}
+
+		void close() throws IOException {
+			if (out != null)
+				out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            the file, its metadata must be loaded
+	 * @param variableNames
+	 *            the names of the numeric variables to export, or null for all the numeric variables
+	 * @throws SPSSFileException
+	 */
+	public SPSSNumpyExport(SPSSFile file, String[] variableNames) throws SPSSFileException {
+		if (file.decodePlan == null)
+			throw new SPSSFileException("Metadata has not been loaded");
+		this.file = file;
+		this.variableNames = variableNames;
+	}
+
+	/**
+	 * Sets the number of columns written concurrently (one per available processor by default)
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	/**
+	 * Sets the maximum number of column files kept open during the export (256 by default). Above this number, the files are reopened for each chunk of records.
+	 */
+	public void setMaxOpenFiles(int maxOpenFiles) {
+		this.maxOpenFiles = maxOpenFiles;
+	}
+
+	/**
+	 * Exports the variables to a directory
+	 * 
+	 * @param directory
+	 *            the directory of the .npy files and of metadata.json, created if needed
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void export(File directory) throws IOException, SPSSFileException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new SPSSFileException("Cannot create directory " + directory);
+		final SPSSDecodePlan plan = file.decodePlan;
+		List<Column> columns = new ArrayList<Column>();
+		int[] indexes = file.getColumnIndexes(variableNames);
+		int count = indexes == null ? plan.columns.length : indexes.length;
+		for (int i = 0; i < count; i++) {
+			int index = indexes == null ? i : indexes[i];
+			SPSSVariable var = plan.columns[index];
+			if (var.type != SPSSVariable.VariableType.NUMERIC) {
+				if (indexes == null)
+					continue;
+				throw new SPSSFileException("Variable " + var.getName() + " is not numeric");
+			}
+			columns.add(new Column((SPSSNumericVariable) var, index, new File(directory, var.getName() + ".npy")));
+		}
+		int caseCount = Math.max(0, file.getRecordCount());
+
+		files.clear();
+		byte[] header = getHeader(caseCount);
+		for (int i = 0; i < columns.size(); i++) {
+			Column column = columns.get(i);
+			OutputStream out = new FileOutputStream(column.file);
+			try {
+				out.write(header);
+			} finally {
+				out.close();
+			}
+			files.put(column.var.getName(), column.file);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, columns.size())));
+		try {
+			if (!plan.isCompressed && !plan.isBigEndian)
+				copyRecords(columns, caseCount, executor);
+			else
+				decodeRecords(columns, caseCount, executor);
+		} finally {
+			// the tasks are not interrupted: this would close the channel of the file
+			executor.shutdown();
+			// after a failure the tasks of the last chunk may still be writing: the columns are closed once they have all ended
+			boolean interrupted = false;
+			while (!executor.isTerminated()) {
+				try {
+					executor.awaitTermination(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			for (int i = 0; i < columns.size(); i++)
+				columns.get(i).close();
+		}
+		writeMetadata(new File(directory, METADATA_FILE), columns, caseCount);
+	}
+
+	/**
+	 * Copies the values of an uncompressed little-endian file from the bytes of the records
+	 */
+	private void copyRecords(final List<Column> columns, int caseCount, ExecutorService executor) throws IOException, SPSSFileException {
+		final SPSSDecodePlan plan = file.decodePlan;
+		final int recordLength = plan.getRecordLength();
+		final long sysmissBits = Double.doubleToLongBits(plan.sysmiss);
+		final int[] columnSlot = new int[plan.columns.length];
+		for (int slot = 0; slot < plan.slotCount; slot++) {
+			if (plan.slotAction[slot] == SPSSDecodePlan.NUMERIC)
+				columnSlot[plan.slotColumn[slot]] = slot;
+		}
+		final int chunkRows = Math.max(1, CHUNK_BYTES / recordLength);
+		byte[][] chunks = new byte[2][];
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int start = 0, chunk = 0; start < caseCount; start += chunkRows, chunk ^= 1) {
+			final int rows = Math.min(chunkRows, caseCount - start);
+			if (chunks[chunk] == null)
+				chunks[chunk] = new byte[chunkRows * recordLength];
+			final byte[] records = chunks[chunk];
+			long position = file.dataStartPosition + (long) start * recordLength;
+			if (file.readAt(position, records, 0, rows * recordLength) < rows * recordLength)
+				throw new SPSSFileException("Error reading data: unexpected end of file at location " + position);
+			// the previous chunk is written before the next one, and its buffer is then free
+			file.waitFor(results);
+			results = writeColumns(columns, executor, new ColumnFiller() {
+				final ByteBuffer source = ByteBuffer.wrap(records).order(ByteOrder.LITTLE_ENDIAN);
+
+				public int fill(int i, Column column, ByteBuffer values) {
+					int pos = 8 * columnSlot[column.index];
+					for (int row = 0; row < rows; row++, pos += recordLength) {
+						long bits = source.getLong(pos);
+						values.putLong(8 * row, bits == sysmissBits ? NAN_BITS : bits);
+					}
+					return (rows);
+				}
+			}, chunkRows);
+		}
+		file.waitFor(results);
+	}
+
+	/**
+	 * Decodes the records of compressed or big-endian files
+	 */
+	private void decodeRecords(final List<Column> columns, int caseCount, ExecutorService executor) throws IOException, SPSSFileException {
+		final int chunkRows = Math.max(1, Math.min(CHUNK_BYTES / 8 / Math.max(1, columns.size()), 1 << 16));
+		double[][][] chunks = new double[2][][];
+		SPSSDataRecord record = new SPSSDataRecord(file);
+		record.setPosition(file.dataStartPosition);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int start = 0, chunk = 0; start < caseCount; start += chunkRows, chunk ^= 1) {
+			final int rows = Math.min(chunkRows, caseCount - start);
+			if (chunks[chunk] == null)
+				chunks[chunk] = new double[columns.size()][chunkRows];
+			final double[][] values = chunks[chunk];
+			for (int row = 0; row < rows; row++) {
+				record.readRecord();
+				for (int i = 0; i < values.length; i++)
+					values[i][row] = record.numericValues[columns.get(i).index];
+			}
+			file.waitFor(results);
+			results = writeColumns(columns, executor, new ColumnFiller() {
+				public int fill(int i, Column column, ByteBuffer buffer) {
+					double[] source = values[i];
+					for (int row = 0; row < rows; row++)
+						buffer.putDouble(8 * row, source[row]);
+					return (rows);
+				}
+			}, chunkRows);
+		}
+		file.waitFor(results);
+	}
+
+	/**
+	 * Fills the little-endian values of a column for a chunk of records
+	 */
+	interface ColumnFiller {
+		/**
+		 * @param i
+		 *            the position of the column in the export
+		 * @return the number of values
+		 */
+		int fill(int i, Column column, ByteBuffer values);
+	}
+
+	/**
+	 * Submits the tasks writing a chunk of records, each task writing a group of columns
+	 * 
+	 * @return the results of the tasks
+	 */
+	private List<Future<Object>> writeColumns(final List<Column> columns, ExecutorService executor, final ColumnFiller filler, final int chunkRows) {
+		final boolean keepOpen = columns.size() <= maxOpenFiles;
+		int groups = Math.min(threadCount, columns.size());
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int g = 0; g < groups; g++) {
+			final int group = g;
+			final int groupCount = groups;
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					ByteBuffer values = ByteBuffer.allocate(8 * chunkRows).order(ByteOrder.LITTLE_ENDIAN);
+					for (int i = group; i < columns.size(); i += groupCount) {
+						Column column = columns.get(i);
+						int rows = filler.fill(i, column, values);
+						column.write(values.array(), 8 * rows, keepOpen);
+					}
+					return (null);
+				}
+			}));
+		}
+		return (results);
+	}
+
+	/**
+	 * Builds the .npy header of a column: the magic string, the version (1.0), the length of the header and the Python dictionary describing the array, padded with spaces
+	 * 
+	 * @param rows
+	 * @return the header
+	 */
+	static byte[] getHeader(int rows) {
+		StringBuilder dict = new StringBuilder("{'descr': '<f8', 'fortran_order': False, 'shape': (" + rows + ",), }");
+		while ((10 + dict.length() + 1) % HEADER_ALIGNMENT != 0)
+			dict.append(' ');
+		dict.append('\n');
+		byte[] header = new byte[10 + dict.length()];
+		header[0] = (byte) 0x93;
+		System.arraycopy("NUMPY".getBytes(SPSSFlatBuffer.UTF8), 0, header, 1, 5);
+		header[6] = 1;
+		header[7] = 0;
+		header[8] = (byte) dict.length();
+		header[9] = (byte) (dict.length() >>> 8);
+		byte[] text = dict.toString().getBytes(SPSSFlatBuffer.UTF8);
+		System.arraycopy(text, 0, header, 10, text.length);
+		return (header);
+	}
+
+	/**
+	 * Writes metadata.json: the number of rows, the file label and the description of each exported variable
+	 */
+	private void writeMetadata(File metadata, List<Column> columns, int caseCount) throws IOException, SPSSFileException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(metadata), "UTF-8");
+		try {
+			String fileLabel = file.infoRecord.fileLabel == null ? "" : file.infoRecord.fileLabel.trim();
+			out.write("{\n\"rows\": " + caseCount + ",\n\"file_label\": " + SPSSUtils.jsonString(fileLabel) + ",\n\"variables\": [");
+			for (int i = 0; i < columns.size(); i++) {
+				SPSSNumericVariable var = columns.get(i).var;
+				String label = var.getLabel();
+				String missing = SPSSArrowWriter.getMissingValues(var);
+				String valueLabels = SPSSArrowWriter.getValueLabels(var);
+				out.write(i > 0 ? ",\n" : "\n");
+				out.write("{\"name\": " + SPSSUtils.jsonString(var.getName()));
+				out.write(", \"file\": " + SPSSUtils.jsonString(columns.get(i).file.getName()));
+				out.write(", \"label\": " + SPSSUtils.jsonString(label == null ? "" : label));
+				out.write(", \"format\": " + SPSSUtils.jsonString(var.getSPSSFormat()));
+				out.write(", \"missing\": " + (missing == null ? "null" : missing));
+				out.write(", \"value_labels\": " + (valueLabels == null ? "null" : valueLabels) + "}");
+			}
+			out.write("\n]\n}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the .npy file of each exported variable, keyed on the variable name
+	 */
+	public Map<String, File> getFiles() {
+		return (files);
+	}
+}
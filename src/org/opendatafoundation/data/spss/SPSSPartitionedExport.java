@@ -0,0 +1,375 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.opendatafoundation.data.FileFormatInfo;
+
+/**
+ * Exports the data of a file into one file per value of a partition variable, in a single pass. The partition is named after the code of the value or after its label.
+ * <p>
+ * The rows of each partition are buffered and written in large blocks. Only a bounded number of files are kept open: when the limit is reached the least recently written file is closed, and it is reopened in append mode when its partition is written again.
+ * 
+ */
+public class SPSSPartitionedExport {
+	static final byte[] NEWLINE = { '\n' };
+
+	final SPSSFile file;
+	final FileFormatInfo dataFormat;
+	final String variableName;
+	final boolean byLabel;
+	int maxOpenFiles = 64;
+	int blockSize = 65536; // < the size of the blocks written to the partition files
+	long maxBufferedBytes = 64L << 20; // < the buffers of all the partitions are flushed when they hold more than this
+
+	// the partitions by name, in the order they are found
+	final Map<String, Partition> partitions = new LinkedHashMap<String, Partition>();
+	// the partitions with an open file, least recently used first
+	final LinkedHashMap<String, Partition> openPartitions = new LinkedHashMap<String, Partition>(16, 0.75f, true);
+	final Set<String> fileNames = new HashSet<String>(); // < lower case names of the partition files
+	long bufferedBytes;
+	int reopenCount;
+
+	/**
+	 * A partition and its output file
+	 */
+	static class Partition {
+		final String name;
+		final File file;
+		byte[] buffer;
+		int length; // < number of bytes used in the buffer
+		OutputStream out; // < null when the file is closed
+		boolean created; // < the file has been created (it is then reopened in append mode)
+		long rows;
+
+		Partition(String name, File file) {
+			this.name = name;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            the file, its metadata must be loaded
+	 * @param dataFormat
+	 *            the export format
+	 * @param variableName
+	 *            the name of the partition variable
+	 * @param byLabel
+	 *            if true, the partitions are named after the value labels (values without label use their code), otherwise after the codes
+	 * @throws SPSSFileException
+	 */
+	public SPSSPartitionedExport(SPSSFile file, FileFormatInfo dataFormat, String variableName, boolean byLabel) throws SPSSFileException {
+		if (file.decodePlan == null)
+			throw new SPSSFileException("Metadata has not been loaded");
+		this.file = file;
+		this.dataFormat = dataFormat;
+		this.variableName = variableName;
+		this.byLabel = byLabel;
+	}
+
+	/**
+	 * Sets the maximum number of partition files open at the same time (64 by default)
+	 */
+	public void setMaxOpenFiles(int maxOpenFiles) {
+		this.maxOpenFiles = Math.max(1, maxOpenFiles);
+	}
+
+	/**
+	 * Sets the size of the blocks written to the partition files (64 KB by default)
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = Math.max(1024, blockSize);
+	}
+
+	/**
+	 * Sets the maximum number of bytes buffered for all the partitions (64 MB by default)
+	 */
+	public void setMaxBufferedBytes(long maxBufferedBytes) {
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+
+	/**
+	 * Exports the data. The partition files are named after the template file: the partition name is appended to the template name, before the extension (data.csv gives data_North.csv, data_South.csv...). Characters that cannot be used in a file name are replaced by '_'.
+	 * 
+	 * @param template
+	 *            the template of the partition files
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void export(File template) throws IOException, SPSSFileException {
+		int column = file.getColumnIndexes(new String[] { variableName })[0];
+		SPSSVariable variable = file.decodePlan.columns[column];
+		boolean isNumeric = variable.type == SPSSVariable.VariableType.NUMERIC;
+		SPSSStringDecoder stringDecoder = new SPSSStringDecoder(file.charset);
+		SPSSRecordFormatter formatter = new SPSSRecordFormatter(file, dataFormat);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		file.writeHeader(header, formatter);
+		byte[] headerBytes = header.toByteArray();
+
+		// the partition of each value
+		SPSSDoubleMap<Partition> valuePartitions = new SPSSDoubleMap<Partition>();
+		SPSSByteArrayMap<Partition> bytesPartitions = new SPSSByteArrayMap<Partition>();
+
+		try {
+			SPSSDataRecord record = new SPSSDataRecord(file);
+			record.setPosition(file.dataStartPosition);
+			for (int i = 1; i <= file.getRecordCount(); i++) {
+				record.readRecord();
+				record.trimStrings();
+
+				// find the partition
+				Partition partition;
+				if (isNumeric) {
+					double value = record.numericValues[column];
+					partition = valuePartitions.get(value);
+					if (partition == null) {
+						SPSSNumericVariable numVar = (SPSSNumericVariable) variable;
+						String name = Double.isNaN(value) ? "SYSMIS" : numVar.valueToString(value).trim();
+						SPSSVariableCategory cat = byLabel ? numVar.getCategory(value) : null;
+						partition = getPartition(cat != null && cat.label.length() > 0 ? cat.label : name, template, headerBytes);
+						valuePartitions.put(value, partition);
+					}
+				} else {
+					byte[] bytes = record.stringValues[column];
+					int length = record.stringLengths[column];
+					partition = bytesPartitions.get(bytes, 0, length);
+					if (partition == null) {
+						SPSSStringVariable strVar = (SPSSStringVariable) variable;
+						String name = length == 0 ? "BLANK" : stringDecoder.decode(bytes, 0, length);
+						SPSSVariableCategory cat = null;
+						if (byLabel) {
+							strVar.loadCategories();
+							if (strVar.categoryScheme != null)
+								cat = strVar.categoryScheme.getCategory(bytes, length);
+						}
+						partition = getPartition(cat != null && cat.label.length() > 0 ? cat.label : name, template, headerBytes);
+						bytesPartitions.put(Arrays.copyOf(bytes, length), partition);
+					}
+				}
+
+				// buffer the formatted record
+				formatter.format(record);
+				append(partition, formatter.getBuffer(), formatter.getLength());
+				append(partition, NEWLINE, 1);
+				partition.rows++;
+				if (bufferedBytes > maxBufferedBytes)
+					flushAll(true);
+			}
+			flushAll(false);
+		} finally {
+			// close the files
+			IOException failure = null;
+			Iterator<Partition> it = openPartitions.values().iterator();
+			while (it.hasNext()) {
+				try {
+					it.next().out.close();
+				} catch (IOException e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+			openPartitions.clear();
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	/**
+	 * Gets or creates the partition of a name
+	 * 
+	 * @throws IOException
+	 */
+	private Partition getPartition(String name, File template, byte[] headerBytes) throws IOException {
+		Partition partition = partitions.get(name);
+		if (partition == null) {
+			partition = new Partition(name, getPartitionFile(name, template));
+			partitions.put(name, partition);
+			append(partition, headerBytes, headerBytes.length);
+		}
+		return (partition);
+	}
+
+	/**
+	 * Builds a unique file name for a partition
+	 */
+	private File getPartitionFile(String name, File template) {
+		String baseName = template.getName();
+		String extension = "";
+		int dot = baseName.lastIndexOf('.');
+		if (dot > 0) {
+			extension = baseName.substring(dot);
+			baseName = baseName.substring(0, dot);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < name.length() && sb.length() < 100; i++) {
+			char c = name.charAt(i);
+			sb.append(Character.isLetterOrDigit(c) || c == '-' || c == '.' || c == '_' ? c : '_');
+		}
+		String fileName = baseName + "_" + sb + extension;
+		// names must be unique, also on case insensitive file systems
+		for (int n = 2; fileNames.contains(fileName.toLowerCase()); n++)
+			fileName = baseName + "_" + sb + "_" + n + extension;
+		fileNames.add(fileName.toLowerCase());
+		return (new File(template.getAbsoluteFile().getParentFile(), fileName));
+	}
+
+	/**
+	 * Appends bytes to the buffer of a partition, writing the buffer to the file when it is full
+	 * 
+	 * @throws IOException
+	 */
+	private void append(Partition partition, byte[] bytes, int count) throws IOException {
+		if (partition.length + count > blockSize) {
+			flush(partition);
+			if (count > blockSize) {
+				// larger than a block, written directly
+				open(partition).write(bytes, 0, count);
+				return;
+			}
+		}
+		if (partition.buffer == null || partition.length + count > partition.buffer.length) {
+			// the buffers grow up to the block size
+			int size = (partition.buffer == null) ? 1024 : partition.buffer.length;
+			while (size < partition.length + count)
+				size *= 2;
+			size = Math.min(size, blockSize);
+			partition.buffer = (partition.buffer == null) ? new byte[size] : Arrays.copyOf(partition.buffer, size);
+		}
+		System.arraycopy(bytes, 0, partition.buffer, partition.length, count);
+		partition.length += count;
+		bufferedBytes += count;
+	}
+
+	/**
+	 * Writes the buffer of a partition to its file
+	 * 
+	 * @throws IOException
+	 */
+	private void flush(Partition partition) throws IOException {
+		if (partition.length == 0)
+			return;
+		open(partition).write(partition.buffer, 0, partition.length);
+		bufferedBytes -= partition.length;
+		partition.length = 0;
+	}
+
+	/**
+	 * Writes the buffers of all the partitions, the files already open first
+	 * 
+	 * @param release
+	 *            if true, the buffers are released
+	 * @throws IOException
+	 */
+	private void flushAll(boolean release) throws IOException {
+		Partition[] open = openPartitions.values().toArray(new Partition[openPartitions.size()]);
+		for (int i = 0; i < open.length; i++)
+			flush(open[i]);
+		Iterator<Partition> it = partitions.values().iterator();
+		while (it.hasNext()) {
+			Partition partition = it.next();
+			flush(partition);
+			if (release)
+				partition.buffer = null;
+		}
+	}
+
+	/**
+	 * Opens the file of a partition, closing the least recently used file if too many files are open
+	 * 
+	 * @return the output stream of the partition
+	 * @throws IOException
+	 */
+	private OutputStream open(Partition partition) throws IOException {
+		if (openPartitions.get(partition.name) != null)
+			return (partition.out); // marked as recently used
+		if (openPartitions.size() >= maxOpenFiles) {
+			Iterator<Partition> it = openPartitions.values().iterator();
+			Partition eldest = it.next();
+			it.remove();
+			OutputStream out = eldest.out;
+			eldest.out = null;
+			out.close();
+		}
+		partition.out = new FileOutputStream(partition.file, partition.created);
+		if (partition.created)
+			reopenCount++;
+		partition.created = true;
+		openPartitions.put(partition.name, partition);
+		return (partition.out);
+	}
+
+	/**
+	 * @return the file of each partition, in the order the partitions were found
+	 */
+	public Map<String, File> getFiles() {
+		Map<String, File> files = new LinkedHashMap<String, File>();
+		Iterator<Partition> it = partitions.values().iterator();
+		while (it.hasNext()) {
+			Partition partition = it.next();
+			files.put(partition.name, partition.file);
+		}
+		return (files);
+	}
+
+	/**
+	 * @return the number of rows of each partition, in the order the partitions were found
+	 */
+	public Map<String, Long> getRowCounts() {
+		Map<String, Long> rows = new LinkedHashMap<String, Long>();
+		Iterator<Partition> it = partitions.values().iterator();
+		while (it.hasNext()) {
+			Partition partition = it.next();
+			rows.put(partition.name, partition.rows);
+		}
+		return (rows);
+	}
+
+	/**
+	 * @return the number of times a partition file was closed to respect the open file limit, then reopened
+	 */
+	public int getReopenCount() {
+		return (reopenCount);
+	}
+}
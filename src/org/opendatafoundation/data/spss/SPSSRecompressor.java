@@ -0,0 +1,509 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Rewrites an uncompressed SPSS file with bytecode compression (compression switch 1) or with ZLIB compression (.zsav, record type $FL3 and compression switch 2). The dictionary is copied verbatim, only the record type of .zsav files, the compression switch and the compression bias (if it is not set) of the header record are changed, and the data section is re-encoded.
+ * <p>
+ * The records are read in chunks which are compressed concurrently: each chunk is encoded as bytecode by a task of a thread pool, and for .zsav files the bytecode stream is cut into blocks that are deflated by the same pool. The chunks and blocks are written in order and the number of chunks in progress is bounded. A report gives for each variable the size of its values before and after the bytecode compression.
+ * 
+ */
+public class SPSSRecompressor {
+	/** Compression of the rewritten file */
+	public static enum Compression {
+		BYTECODE, ZLIB
+	};
+
+	static final int CHUNK_BYTES = 1 << 23; // < the size of the records compressed by a task
+	static final int ZLIB_BLOCK_SIZE = 0x3ff000; // < the size of the uncompressed ZLIB blocks, as written by SPSS
+	static final int HEADER_COMPRESSION_OFFSET = 72; // < the position of the compression switch in the header record
+	static final int HEADER_BIAS_OFFSET = 84; // < the position of the compression bias in the header record
+	static final double DEFAULT_BIAS = 100;
+
+	final SPSSFile file;
+	int threadCount = Runtime.getRuntime().availableProcessors();
+	List<VariableRatio> ratios = new ArrayList<VariableRatio>();
+	long sourceDataSize; // < the size of the data section of the source file
+	long targetDataSize; // < the size of the data section of the rewritten file
+
+	// record layout
+	ByteOrder order;
+	double bias;
+	int slotCount;
+	boolean[] isNumeric; // < the slots holding a numeric value (the others hold string characters or padding)
+	int[] slotVariable; // < the variable of each slot
+
+	/**
+	 * The compression of the values of a variable
+	 */
+	public static class VariableRatio {
+		final String name;
+		long uncompressedBytes; // < the size of the values in the uncompressed records
+		long compressedBytes; // < the size of the compression codes and literal values of the variable
+
+		VariableRatio(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return the name of the variable
+		 */
+		public String getName() {
+			return (name);
+		}
+
+		/**
+		 * @return the size of the values of the variable in the uncompressed file
+		 */
+		public long getUncompressedBytes() {
+			return (uncompressedBytes);
+		}
+
+		/**
+		 * @return the size of the bytecode compressed values of the variable (one byte per code, 8 bytes per literal value)
+		 */
+		public long getCompressedBytes() {
+			return (compressedBytes);
+		}
+
+		/**
+		 * @return the compression ratio (uncompressed size / compressed size)
+		 */
+		public double getRatio() {
+			return (compressedBytes == 0 ? 1 : (double) uncompressedBytes / compressedBytes);
+		}
+
+		public String toString() {
+			return (name + "\t" + uncompressedBytes + "\t" + compressedBytes + "\t" + String.format(Locale.US, "%.2f", getRatio()));
+		}
+	}
+
+	/**
+	 * The bytecode of a chunk of records
+	 */
+	static class Chunk {
+		byte[] bytes;
+		int length;
+		int rows;
+		long[] variableBytes; // < the compressed size of the values of each variable
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            an uncompressed file, its metadata must be loaded
+	 * @throws SPSSFileException
+	 *             if the file is compressed
+	 */
+	public SPSSRecompressor(SPSSFile file) throws SPSSFileException {
+		if (file.decodePlan == null)
+			throw new SPSSFileException("Metadata has not been loaded");
+		if (file.decodePlan.isCompressed)
+			throw new SPSSFileException("The file is already compressed");
+		this.file = file;
+	}
+
+	/**
+	 * Sets the number of compression threads (one per available processor by default)
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	/**
+	 * Rewrites the file
+	 * 
+	 * @param target
+	 *            the compressed file
+	 * @param compression
+	 *            the compression of the data
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void recompress(File target, Compression compression) throws IOException, SPSSFileException {
+		SPSSDecodePlan plan = file.decodePlan;
+		order = plan.isBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		bias = file.infoRecord.compressionBias != 0 ? file.infoRecord.compressionBias : DEFAULT_BIAS;
+		slotCount = plan.slotCount;
+		isNumeric = new boolean[slotCount];
+		slotVariable = new int[slotCount];
+		ratios.clear();
+		// the variables are in slot order, each one owns the slots up to the next variable
+		int column = -1;
+		Iterator<Integer> slots = file.variableMap.keySet().iterator();
+		int nextSlot = slots.hasNext() ? slots.next() : slotCount;
+		for (int slot = 0; slot < slotCount; slot++) {
+			while (slot == nextSlot) {
+				column++;
+				ratios.add(new VariableRatio(plan.columns[column].getName()));
+				nextSlot = slots.hasNext() ? slots.next() : slotCount;
+			}
+			isNumeric[slot] = plan.slotAction[slot] == SPSSDecodePlan.NUMERIC;
+			slotVariable[slot] = Math.max(0, column);
+		}
+		if (ratios.isEmpty())
+			throw new SPSSFileException("The file has no variables");
+
+		int recordLength = plan.getRecordLength();
+		long caseCount = file.getRecordCount();
+		if (caseCount < 0)
+			caseCount = (file.length() - file.dataStartPosition) / recordLength;
+		sourceDataSize = caseCount * recordLength;
+
+		// the dictionary is copied, with the new compression switch and bias
+		byte[] dictionary = new byte[(int) file.dataStartPosition];
+		if (file.readAt(0, dictionary, 0, dictionary.length) < dictionary.length)
+			throw new SPSSFileException("Error reading the dictionary: unexpected end of file");
+		ByteBuffer header = ByteBuffer.wrap(dictionary).order(order);
+		if (compression == Compression.ZLIB)
+			dictionary[3] = '3'; // $FL3
+		header.putInt(HEADER_COMPRESSION_OFFSET, compression == Compression.ZLIB ? 2 : 1);
+		header.putDouble(HEADER_BIAS_OFFSET, bias);
+
+		FileOutputStream out = new FileOutputStream(target);
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			out.write(dictionary);
+			if (compression == Compression.ZLIB) {
+				ZlibWriter zlib = new ZlibWriter(out, executor, dictionary.length);
+				writeChunks(zlib, executor, caseCount);
+				zlib.close();
+				targetDataSize = zlib.position - dictionary.length;
+			} else {
+				CountingStream counter = new CountingStream(out);
+				writeChunks(counter, executor, caseCount);
+				targetDataSize = counter.count;
+			}
+			out.close();
+			out = null;
+		} finally {
+			// the tasks are not interrupted: this would close the channel of the file
+			executor.shutdown();
+			if (out != null) {
+				out.close();
+				target.delete();
+			}
+		}
+	}
+
+	/**
+	 * Reads the records in chunks, compresses the chunks concurrently and writes their bytecode in order
+	 */
+	private void writeChunks(OutputStream out, ExecutorService executor, long caseCount) throws IOException, SPSSFileException {
+		final int recordLength = file.decodePlan.getRecordLength();
+		// a whole number of clusters in each chunk: only the last one ends with padding codes
+		final int chunkRows = Math.max(8, CHUNK_BYTES / recordLength / 8 * 8);
+		LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+		for (long start = 0; start < caseCount; start += chunkRows) {
+			final int rows = (int) Math.min(chunkRows, caseCount - start);
+			final byte[] records = new byte[rows * recordLength];
+			long position = file.dataStartPosition + start * recordLength;
+			if (file.readAt(position, records, 0, records.length) < records.length)
+				throw new SPSSFileException("Error reading data: unexpected end of file at location " + position);
+			while (pending.size() >= 2 * threadCount)
+				writeChunk(out, pending.removeFirst());
+			pending.add(executor.submit(new Callable<Chunk>() {
+				public Chunk call() {
+					return (compress(records, rows));
+				}
+			}));
+		}
+		while (!pending.isEmpty())
+			writeChunk(out, pending.removeFirst());
+	}
+
+	private void writeChunk(OutputStream out, Future<Chunk> result) throws IOException, SPSSFileException {
+		Chunk chunk = get(result);
+		out.write(chunk.bytes, 0, chunk.length);
+		for (int i = 0; i < ratios.size(); i++)
+			ratios.get(i).compressedBytes += chunk.variableBytes[i];
+		for (int slot = 0; slot < slotCount; slot++)
+			ratios.get(slotVariable[slot]).uncompressedBytes += 8L * chunk.rows;
+	}
+
+	/**
+	 * Encodes records as bytecode: numeric values are stored as a single code when they are system missing or small integers, blank string slots as a single code, the other slots as literal values following their cluster of 8 codes
+	 * 
+	 * @param records
+	 *            the uncompressed records
+	 * @param rows
+	 *            the number of records
+	 * @return the bytecode
+	 */
+	Chunk compress(byte[] records, int rows) {
+		Chunk chunk = new Chunk();
+		chunk.bytes = new byte[records.length + records.length / 8 + 8];
+		chunk.variableBytes = new long[ratios.size()];
+		ByteBuffer values = ByteBuffer.wrap(records).order(order);
+		final double sysmiss = file.decodePlan.sysmiss;
+		int clusterStart = 0; // < the position of the current cluster
+		int codeCount = 8;
+		int length = 0;
+		for (int position = 0, slot = 0; position < records.length; position += 8) {
+			if (codeCount == 8) {
+				clusterStart = length;
+				length += 8;
+				codeCount = 0;
+			}
+			int code = 253;
+			if (isNumeric[slot]) {
+				double value = values.getDouble(position);
+				if (value == sysmiss)
+					code = 255;
+				else if (value >= 1 - bias && value <= 251 - bias && value == (int) value)
+					code = (int) (value + bias);
+			} else if (SPSSSavWriter.isBlank(records, position))
+				code = 254;
+			chunk.bytes[clusterStart + codeCount++] = (byte) code;
+			if (code == 253) {
+				System.arraycopy(records, position, chunk.bytes, length, 8);
+				length += 8;
+				chunk.variableBytes[slotVariable[slot]] += 9;
+			} else
+				chunk.variableBytes[slotVariable[slot]]++;
+			if (++slot == slotCount)
+				slot = 0;
+		}
+		Arrays.fill(chunk.bytes, clusterStart + codeCount, clusterStart + 8, (byte) 0); // padding codes
+		chunk.length = length;
+		chunk.rows = rows;
+		return (chunk);
+	}
+
+	private static <T> T get(Future<T> result) throws IOException, SPSSFileException {
+		try {
+			return (result.get());
+		} catch (InterruptedException e) {
+			throw new SPSSFileException("Compression interrupted");
+		} catch (java.util.concurrent.ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new SPSSFileException("Compression failed: " + cause);
+		}
+	}
+
+	/**
+	 * @return the compression of the values of each variable, in file order
+	 */
+	public List<VariableRatio> getReport() {
+		return (ratios);
+	}
+
+	/**
+	 * @return the size of the data section of the source file
+	 */
+	public long getSourceDataSize() {
+		return (sourceDataSize);
+	}
+
+	/**
+	 * @return the size of the data section of the rewritten file (including the ZLIB header and trailer)
+	 */
+	public long getTargetDataSize() {
+		return (targetDataSize);
+	}
+
+	/**
+	 * Writes the report as a tab delimited file: a line per variable with its uncompressed size, bytecode compressed size and ratio, then a line with the sizes of the whole data section of both files
+	 * 
+	 * @param report
+	 *            the report file
+	 * @throws IOException
+	 */
+	public void writeReport(File report) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+		try {
+			out.write("variable\tuncompressedBytes\tcompressedBytes\tratio\n");
+			for (VariableRatio ratio : ratios)
+				out.write(ratio.toString() + "\n");
+			double total = targetDataSize == 0 ? 1 : (double) sourceDataSize / targetDataSize;
+			out.write("(data)\t" + sourceDataSize + "\t" + targetDataSize + "\t" + String.format(Locale.US, "%.2f", total) + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Counts the bytes written to a stream
+	 */
+	static class CountingStream extends OutputStream {
+		final OutputStream out;
+		long count;
+
+		CountingStream(OutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Writes the bytecode of a .zsav file: the ZLIB header, the blocks deflated concurrently and the trailer indexing the blocks
+	 */
+	class ZlibWriter extends OutputStream {
+		final FileOutputStream out;
+		final ExecutorService executor;
+		final long zheaderOffset;
+		long position; // < the position in the file
+		long uncompressedOffset; // < the position of the next block in the uncompressed data section
+		byte[] block = new byte[ZLIB_BLOCK_SIZE];
+		int blockLength;
+		LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+		LinkedList<Integer> pendingLengths = new LinkedList<Integer>();
+		ByteBuffer trailer = ByteBuffer.allocate(1024).order(order);
+		int blockCount;
+
+		ZlibWriter(FileOutputStream out, ExecutorService executor, long zheaderOffset) throws IOException {
+			this.out = out;
+			this.executor = executor;
+			this.zheaderOffset = zheaderOffset;
+			out.write(new byte[24]); // < the header is written once the trailer position is known
+			position = zheaderOffset + 24;
+			uncompressedOffset = zheaderOffset;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, block.length - blockLength);
+				System.arraycopy(b, off, block, blockLength, n);
+				blockLength += n;
+				off += n;
+				len -= n;
+				if (blockLength == block.length)
+					submitBlock();
+			}
+		}
+
+		private void submitBlock() throws IOException {
+			final byte[] data = block;
+			final int length = blockLength;
+			while (pending.size() >= 2 * threadCount)
+				writeBlock();
+			pending.add(executor.submit(new Callable<byte[]>() {
+				public byte[] call() {
+					Deflater deflater = new Deflater();
+					deflater.setInput(data, 0, length);
+					deflater.finish();
+					byte[] buffer = new byte[length + length / 1000 + 64];
+					int size = 0;
+					while (!deflater.finished()) {
+						if (size == buffer.length)
+							buffer = Arrays.copyOf(buffer, buffer.length * 2);
+						size += deflater.deflate(buffer, size, buffer.length - size);
+					}
+					deflater.end();
+					return (Arrays.copyOf(buffer, size));
+				}
+			}));
+			pendingLengths.add(length);
+			block = new byte[ZLIB_BLOCK_SIZE];
+			blockLength = 0;
+		}
+
+		private void writeBlock() throws IOException {
+			byte[] compressed;
+			try {
+				compressed = get(pending.removeFirst());
+			} catch (SPSSFileException e) {
+				throw new IOException(e.getMessage());
+			}
+			int length = pendingLengths.removeFirst();
+			if (trailer.remaining() < 24) {
+				ByteBuffer larger = ByteBuffer.allocate(trailer.capacity() * 2).order(order);
+				trailer.flip();
+				larger.put(trailer);
+				trailer = larger;
+			}
+			trailer.putLong(uncompressedOffset).putLong(position).putInt(length).putInt(compressed.length);
+			out.write(compressed);
+			uncompressedOffset += length;
+			position += compressed.length;
+			blockCount++;
+		}
+
+		/**
+		 * Writes the last block, the trailer and the header
+		 */
+		public void close() throws IOException {
+			if (blockLength > 0)
+				submitBlock();
+			while (!pending.isEmpty())
+				writeBlock();
+			long trailerOffset = position;
+			ByteBuffer bytes = ByteBuffer.allocate(24 + trailer.position()).order(order);
+			bytes.putLong((long) -bias).putLong(0).putInt(ZLIB_BLOCK_SIZE).putInt(blockCount);
+			trailer.flip();
+			bytes.put(trailer);
+			out.write(bytes.array());
+			position += bytes.capacity();
+			ByteBuffer header = ByteBuffer.allocate(24).order(order);
+			header.putLong(zheaderOffset).putLong(trailerOffset).putLong(bytes.capacity());
+			header.flip();
+			out.getChannel().write(header, zheaderOffset);
+		}
+	}
+}
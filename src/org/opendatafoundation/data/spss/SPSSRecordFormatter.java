@@ -0,0 +1,540 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+import java.util.Arrays;
+
+import org.opendatafoundation.data.FileFormatInfo;
+
+/**
+ * Formats the values of a data record into the UTF-8 bytes of an ASCII export line. A formatter is created once for an export format: the value label tables are built when it is created and its output buffer is reused for each record.
+ * <p>
+ * In fixed ASCII format the column offsets and the record length are computed once. A record is formatted by copying a line of spaces into the buffer and writing the ASCII bytes of each value in place, right aligned for numbers and left aligned for strings. Records holding a non-ASCII value are formatted value by value instead, unless formatFixedBytes() is used.
+ * 
+ */
+public class SPSSRecordFormatter {
+	final FileFormatInfo dataFormat;
+	final String formatKey; // < the options of dataFormat the formatter was built for
+	final SPSSVariable[] columns; // < the variables of the output columns
+	final int[] columnIndex; // < the index in the decode plan of each output column
+	final SPSSLabelTable[] labelTables; // < the value label table of each column (null when the codes are written)
+	final SPSSStringDecoder stringDecoder;
+	final boolean isCsv;
+	final boolean[] csvCheck; // < false for the numeric columns whose format never needs CSV escaping
+	final boolean isFixed;
+	final int[] columnOffset; // < the offset of each column in a fixed ASCII record, followed by the record length
+	final int[] valueWidth; // < the width of the write format of each column
+	final byte[] blankRecord; // < a fixed ASCII record filled with spaces
+	final byte[] delimiter; // < the UTF-8 bytes of the delimiter of the delimited format
+
+	byte[] buffer = new byte[4096]; // < the formatted record
+	int length; // < number of bytes used in the buffer
+
+	/**
+	 * Creates a formatter for the variables of a file
+	 * 
+	 * @param file
+	 *            the file, its metadata must be loaded
+	 * @param dataFormat
+	 *            the export format
+	 * @throws SPSSFileException
+	 */
+	public SPSSRecordFormatter(SPSSFile file, FileFormatInfo dataFormat) throws SPSSFileException {
+		this(file, dataFormat, null);
+	}
+
+	/**
+	 * Creates a formatter for a projection of the variables of a file
+	 * 
+	 * @param file
+	 *            the file, its metadata must be loaded
+	 * @param dataFormat
+	 *            the export format
+	 * @param projection
+	 *            the index in the decode plan of each output column (see SPSSFile.getColumnIndexes), or null to output all the variables
+	 * @throws SPSSFileException
+	 */
+	public SPSSRecordFormatter(SPSSFile file, FileFormatInfo dataFormat, int[] projection) throws SPSSFileException {
+		if (file.decodePlan == null)
+			throw new SPSSFileException("Metadata has not been loaded");
+		this.dataFormat = dataFormat;
+		if (projection == null) {
+			columns = file.decodePlan.columns;
+			columnIndex = new int[columns.length];
+			for (int n = 0; n < columns.length; n++)
+				columnIndex[n] = n;
+			formatKey = getFormatKey(dataFormat);
+		} else {
+			columns = new SPSSVariable[projection.length];
+			for (int n = 0; n < projection.length; n++) {
+				if (projection[n] < 0 || projection[n] >= file.decodePlan.columns.length)
+					throw new SPSSFileException("Invalid column index " + projection[n]);
+				columns[n] = file.decodePlan.columns[projection[n]];
+			}
+			columnIndex = projection.clone();
+			formatKey = getFormatKey(dataFormat) + "/" + Arrays.toString(projection);
+		}
+		stringDecoder = new SPSSStringDecoder(file.charset);
+		delimiter = String.valueOf(dataFormat.asciiDelimiter).getBytes(SPSSLabelTable.UTF8);
+		labelTables = new SPSSLabelTable[columns.length];
+		isCsv = dataFormat.format == FileFormatInfo.Format.ASCII && dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV;
+		csvCheck = new boolean[columns.length];
+		for (int n = 0; n < columns.length; n++) {
+			if (columns[n].type == SPSSVariable.VariableType.NUMERIC)
+				csvCheck[n] = isCsv && ((SPSSNumericVariable) columns[n]).mayContainSeparator();
+			else
+				csvCheck[n] = isCsv;
+		}
+		if (dataFormat.valueLabels) {
+			for (int n = 0; n < columns.length; n++) {
+				if (columns[n].hasValueLabels())
+					labelTables[n] = new SPSSLabelTable(columns[n], dataFormat);
+			}
+		}
+		isFixed = dataFormat.format == FileFormatInfo.Format.ASCII && dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.FIXED;
+		columnOffset = new int[columns.length + 1];
+		valueWidth = new int[columns.length];
+		for (int n = 0; n < columns.length; n++) {
+			valueWidth[n] = columns[n].variableRecord.writeFormatWidth;
+			columnOffset[n + 1] = columnOffset[n] + (labelTables[n] != null ? labelTables[n].width : valueWidth[n]);
+		}
+		if (isFixed) {
+			blankRecord = new byte[getRecordLength()];
+			Arrays.fill(blankRecord, (byte) ' ');
+		} else
+			blankRecord = null;
+	}
+
+	/**
+	 * @return a key holding the options of a format that change the output
+	 */
+	static String getFormatKey(FileFormatInfo dataFormat) {
+		return (dataFormat.format + "/" + dataFormat.asciiFormat + "/" + (int) dataFormat.asciiDelimiter + "/" + dataFormat.valueLabels + "/" + dataFormat.unlabeledValues + "/" + dataFormat.missingValues);
+	}
+
+	/**
+	 * @return true if this formatter produces the output of the specified format
+	 */
+	public boolean isFor(FileFormatInfo dataFormat) {
+		return (formatKey.equals(getFormatKey(dataFormat)));
+	}
+
+	/**
+	 * Formats the current values of a record. The strings of the record must be trimmed.
+	 * 
+	 * @param record
+	 * @throws SPSSFileException
+	 */
+	public void format(SPSSDataRecord record) throws SPSSFileException {
+		format(record.numericValues, record.stringValues, record.stringLengths);
+	}
+
+	/**
+	 * Formats the values of a row, given by column in the order of the decode plan (the values of the columns left out of a projection are ignored). The strings must be right trimmed.
+	 * 
+	 * @param numericValues
+	 *            the values of the numeric columns
+	 * @param stringValues
+	 *            the raw bytes of the string columns
+	 * @param stringLengths
+	 *            the trimmed length of the string values
+	 * @throws SPSSFileException
+	 */
+	public void format(double[] numericValues, byte[][] stringValues, int[] stringLengths) throws SPSSFileException {
+		if (isFixed && formatFixed(numericValues, stringValues, stringLengths, false) < 0)
+			return;
+		length = 0;
+		for (int n = 0; n < columns.length; n++) {
+			appendSeparator(n);
+			if (columns[n].type == SPSSVariable.VariableType.NUMERIC)
+				appendNumeric(n, numericValues[columnIndex[n]]);
+			else
+				appendString(n, stringValues[columnIndex[n]], stringLengths[columnIndex[n]], null);
+		}
+	}
+
+	/**
+	 * Formats an observation of the data loaded in memory
+	 * 
+	 * @param obsNumber
+	 *            the observation number (1-based)
+	 * @throws SPSSFileException
+	 */
+	public void format(int obsNumber) throws SPSSFileException {
+		length = 0;
+		for (int n = 0; n < columns.length; n++) {
+			appendSeparator(n);
+			if (columns[n].type == SPSSVariable.VariableType.NUMERIC) {
+				appendNumeric(n, ((SPSSNumericVariable) columns[n]).data.get(obsNumber - 1));
+			} else {
+				String strValue = ((SPSSStringVariable) columns[n]).data.get(obsNumber - 1);
+				byte[] bytes = labelTables[n] != null ? strValue.getBytes(stringDecoder.getCharset()) : null;
+				appendString(n, bytes, bytes != null ? bytes.length : 0, strValue);
+			}
+		}
+	}
+
+	/**
+	 * @return the length in bytes of a fixed ASCII record made of ASCII characters
+	 */
+	public int getRecordLength() {
+		return (columnOffset[columns.length]);
+	}
+
+	/**
+	 * Formats a fixed ASCII record in which every value takes exactly the width of its column in bytes. Non-ASCII values are padded in bytes rather than in characters, so all the records have the length returned by getRecordLength().
+	 * 
+	 * @param record
+	 * @throws SPSSFileException
+	 *             if the UTF-8 bytes of a value do not fit in its column
+	 */
+	public void formatFixedBytes(SPSSDataRecord record) throws SPSSFileException {
+		int n = formatFixed(record.numericValues, record.stringValues, record.stringLengths, true);
+		if (n >= 0)
+			throw new SPSSFileException("The value of variable " + columns[n].getName() + " does not fit in " + (columnOffset[n + 1] - columnOffset[n]) + " bytes");
+	}
+
+	/**
+	 * Formats a fixed ASCII record like formatFixedBytes(), without failing when a value does not fit
+	 * 
+	 * @param record
+	 * @return false if the UTF-8 bytes of a value do not fit in its column, the buffer content is then undefined
+	 * @throws SPSSFileException
+	 */
+	boolean tryFormatFixedBytes(SPSSDataRecord record) throws SPSSFileException {
+		return (formatFixed(record.numericValues, record.stringValues, record.stringLengths, true) < 0);
+	}
+
+	/**
+	 * Formats a record in place in a line of spaces (fixed ASCII format)
+	 * 
+	 * @param padBytes
+	 *            if true, non-ASCII values are written as UTF-8 bytes padded to the column width in bytes
+	 * @return -1, or the index of a column whose value does not fit in its width (or is not made of ASCII characters when padBytes is false), the buffer content is then undefined
+	 * @throws SPSSFileException
+	 */
+	private int formatFixed(double[] numericValues, byte[][] stringValues, int[] stringLengths, boolean padBytes) throws SPSSFileException {
+		int recordLength = getRecordLength();
+		length = 0;
+		ensureCapacity(recordLength);
+		System.arraycopy(blankRecord, 0, buffer, 0, recordLength);
+		for (int n = 0; n < columns.length; n++) {
+			int offset = columnOffset[n];
+			int width = columnOffset[n + 1] - offset;
+			SPSSLabelTable labelTable = labelTables[n];
+			if (columns[n].type == SPSSVariable.VariableType.NUMERIC) {
+				double value = numericValues[columnIndex[n]];
+				byte[] form = labelTable != null ? labelTable.getForm(value) : null;
+				if (form != null) {
+					if (!putForm(form, offset, width, padBytes))
+						return (n);
+				} else {
+					SPSSNumericVariable numVar = (SPSSNumericVariable) columns[n];
+					String strValue = numVar.valueToString(value);
+					if (strValue.length() == 1 && strValue.charAt(0) == '.')
+						continue; // missing values are left blank
+					if (strValue.length() > valueWidth[n])
+						strValue = numVar.formatUnquotedValue(value, dataFormat); // truncated decimals or overflow marker
+					// numbers are right aligned
+					if (strValue.length() > width || !putAscii(strValue, offset + width - strValue.length()))
+						return (n);
+				}
+			} else {
+				byte[] bytes = stringValues[columnIndex[n]];
+				int byteLength = stringLengths[columnIndex[n]];
+				byte[] form = labelTable != null ? labelTable.getForm(bytes, byteLength) : null;
+				if (form != null) {
+					if (!putForm(form, offset, width, padBytes))
+						return (n);
+				} else if (stringDecoder.isAsciiCompatible && SPSSUtils.isAscii(bytes, byteLength)) {
+					if (byteLength > width)
+						return (n);
+					System.arraycopy(bytes, 0, buffer, offset, byteLength);
+				} else {
+					String strValue = stringDecoder.decode(bytes, 0, byteLength);
+					if (strValue.length() > width)
+						return (n);
+					if (!putAscii(strValue, offset)) {
+						if (!padBytes)
+							return (n);
+						byte[] utf8 = strValue.getBytes(SPSSLabelTable.UTF8);
+						if (utf8.length > width)
+							return (n);
+						System.arraycopy(utf8, 0, buffer, offset, utf8.length);
+					}
+				}
+			}
+		}
+		length = recordLength;
+		return (-1);
+	}
+
+	/**
+	 * Writes the characters of an ASCII string at the specified offset of the buffer
+	 * 
+	 * @return false if the string contains a non-ASCII character
+	 */
+	private boolean putAscii(String str, int offset) {
+		for (int i = 0, count = str.length(); i < count; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80)
+				return (false);
+			buffer[offset + i] = (byte) c;
+		}
+		return (true);
+	}
+
+	/**
+	 * Writes a value label form (padded to the column width in characters) at the specified offset of the buffer
+	 * 
+	 * @return false if the form does not fit in the column width in bytes
+	 */
+	private boolean putForm(byte[] form, int offset, int width, boolean padBytes) {
+		int count = form.length;
+		if (count != width) {
+			if (!padBytes)
+				return (false);
+			count = SPSSUtils.rightTrim(form, count);
+			if (count > width)
+				return (false);
+		}
+		System.arraycopy(form, 0, buffer, offset, count);
+		return (true);
+	}
+
+	private void appendSeparator(int n) {
+		if (n > 0) {
+			if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.DELIMITED)
+				append(delimiter, 0, delimiter.length);
+			else if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV)
+				append((byte) ',');
+		}
+	}
+
+	private void appendNumeric(int n, double value) throws SPSSFileException {
+		SPSSLabelTable labelTable = labelTables[n];
+		if (labelTable != null) {
+			byte[] form = labelTable.getForm(value);
+			if (form != null) {
+				append(form, 0, form.length);
+				return;
+			}
+		}
+		String strValue = ((SPSSNumericVariable) columns[n]).formatUnquotedValue(value, dataFormat);
+		if (labelTable != null && dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.FIXED)
+			appendSpaces(labelTable.width - strValue.length()); // numbers are right aligned
+		if (csvCheck[n])
+			appendCsv(strValue);
+		else
+			append(strValue);
+	}
+
+	/**
+	 * Appends a string value given by its raw bytes and/or its decoded value
+	 */
+	private void appendString(int n, byte[] bytes, int byteLength, String strValue) {
+		SPSSLabelTable labelTable = labelTables[n];
+		if (labelTable != null) {
+			byte[] form = labelTable.getForm(bytes, byteLength);
+			if (form != null) {
+				append(form, 0, form.length);
+				return;
+			}
+		}
+		if (isCsv) {
+			if (strValue != null)
+				appendCsv(strValue);
+			else if (!stringDecoder.isAsciiCompatible || !appendCsv(bytes, byteLength))
+				appendCsv(stringDecoder.decode(bytes, 0, byteLength));
+			return;
+		}
+		if (strValue == null)
+			strValue = stringDecoder.decode(bytes, 0, byteLength);
+		strValue = ((SPSSStringVariable) columns[n]).formatValue(strValue, dataFormat);
+		append(strValue);
+		if (labelTable != null && dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.FIXED)
+			appendSpaces(labelTable.width - strValue.length()); // strings are left aligned
+	}
+
+	/**
+	 * Formats the names of the variables (the header line of delimited formats)
+	 */
+	public void formatNames() {
+		length = 0;
+		for (int n = 0; n < columns.length; n++) {
+			if (n > 0) {
+				if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV)
+					append((byte) ',');
+				else
+					append(delimiter, 0, delimiter.length);
+			}
+			append(columns[n].getName());
+		}
+	}
+
+	/**
+	 * @return the buffer holding the formatted record (valid up to getLength())
+	 */
+	public byte[] getBuffer() {
+		return (buffer);
+	}
+
+	/**
+	 * @return the number of bytes of the formatted record
+	 */
+	public int getLength() {
+		return (length);
+	}
+
+	/**
+	 * @return the formatted record as a String
+	 */
+	public String toString() {
+		return (new String(buffer, 0, length, SPSSLabelTable.UTF8));
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+	}
+
+	void append(byte b) {
+		ensureCapacity(1);
+		buffer[length++] = b;
+	}
+
+	void append(byte[] bytes, int offset, int count) {
+		ensureCapacity(count);
+		System.arraycopy(bytes, offset, buffer, length, count);
+		length += count;
+	}
+
+	void appendSpaces(int count) {
+		if (count <= 0)
+			return;
+		ensureCapacity(count);
+		Arrays.fill(buffer, length, length + count, (byte) ' ');
+		length += count;
+	}
+
+	/**
+	 * Appends a 7-bit byte string escaped for CSV (RFC 4180). The value is scanned once and copied into the buffer after a reserved byte: the reserved byte becomes the opening double-quote if a comma, a double-quote or a line break is found, otherwise the value is moved back over it.
+	 * 
+	 * @return false if the value contains a byte outside the 7-bit range (nothing is appended, the value must be decoded)
+	 */
+	boolean appendCsv(byte[] bytes, int count) {
+		ensureCapacity(2 * count + 2);
+		int start = length;
+		int pos = start + 1;
+		boolean quoted = false;
+		for (int i = 0; i < count; i++) {
+			byte b = bytes[i];
+			if (b < 0)
+				return (false);
+			if (SPSSUtils.isCsvSpecial(b)) {
+				quoted = true;
+				if (b == '"')
+					buffer[pos++] = '"';
+			}
+			buffer[pos++] = b;
+		}
+		closeCsv(start, pos, quoted);
+		return (true);
+	}
+
+	/**
+	 * Appends the UTF-8 bytes of a String escaped for CSV (RFC 4180), in a single pass over the characters
+	 */
+	void appendCsv(String str) {
+		int count = str.length();
+		ensureCapacity(3 * count + 2);
+		int start = length;
+		int pos = start + 1;
+		boolean quoted = false;
+		for (int i = 0; i < count; i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				if (SPSSUtils.isCsvSpecial(c)) {
+					quoted = true;
+					if (c == '"')
+						buffer[pos++] = '"';
+				}
+				buffer[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[pos++] = (byte) (0xC0 | (c >> 6));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(str.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+				buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				buffer[pos++] = '?'; // unpaired surrogate, as String.getBytes() does
+			} else {
+				buffer[pos++] = (byte) (0xE0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		closeCsv(start, pos, quoted);
+	}
+
+	/**
+	 * Completes a CSV value written after the reserved byte at start
+	 */
+	private void closeCsv(int start, int end, boolean quoted) {
+		if (quoted) {
+			buffer[start] = '"';
+			buffer[end++] = '"';
+			length = end;
+		} else {
+			System.arraycopy(buffer, start + 1, buffer, start, end - start - 1);
+			length = end - 1;
+		}
+	}
+
+	/**
+	 * Appends the UTF-8 bytes of a String. ASCII characters are copied without going through a charset encoder.
+	 */
+	void append(String str) {
+		int count = str.length();
+		ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80) {
+				byte[] bytes = str.substring(i).getBytes(SPSSLabelTable.UTF8);
+				append(bytes, 0, bytes.length);
+				return;
+			}
+			buffer[length++] = (byte) c;
+		}
+	}
+}
@@ -30,21 +30,40 @@ package org.opendatafoundation.data.spss;
  */
 
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
 /**
  * SPSS Record Type 3 - Value labels
+ * <p>
+ * The record is indexed when the dictionary is loaded: only the location of the labels is kept. The labels are decoded by {@link #load(SPSSFile)} the first time they are needed, from the bytes read by {@link #readData(SPSSFile)} if the file has been closed since.
  * 
  * @author Pascal Heus (pheus@opendatafoundation.org)
  */
 public class SPSSRecordType3 extends SPSSAbstractRecordType {
 	int recordTypeCode;
 	int numberOfLabels;
-	Map<byte[], String> valueLabel = new LinkedHashMap<byte[], String>();
+	long dataLocation; // < location of the first label in the file
+	int dataLength; // < number of bytes used by the labels
+	boolean isLoaded = false; // < true once the labels have been decoded
+	byte[] data; // < the undecoded labels, read before the file is closed
+	byte[][] values; // < the 8-byte value of each label, in file order
+	String[] labels; // < the labels
 
+	/**
+	 * Reads the record and decodes all the labels
+	 */
 	public void read(SPSSFile is) throws IOException, SPSSFileException {
+		index(is);
+		load(is);
+	}
+
+	/**
+	 * Reads the record header and moves the file pointer past the labels without decoding them.
+	 * 
+	 * @param is
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void index(SPSSFile is) throws IOException, SPSSFileException {
 		// position in file
 		fileLocation = is.getFilePointer();
 
@@ -55,18 +74,58 @@ public class SPSSRecordType3 extends SPSSAbstractRecordType {
 
 		// number of labels
 		numberOfLabels = is.readSPSSInt();
+		dataLocation = is.getFilePointer();
+
+		// walk the labels: each one is an 8-byte value followed by the label length byte and the label,
+		// padded to a multiple of 8 bytes. Only the length bytes are looked at, read by blocks.
+		byte[] block = new byte[8192];
+		long blockStart = 0;
+		int blockLength = 0;
+		long position = dataLocation;
+		for (int i = 0; i < numberOfLabels; i++) {
+			long lengthPosition = position + 8;
+			if (lengthPosition >= blockStart + blockLength) {
+				blockStart = lengthPosition;
+				blockLength = is.readAt(lengthPosition, block, 0, block.length);
+				if (blockLength <= 0)
+					throw new SPSSFileException("Error reading record type 3: unexpected end of file at location " + lengthPosition);
+			}
+			int labelLength = block[(int) (lengthPosition - blockStart)] & 0xFF;
+			position = lengthPosition + ((labelLength + 8) / 8) * 8;
+		}
+		if (position - dataLocation > Integer.MAX_VALUE)
+			throw new SPSSFileException("Error reading record type 3: value labels are too large (" + (position - dataLocation) + " bytes)");
+		dataLength = (int) (position - dataLocation);
+		is.seek(position);
+	}
+
+	/**
+	 * Decodes the values and labels of an indexed record. Labels are only decoded once. The file pointer is not moved.
+	 * 
+	 * @param is
+	 *            the file the record was indexed from
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public synchronized void load(SPSSFile is) throws IOException, SPSSFileException {
+		if (isLoaded)
+			return;
+
+		readData(is);
 
-		// labels
+		byte[][] values = new byte[numberOfLabels][];
+		String[] labels = new String[numberOfLabels];
+		int position = 0;
 		for (int i = 0; i < numberOfLabels; i++) {
 			// read the label value
 			byte[] value = new byte[8];
-			is.read(value);
+			System.arraycopy(data, position, value, 0, 8);
 
 			if (is.isBigEndian) {
 				// flip value
 				// TODO: don't do this for string variables (but we don't know
 				// the type here....)
-				for (int j = 0; j < 3; j++) {
+				for (int j = 0; j < 4; j++) {
 					byte tmp;
 					tmp = value[j];
 					value[j] = value[7 - j];
@@ -75,19 +134,43 @@ public class SPSSRecordType3 extends SPSSAbstractRecordType {
 			}
 
 			// the following byte in an unsigned integer (max value is 60)
-			int labelLength = is.read();
+			int labelLength = data[position + 8] & 0xFF;
 
 			// read the label
-			String label = is.readSPSSString(labelLength);
+			String label;
+			if (is.charset != null) {
+				label = new String(data, position + 9, labelLength, is.charset);
+			} else {
+				label = new String(data, position + 9, labelLength);
+			}
 			// value labels are stored in chunks of 8-bytes with space allocated
 			// for length+1 characters
-			// --> we need to skip unused bytes in the last chunk
-			if (((labelLength + 1) % 8) != 0)
-				is.skipBytes(8 - ((labelLength + 1) % 8));
+			position += 8 + ((labelLength + 8) / 8) * 8;
 
-			// Store in map
-			valueLabel.put(value, label);
+			values[i] = value;
+			labels[i] = label;
 		}
+		this.values = values;
+		this.labels = labels;
+		this.data = null;
+		isLoaded = true;
+	}
+
+	/**
+	 * Reads the labels of an indexed record without decoding them, so they can be decoded once the file is closed. The file pointer is not moved.
+	 * 
+	 * @param is
+	 *            the file the record was indexed from
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	synchronized void readData(SPSSFile is) throws IOException, SPSSFileException {
+		if (isLoaded || data != null)
+			return;
+		byte[] bytes = new byte[dataLength];
+		if (is.readAt(dataLocation, bytes, 0, dataLength) != dataLength)
+			throw new SPSSFileException("Error reading record type 3: unexpected end of file at location " + (dataLocation + dataLength));
+		data = bytes;
 	}
 
 	public String toString() {
@@ -96,12 +179,9 @@ public class SPSSRecordType3 extends SPSSAbstractRecordType {
 		str += "\nLocation        : " + fileLocation;
 		str += "\nRecord Type     : " + recordTypeCode;
 		str += "\nNumber labels   : " + numberOfLabels;
-		Iterator iter = valueLabel.entrySet().iterator();
-		while (iter.hasNext()) {
-			Map.Entry entry = (Map.Entry) iter.next();
-			byte[] value = (byte[]) entry.getKey();
-			String label = (String) entry.getValue();
-			str += "\n " + SPSSUtils.byte8ToDouble(value) + "=" + label;
+		if (isLoaded) {
+			for (int i = 0; i < numberOfLabels; i++)
+				str += "\n " + SPSSUtils.byte8ToDouble(values[i]) + "=" + labels[i];
 		}
 		return (str);
 	}
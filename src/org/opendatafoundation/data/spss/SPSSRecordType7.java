@@ -30,11 +30,13 @@ package org.opendatafoundation.data.spss;
  */
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * SPSS Record Type 7 - Generic type 7 record (for unknown subtypes)
+ * <p>
+ * The data elements are not read, the file pointer is moved past them. Their location is kept so that the raw bytes can be read on demand with {@link #getData(SPSSFile)}.
  * 
  * @author Pascal Heus (pheus@opendatafoundation.org)
  */
@@ -43,7 +45,7 @@ public class SPSSRecordType7 extends SPSSAbstractRecordType {
 	int recordSubtypeCode;
 	int dataElementLength;
 	int numberOfDataElements;
-	List<byte[]> dataElement;
+	long dataLocation; // < location of the first data element in the file
 
 	public void read(SPSSFile is) throws IOException, SPSSFileException {
 		// position in file
@@ -58,12 +60,49 @@ public class SPSSRecordType7 extends SPSSAbstractRecordType {
 		// data elements
 		dataElementLength = is.readSPSSInt();
 		numberOfDataElements = is.readSPSSInt();
-		dataElement = new ArrayList<byte[]>();
-		byte[] data = new byte[dataElementLength];
-		for (int i = 0; i < numberOfDataElements; i++) {
-			is.read(data);
-			dataElement.add(data);
+		if (dataElementLength < 0 || numberOfDataElements < 0)
+			throw new SPSSFileException("Error reading record type 7 subtype " + recordSubtypeCode + ": bad data element size [" + dataElementLength + " x " + numberOfDataElements + "]");
+		// skip the data
+		dataLocation = is.getFilePointer();
+		if (dataLocation + getDataLength() > is.length())
+			throw new SPSSFileException("Error reading record type 7 subtype " + recordSubtypeCode + ": " + getDataLength() + " bytes of data go past the end of the file");
+		is.seek(dataLocation + getDataLength());
+	}
+
+	/**
+	 * @return the subtype of this record
+	 */
+	public int getSubtype() {
+		return (recordSubtypeCode);
+	}
+
+	/**
+	 * @return the number of data bytes of this record
+	 */
+	public long getDataLength() {
+		return ((long) dataElementLength * numberOfDataElements);
+	}
+
+	/**
+	 * Reads the data elements of this record. The read does not move the file pointer.
+	 * 
+	 * @param is
+	 *            the file this record was read from
+	 * @return the raw bytes of all the data elements
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public byte[] getData(SPSSFile is) throws IOException, SPSSFileException {
+		if (getDataLength() > Integer.MAX_VALUE)
+			throw new SPSSFileException("Record type 7 subtype " + recordSubtypeCode + " is too large to be read in memory (" + getDataLength() + " bytes)");
+		byte[] data = new byte[(int) getDataLength()];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		FileChannel channel = is.getChannel();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, dataLocation + buffer.position()) < 0)
+				throw new SPSSFileException("Error reading record type 7 subtype " + recordSubtypeCode + ": unexpected end of file at location " + (dataLocation + buffer.position()));
 		}
+		return (data);
 	}
 
 	public String toString() {
@@ -74,6 +113,7 @@ public class SPSSRecordType7 extends SPSSAbstractRecordType {
 		str += "\nRecord Subtype  : " + recordSubtypeCode;
 		str += "\nData elements   : " + numberOfDataElements;
 		str += "\nElement length  : " + dataElementLength;
+		str += "\nData location   : " + dataLocation + " (skipped)";
 		return (str);
 	}
 }
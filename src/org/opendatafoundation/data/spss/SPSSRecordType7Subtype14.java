@@ -0,0 +1,108 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * SPSS Record Type 7 Subtype 14 - Very long string variables (more than 255 characters). Added in SPSS release 13.0
+ */
+public class SPSSRecordType7Subtype14 extends SPSSAbstractRecordType {
+	// type 7
+	int recordTypeCode;
+	int recordSubtypeCode;
+	int dataElementLength;
+	int numberOfDataElements;
+
+	// subtype 14
+	String veryLongStringsStr;
+	Map<String, Integer> widthMap; // < short name of the first segment --> full string width
+
+	public void read(SPSSFile is) throws IOException, SPSSFileException {
+		// position in file
+		fileLocation = is.getFilePointer();
+
+		// record type
+		recordTypeCode = is.readSPSSInt();
+		if (recordTypeCode != 7)
+			throw new SPSSFileException("Error reading record type 7 subtype 14: bad record type [" + recordTypeCode + "]. Expecting Record Type 7.");
+
+		// subtype
+		recordSubtypeCode = is.readSPSSInt();
+		if (recordSubtypeCode != 14)
+			throw new SPSSFileException("Error reading record type 7 subtype 14: bad subrecord type [" + recordSubtypeCode + "]. Expecting Record Subtype 14.");
+
+		// data elements
+		dataElementLength = is.readSPSSInt();
+		if (dataElementLength != 1)
+			throw new SPSSFileException("Error reading record type 7 subtype 14: bad data element length [" + dataElementLength + "]. Expecting 1.");
+		numberOfDataElements = is.readSPSSInt();
+
+		// read the string
+		veryLongStringsStr = is.readSPSSString(numberOfDataElements);
+
+		// load widths (NAME=WIDTH pairs separated by a null and a tab)
+		widthMap = new LinkedHashMap<String, Integer>();
+		StringTokenizer st1 = new StringTokenizer(veryLongStringsStr, "\t\0");
+		while (st1.hasMoreTokens()) {
+			StringTokenizer st2 = new StringTokenizer(st1.nextToken(), "=");
+			if (st2.countTokens() >= 2) {
+				String name = st2.nextToken();
+				String width = st2.nextToken().trim();
+				try {
+					widthMap.put(name, Integer.parseInt(width));
+				} catch (NumberFormatException e) {
+					throw new SPSSFileException("Error reading record type 7 subtype 14: bad string width [" + width + "] for variable " + name);
+				}
+			}
+		}
+	}
+
+	public String toString() {
+		String str = "";
+		str += "\nRECORD TYPE 7 SUBTYPE 14 - VERY LONG STRING VARIABLES";
+		str += "\nLocation        : " + fileLocation;
+		str += "\nRecord Type     : " + recordTypeCode;
+		str += "\nRecord Subtype  : " + recordSubtypeCode;
+		str += "\nData elements   : " + numberOfDataElements;
+		str += "\nElement length  : " + dataElementLength;
+		Iterator<Map.Entry<String, Integer>> it = widthMap.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Integer> entry = it.next();
+			str += "\n" + (entry.getKey() + " = " + entry.getValue());
+		}
+		return (str);
+	}
+}
@@ -0,0 +1,100 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+
+/**
+ * SPSS Record Type 7 Subtype 20 - Character encoding of the strings in the file. Added in SPSS release 16.0
+ */
+public class SPSSRecordType7Subtype20 extends SPSSAbstractRecordType {
+	// type 7
+	int recordTypeCode;
+	int recordSubtypeCode;
+	int dataElementLength;
+	int numberOfDataElements;
+
+	// subtype 20
+	String encoding; // < the name of the encoding, e.g. UTF-8 or windows-1252
+
+	public void read(SPSSFile is) throws IOException, SPSSFileException {
+		// position in file
+		fileLocation = is.getFilePointer();
+
+		// record type
+		recordTypeCode = is.readSPSSInt();
+		if (recordTypeCode != 7)
+			throw new SPSSFileException("Error reading record type 7 subtype 20: bad record type [" + recordTypeCode + "]. Expecting Record Type 7.");
+
+		// subtype
+		recordSubtypeCode = is.readSPSSInt();
+		if (recordSubtypeCode != 20)
+			throw new SPSSFileException("Error reading record type 7 subtype 20: bad subrecord type [" + recordSubtypeCode + "]. Expecting Record Subtype 20.");
+
+		// data elements
+		dataElementLength = is.readSPSSInt();
+		if (dataElementLength != 1)
+			throw new SPSSFileException("Error reading record type 7 subtype 20: bad data element length [" + dataElementLength + "]. Expecting 1.");
+		numberOfDataElements = is.readSPSSInt();
+
+		// the encoding name is plain ASCII
+		byte[] buffer = new byte[numberOfDataElements];
+		is.read(buffer);
+		encoding = new String(buffer, "US-ASCII").trim();
+	}
+
+	/**
+	 * @return the Charset matching the encoding, or null if the encoding is not supported by the platform
+	 */
+	public Charset getCharset() {
+		try {
+			if (Charset.isSupported(encoding))
+				return (Charset.forName(encoding));
+		} catch (IllegalCharsetNameException e) {
+			// not supported
+		}
+		return (null);
+	}
+
+	public String toString() {
+		String str = "";
+		str += "\nRECORD TYPE 7 SUBTYPE 20 - CHARACTER ENCODING";
+		str += "\nLocation        : " + fileLocation;
+		str += "\nRecord Type     : " + recordTypeCode;
+		str += "\nRecord Subtype  : " + recordSubtypeCode;
+		str += "\nData elements   : " + numberOfDataElements;
+		str += "\nElement length  : " + dataElementLength;
+		str += "\nEncoding        : " + encoding;
+		return (str);
+	}
+}
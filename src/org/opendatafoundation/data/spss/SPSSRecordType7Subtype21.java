@@ -0,0 +1,110 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SPSS Record Type 7 Subtype 21 - Value labels for long string variables (more than 8 characters). Added in SPSS release 16.0
+ */
+public class SPSSRecordType7Subtype21 extends SPSSAbstractRecordType {
+	// type 7
+	int recordTypeCode;
+	int recordSubtypeCode;
+	int dataElementLength;
+	int numberOfDataElements;
+
+	// subtype 21
+	List<LongStringValueLabels> variableLabels; // < one label set for each variable
+
+	public void read(SPSSFile is) throws IOException, SPSSFileException {
+		// position in file
+		fileLocation = is.getFilePointer();
+
+		// record type
+		recordTypeCode = is.readSPSSInt();
+		if (recordTypeCode != 7)
+			throw new SPSSFileException("Error reading record type 7 subtype 21: bad record type [" + recordTypeCode + "]. Expecting Record Type 7.");
+
+		// subtype
+		recordSubtypeCode = is.readSPSSInt();
+		if (recordSubtypeCode != 21)
+			throw new SPSSFileException("Error reading record type 7 subtype 21: bad subrecord type [" + recordSubtypeCode + "]. Expecting Record Subtype 21.");
+
+		// data elements
+		dataElementLength = is.readSPSSInt();
+		if (dataElementLength != 1)
+			throw new SPSSFileException("Error reading record type 7 subtype 21: bad data element length [" + dataElementLength + "]. Expecting 1.");
+		numberOfDataElements = is.readSPSSInt();
+
+		// read the label sets
+		long end = is.getFilePointer() + numberOfDataElements;
+		variableLabels = new ArrayList<LongStringValueLabels>();
+		while (is.getFilePointer() < end) {
+			LongStringValueLabels labels = new LongStringValueLabels();
+			labels.variableName = is.readSPSSString(is.readSPSSInt());
+			labels.width = is.readSPSSInt();
+			int numberOfLabels = is.readSPSSInt();
+			for (int i = 0; i < numberOfLabels; i++) {
+				byte[] value = new byte[is.readSPSSInt()];
+				is.read(value);
+				labels.values.add(value);
+				labels.labels.add(is.readSPSSString(is.readSPSSInt()));
+			}
+			variableLabels.add(labels);
+		}
+		if (is.getFilePointer() != end)
+			throw new SPSSFileException("Error reading record type 7 subtype 21: label sets overrun the record by " + (is.getFilePointer() - end) + " bytes.");
+	}
+
+	public String toString() {
+		String str = "";
+		str += "\nRECORD TYPE 7 SUBTYPE 21 - LONG STRING VALUE LABELS";
+		str += "\nLocation        : " + fileLocation;
+		str += "\nRecord Type     : " + recordTypeCode;
+		str += "\nRecord Subtype  : " + recordSubtypeCode;
+		str += "\nData elements   : " + numberOfDataElements;
+		str += "\nElement length  : " + dataElementLength;
+		for (LongStringValueLabels labels : variableLabels) {
+			str += "\nVariable        : " + labels.variableName + " (width " + labels.width + ", " + labels.values.size() + " labels)";
+		}
+		return (str);
+	}
+
+	public class LongStringValueLabels {
+		String variableName;
+		int width;
+		List<byte[]> values = new ArrayList<byte[]>();
+		List<String> labels = new ArrayList<String>();
+	}
+}
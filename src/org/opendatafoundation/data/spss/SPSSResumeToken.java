@@ -0,0 +1,225 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * A token recording how far the cases of a file have been read, so that a later reader of the same file, regenerated with cases appended, reads only the new cases. The token holds the number of cases read, the position of the next case (including the state of the compression cluster), a digest of the dictionary and a checksum of the last 4 KB of data preceding that position.
+ * <p>
+ * A token is valid for a file if its dictionary is the same (the number of cases and the creation date and time of the header record and the number of cases of the extended number of cases record are ignored), if it has at least as many cases and if the last 4 KB of data before the position of the token are unchanged. The earlier data is not read, so a file rewritten with different cases but the same dictionary and the same last 4 KB before the position is not detected. The token is saved as a single line string by toString() and restored by parse().
+ * 
+ */
+public class SPSSResumeToken {
+	static final String VERSION = "1";
+	static final String DIGEST_ALGORITHM = "SHA-256";
+	static final int TAIL_LENGTH = 4096; // < the number of data bytes before the position covered by the tail checksum (the earlier data is not checked)
+	static final int[][] HEADER_VARIABLE_FIELDS = { { 80, 84 }, { 92, 109 } }; // < the number of cases and the creation date and time, which change when cases are appended
+	static final int EXTENDED_CASE_COUNT_SUBTYPE = 16; // < the record type 7 subtype holding the 64-bit number of cases
+
+	final int caseCount; // < the number of cases read
+	final long offset; // < the file offset of the next block to read
+	final byte[] cluster; // < the compression codes of the current cluster
+	final int clusterIndex; // < the index of the next code in the cluster (8 if a new cluster must be read)
+	final String dictionaryHash; // < the hex SHA-256 digest of the dictionary
+	final long tailChecksum; // < the CRC-32 of the data before the position
+
+	SPSSResumeToken(int caseCount, long offset, byte[] cluster, int clusterIndex, String dictionaryHash, long tailChecksum) {
+		this.caseCount = caseCount;
+		this.offset = offset;
+		this.cluster = cluster.clone();
+		this.clusterIndex = clusterIndex;
+		this.dictionaryHash = dictionaryHash;
+		this.tailChecksum = tailChecksum;
+	}
+
+	/**
+	 * Creates the token of a position of a file
+	 * 
+	 * @param file
+	 * @param position
+	 *            the position of the next case to read
+	 * @return the token
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	static SPSSResumeToken create(SPSSFile file, SPSSDataPosition position) throws IOException, SPSSFileException {
+		long clusterStart = getClusterStart(position.offset, position.cluster, position.clusterIndex);
+		return (new SPSSResumeToken(position.caseNumber, position.offset, position.cluster, position.clusterIndex, getDictionaryHash(file), getTailChecksum(file, position.offset, clusterStart, position.clusterIndex)));
+	}
+
+	/**
+	 * Checks that the token is valid for a file and returns the position of the first case that has not been read
+	 * 
+	 * @param file
+	 * @return the position of the next case
+	 * @throws SPSSFileException
+	 *             if the token does not match the file
+	 * @throws IOException
+	 */
+	SPSSDataPosition validate(SPSSFile file) throws IOException, SPSSFileException {
+		if (!dictionaryHash.equals(getDictionaryHash(file)))
+			throw new SPSSFileException("Invalid resume token: the dictionary has changed");
+		if (file.getRecordCount() < caseCount)
+			throw new SPSSFileException("Invalid resume token: the file has " + file.getRecordCount() + " cases, " + caseCount + " have been read");
+		if (offset < file.dataStartPosition || offset > file.length())
+			throw new SPSSFileException("Invalid resume token: offset " + offset + " is outside the data");
+		long clusterStart = getClusterStart(offset, cluster, clusterIndex);
+		if (tailChecksum != getTailChecksum(file, offset, clusterStart, clusterIndex))
+			throw new SPSSFileException("Invalid resume token: the data has changed");
+		byte[] codes = cluster;
+		if (clusterIndex < 8) {
+			// the remaining codes of the cluster were padding if it was the last one: they are read again
+			codes = new byte[8];
+			if (file.readAt(clusterStart, codes, 0, 8) < 8)
+				throw new SPSSFileException("Invalid resume token: unexpected end of file at location " + clusterStart);
+			for (int i = 0; i < clusterIndex; i++) {
+				if (codes[i] != cluster[i])
+					throw new SPSSFileException("Invalid resume token: the data has changed");
+			}
+		}
+		return (new SPSSDataPosition(caseCount, offset, codes, clusterIndex));
+	}
+
+	/**
+	 * @return the offset of the current compression cluster: its codes are followed by the literal values of the codes already read
+	 */
+	static long getClusterStart(long offset, byte[] cluster, int clusterIndex) {
+		if (clusterIndex >= 8)
+			return (offset);
+		long start = offset - 8;
+		for (int i = 0; i < clusterIndex; i++) {
+			if (cluster[i] == (byte) 253)
+				start -= 8;
+		}
+		return (start);
+	}
+
+	/**
+	 * Computes the digest of the dictionary, ignoring the fields that change when cases are appended: the number of cases and the creation date and time of the header record, and the number of cases of the extended number of cases record (subtype 16)
+	 * 
+	 * @return the hex digest
+	 */
+	static String getDictionaryHash(SPSSFile file) throws IOException, SPSSFileException {
+		byte[] dictionary = new byte[(int) file.dataStartPosition];
+		if (file.readAt(0, dictionary, 0, dictionary.length) < dictionary.length)
+			throw new SPSSFileException("Error reading the dictionary: unexpected end of file");
+		for (int[] field : HEADER_VARIABLE_FIELDS)
+			Arrays.fill(dictionary, field[0], Math.min(field[1], dictionary.length), (byte) 0);
+		if (file.extensionRecords != null) {
+			Iterator<SPSSRecordType7> it = file.extensionRecords.iterator();
+			while (it.hasNext()) {
+				SPSSRecordType7 record = it.next();
+				// two 8-byte elements: a constant and the number of cases
+				if (record.getSubtype() == EXTENDED_CASE_COUNT_SUBTYPE && record.dataElementLength == 8 && record.numberOfDataElements == 2)
+					Arrays.fill(dictionary, (int) record.dataLocation + 8, (int) record.dataLocation + 16, (byte) 0);
+			}
+		}
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(dictionary);
+		} catch (NoSuchAlgorithmException e) {
+			throw new SPSSFileException("Checksum algorithm not available: " + DIGEST_ALGORITHM);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < hash.length; i++)
+			sb.append(String.format("%02x", hash[i] & 0xFF));
+		return (sb.toString());
+	}
+
+	/**
+	 * Computes the checksum of the last TAIL_LENGTH bytes of data before a position. The codes of the current cluster that have not been read are ignored: they are padding in the last cluster of a file and hold the codes of the appended cases once the file has grown.
+	 */
+	static long getTailChecksum(SPSSFile file, long offset, long clusterStart, int clusterIndex) throws IOException, SPSSFileException {
+		long start = Math.max(file.dataStartPosition, offset - TAIL_LENGTH);
+		byte[] tail = new byte[(int) (offset - start)];
+		if (file.readAt(start, tail, 0, tail.length) < tail.length)
+			throw new SPSSFileException("Invalid resume token: unexpected end of file at location " + start);
+		if (clusterIndex < 8 && clusterStart >= start)
+			Arrays.fill(tail, (int) (clusterStart - start) + clusterIndex, (int) (clusterStart - start) + 8, (byte) 0);
+		CRC32 crc = new CRC32();
+		crc.update(tail);
+		return (crc.getValue());
+	}
+
+	/**
+	 * @return the number of cases read
+	 */
+	public int getCaseCount() {
+		return (caseCount);
+	}
+
+	/**
+	 * @return the file offset of the next case
+	 */
+	public long getOffset() {
+		return (offset);
+	}
+
+	/**
+	 * Restores a token saved by toString()
+	 * 
+	 * @param token
+	 * @return the token
+	 * @throws SPSSFileException
+	 *             if the string is not a token
+	 */
+	public static SPSSResumeToken parse(String token) throws SPSSFileException {
+		String[] fields = token.trim().split(":");
+		if (fields.length != 7 || !fields[0].equals(VERSION) || fields[3].length() != 16)
+			throw new SPSSFileException("Invalid resume token: " + token);
+		try {
+			byte[] cluster = new byte[8];
+			for (int i = 0; i < 8; i++)
+				cluster[i] = (byte) Integer.parseInt(fields[3].substring(2 * i, 2 * i + 2), 16);
+			return (new SPSSResumeToken(Integer.parseInt(fields[1]), Long.parseLong(fields[2]), cluster, Integer.parseInt(fields[4]), fields[5], Long.parseLong(fields[6], 16)));
+		} catch (NumberFormatException e) {
+			throw new SPSSFileException("Invalid resume token: " + token);
+		}
+	}
+
+	/**
+	 * @return the token as a single line string
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(VERSION).append(':').append(caseCount).append(':').append(offset).append(':');
+		for (int i = 0; i < 8; i++)
+			sb.append(String.format("%02x", cluster[i] & 0xFF));
+		sb.append(':').append(clusterIndex).append(':').append(dictionaryHash).append(':').append(Long.toHexString(tailChecksum));
+		return (sb.toString());
+	}
+}
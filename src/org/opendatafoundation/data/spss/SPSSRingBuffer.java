@@ -0,0 +1,105 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free queue for one producer thread and one consumer thread. The items are kept in a power of two array indexed by two counters: the producer only moves the tail and the consumer only moves the head, so neither takes a lock or a compare-and-set. The counters are published with ordered writes after the array slot is written or cleared.
+ * <p>
+ * The queue does not block: offer() and poll() return at once and the callers decide how to wait.
+ * 
+ * @param <T>
+ *            the item type
+ */
+class SPSSRingBuffer<T> {
+	private final Object[] items;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong(); // < the number of items taken, only written by the consumer
+	private final AtomicLong tail = new AtomicLong(); // < the number of items added, only written by the producer
+
+	/**
+	 * @param capacity
+	 *            the minimum number of items the queue holds, rounded up to a power of two
+	 */
+	SPSSRingBuffer(int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		items = new Object[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an item (producer thread only)
+	 * 
+	 * @return false if the queue is full
+	 */
+	boolean offer(T item) {
+		long t = tail.get();
+		if (t - head.get() == items.length)
+			return (false);
+		items[(int) t & mask] = item;
+		tail.lazySet(t + 1);
+		return (true);
+	}
+
+	/**
+	 * Takes the oldest item (consumer thread only)
+	 * 
+	 * @return the item, or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	T poll() {
+		long h = head.get();
+		if (h == tail.get())
+			return (null);
+		int i = (int) h & mask;
+		T item = (T) items[i];
+		items[i] = null;
+		head.lazySet(h + 1);
+		return (item);
+	}
+
+	/**
+	 * @return the number of items in the queue (approximate while the other thread works on it)
+	 */
+	int size() {
+		return ((int) (tail.get() - head.get()));
+	}
+
+	/**
+	 * @return the number of items the queue holds
+	 */
+	int capacity() {
+		return (items.length);
+	}
+}
@@ -0,0 +1,88 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.util.Arrays;
+
+/**
+ * A batch of decoded rows and the formatted output of these rows. Batches are allocated once for an export and recycled: the values of each row are decoded in place in the arrays of the batch.
+ * 
+ */
+class SPSSRowBatch {
+	long sequence; // < the number of the batch in the export
+	int size; // < the number of rows of the batch
+	final double[][] numericValues; // < the numeric values of each row
+	final byte[][][] stringValues; // < the raw string values of each row
+	final int[][] stringLengths; // < the trimmed length of the string values of each row
+
+	byte[] output; // < the formatted rows
+	int outputLength; // < number of bytes used in the output
+
+	/**
+	 * Allocates a batch for the decode plan of a file
+	 * 
+	 * @param plan
+	 * @param capacity
+	 *            the maximum number of rows of the batch
+	 */
+	SPSSRowBatch(SPSSDecodePlan plan, int capacity) {
+		int columns = plan.columns.length;
+		numericValues = new double[capacity][columns];
+		stringValues = new byte[capacity][columns][];
+		stringLengths = new int[capacity][columns];
+		for (int row = 0; row < capacity; row++) {
+			for (int n = 0; n < columns; n++) {
+				if (plan.columnWidth[n] > 0)
+					stringValues[row][n] = new byte[plan.columnWidth[n]];
+			}
+		}
+		output = new byte[4096];
+	}
+
+	/**
+	 * Appends bytes to the output
+	 */
+	void append(byte[] bytes, int count) {
+		if (outputLength + count > output.length)
+			output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + count));
+		System.arraycopy(bytes, 0, output, outputLength, count);
+		outputLength += count;
+	}
+
+	/**
+	 * Appends a byte to the output
+	 */
+	void append(byte b) {
+		if (outputLength == output.length)
+			output = Arrays.copyOf(output, output.length * 2);
+		output[outputLength++] = b;
+	}
+}
@@ -0,0 +1,663 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Writes the data of a SPSS file, or of a subset of its variables, as a new SPSS system file (.sav). The writer follows the record layout of the PSPP system file writer (references/pspp_source/sfm-write.c): the header record (type 1), the variable records (type 2), the value labels (types 3 and 4), the machine information, display parameters, long variable names, very long strings, character encoding and long string value labels records (type 7 subtypes 3, 4, 11, 13, 14, 20 and 21) and the dictionary termination record (type 999), followed by the records.
+ * <p>
+ * The variables keep their formats, labels, missing values, value labels and display parameters, and may be renamed. The values are copied without conversion, so the strings keep the encoding of the source file. The records are bytecode compressed by default: each cluster of 8 compression codes is buffered with its literal values and the clusters are written in large blocks.
+ * 
+ */
+public class SPSSSavWriter {
+	static final double COMPRESSION_BIAS = 100; // < values between 1 - bias and 251 - bias are stored as a single code
+	static final int BLOCK_SIZE = 1 << 20; // < size of the blocks of records written to the output
+	static final byte[] BLANKS = "        ".getBytes(SPSSFlatBuffer.UTF8);
+
+	/**
+	 * A variable of the new file
+	 */
+	static class OutputVariable {
+		SPSSVariable var;
+		int column; // < the index of the variable in the decode plan of the source file
+		String name;
+		String shortName;
+		int width; // < 0 for numeric variables
+		int[] segmentWidth; // < the width of each segment (a single segment except for very long strings)
+		String[] segmentName; // < the short name of each segment
+		int slot; // < the first slot of the variable in the new records
+	}
+
+	SPSSFile file;
+	Charset charset; // < the character set of the dictionary strings (the one of the source file)
+	boolean compressed = true;
+	List<OutputVariable> variables = new ArrayList<OutputVariable>();
+	int slotCount;
+	int caseCount;
+
+	/**
+	 * Constructor. All the variables of the file are written unless variables are added with addVariable.
+	 * 
+	 * @param file
+	 *            the SPSS file, with its metadata loaded
+	 * @throws SPSSFileException
+	 */
+	public SPSSSavWriter(SPSSFile file) throws SPSSFileException {
+		if (file.decodePlan == null)
+			throw new SPSSFileException("Metadata has not been loaded");
+		this.file = file;
+		charset = file.charset != null ? file.charset : Charset.defaultCharset();
+	}
+
+	/**
+	 * Sets the compression of the records (bytecode compression by default)
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Adds a variable to the new file, the variables being written in the order they are added
+	 * 
+	 * @param name
+	 *            the name of the variable in the source file
+	 * @throws SPSSFileException
+	 *             if the variable does not exist
+	 */
+	public void addVariable(String name) throws SPSSFileException {
+		addVariable(name, null);
+	}
+
+	/**
+	 * Adds a renamed variable to the new file
+	 * 
+	 * @param name
+	 *            the name of the variable in the source file
+	 * @param newName
+	 *            the name of the variable in the new file, or null to keep its name
+	 * @throws SPSSFileException
+	 *             if the variable does not exist or the new name is already used
+	 */
+	public void addVariable(String name, String newName) throws SPSSFileException {
+		int column = file.getColumnIndexes(new String[] { name })[0];
+		OutputVariable out = new OutputVariable();
+		out.var = file.decodePlan.columns[column];
+		out.column = column;
+		out.name = newName != null ? newName : out.var.getName();
+		if (out.name.length() == 0 || out.name.getBytes(charset).length > 64)
+			throw new SPSSFileException("Invalid variable name: " + out.name);
+		for (int i = 0; i < variables.size(); i++) {
+			if (variables.get(i).name.equalsIgnoreCase(out.name))
+				throw new SPSSFileException("Duplicate variable name: " + out.name);
+		}
+		if (newName == null || newName.equalsIgnoreCase(out.var.getName()))
+			out.shortName = out.var.getShortName(); // the short name is kept
+		variables.add(out);
+	}
+
+	/**
+	 * Writes the system file
+	 * 
+	 * @param out
+	 *            the destination of the file (not closed)
+	 * @param cancel
+	 *            a token stopping the export when cancelled, or null
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void write(OutputStream out, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		if (variables.isEmpty()) {
+			for (int i = 0; i < file.decodePlan.columns.length; i++)
+				addVariable(file.decodePlan.columns[i].getName());
+		}
+		caseCount = Math.max(0, file.getRecordCount());
+		layout();
+
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		writeHeader(head);
+		for (int i = 0; i < variables.size(); i++)
+			writeVariable(head, variables.get(i));
+		for (int i = 0; i < variables.size(); i++)
+			writeValueLabels(head, variables.get(i));
+		writeMachineInfo(head);
+		writeDisplayParameters(head);
+		writeLongNames(head);
+		writeVeryLongStrings(head);
+		writeEncoding(head);
+		writeLongStringValueLabels(head);
+		writeInt(head, 999);
+		writeInt(head, 0);
+		head.writeTo(out);
+
+		writeData(out, cancel);
+	}
+
+	/**
+	 * Assigns the slots and the short names of the variables
+	 */
+	void layout() {
+		Set<String> used = new HashSet<String>();
+		for (int i = 0; i < variables.size(); i++) {
+			OutputVariable v = variables.get(i);
+			if (v.shortName != null && !used.add(v.shortName.toUpperCase()))
+				v.shortName = null;
+		}
+		slotCount = 0;
+		for (int i = 0; i < variables.size(); i++) {
+			OutputVariable v = variables.get(i);
+			if (v.shortName == null)
+				v.shortName = getShortName(v.name, used);
+			v.width = v.var.type == SPSSVariable.VariableType.NUMERIC ? 0 : ((SPSSStringVariable) v.var).getWidth();
+			int segments = v.width > 255 ? (v.width + 251) / 252 : 1;
+			v.segmentWidth = new int[segments];
+			v.segmentName = new String[segments];
+			for (int j = 0; j < segments; j++) {
+				v.segmentWidth[j] = segments == 1 ? v.width : (j < segments - 1 ? 255 : v.width - j * 252);
+				v.segmentName[j] = j == 0 ? v.shortName : getShortName(v.shortName.substring(0, Math.min(5, v.shortName.length())) + j, used);
+			}
+			v.slot = slotCount;
+			for (int j = 0; j < segments; j++)
+				slotCount += getSlots(v.segmentWidth[j]);
+		}
+	}
+
+	/**
+	 * Derives a unique short name (8 characters at most, in upper case) from a variable name
+	 */
+	String getShortName(String name, Set<String> used) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < name.length() && sb.length() < 8; i++) {
+			char c = Character.toUpperCase(name.charAt(i));
+			if ((c >= 'A' && c <= 'Z') || c == '@' || c == '#' || c == '$' || (sb.length() > 0 && ((c >= '0' && c <= '9') || c == '_' || c == '.')))
+				sb.append(c);
+		}
+		if (sb.length() == 0)
+			sb.append('V');
+		String base = sb.toString();
+		String shortName = base;
+		for (int n = 1; !used.add(shortName); n++) {
+			String suffix = Integer.toString(n);
+			shortName = base.substring(0, Math.min(base.length(), 8 - suffix.length())) + suffix;
+		}
+		return (shortName);
+	}
+
+	/**
+	 * @return the number of 8-byte slots used by a value
+	 */
+	static int getSlots(int width) {
+		return (width == 0 ? 1 : (width + 7) / 8);
+	}
+
+	/**
+	 * Writes the header record (type 1)
+	 */
+	void writeHeader(ByteArrayOutputStream out) {
+		writeFixed(out, "$FL2", 4);
+		writeFixed(out, "@(#) SPSS DATA FILE - org.opendatafoundation.data.spss", 60);
+		writeInt(out, 2); // layout code
+		writeInt(out, slotCount);
+		writeInt(out, compressed ? 1 : 0);
+		writeInt(out, getWeightIndex());
+		writeInt(out, caseCount);
+		writeDouble(out, COMPRESSION_BIAS);
+		Date now = new Date();
+		writeFixed(out, new SimpleDateFormat("dd MMM yy", Locale.US).format(now), 9);
+		writeFixed(out, new SimpleDateFormat("HH:mm:ss", Locale.US).format(now), 8);
+		writeFixed(out, file.infoRecord.fileLabel, 64);
+		out.write(0); // padding
+		out.write(0);
+		out.write(0);
+	}
+
+	/**
+	 * @return the 1-based slot of the weight variable, 0 if the source file is not weighted or its weight variable is not written
+	 */
+	int getWeightIndex() {
+		SPSSVariable weight = file.variableMap.get(file.infoRecord.weightVariableIndex - 1);
+		for (int i = 0; weight != null && i < variables.size(); i++) {
+			if (variables.get(i).var == weight)
+				return (variables.get(i).slot + 1);
+		}
+		return (0);
+	}
+
+	/**
+	 * Writes the variable records of a variable (type 2): one record for each segment, followed by a continuation record for each additional slot of the segment
+	 */
+	void writeVariable(ByteArrayOutputStream out, OutputVariable v) {
+		SPSSRecordType2 source = v.var.variableRecord;
+		for (int j = 0; j < v.segmentWidth.length; j++) {
+			int width = v.segmentWidth[j];
+			String label = j == 0 ? v.var.getLabel() : null;
+			boolean hasLabel = label != null && label.length() > 0;
+			int missingCount = j == 0 && v.segmentWidth.length == 1 ? source.missingValueFormatCode : 0;
+			writeInt(out, 2);
+			writeInt(out, width);
+			writeInt(out, hasLabel ? 1 : 0);
+			writeInt(out, missingCount);
+			if (v.width == 0) {
+				writeInt(out, getFormat(source.printFormatType, source.printFormatWidth, source.printFormatDecimals));
+				writeInt(out, getFormat(source.writeFormatType, source.writeFormatWidth, source.writeFormatDecimals));
+			} else {
+				writeInt(out, getFormat(1, width, 0)); // A format
+				writeInt(out, getFormat(1, width, 0));
+			}
+			writeFixed(out, v.segmentName[j], 8);
+			if (hasLabel) {
+				byte[] bytes = truncate(label, 255);
+				writeInt(out, bytes.length);
+				out.write(bytes, 0, bytes.length);
+				for (int k = bytes.length; k % 4 != 0; k++)
+					out.write(' ');
+			}
+			for (int k = 0; k < Math.abs(missingCount); k++) {
+				if (v.width == 0)
+					writeDouble(out, ((SPSSNumericVariable) v.var).getMissingValues()[k]);
+				else
+					out.write(source.missingValue[k], 0, 8);
+			}
+			for (int k = 1; k < getSlots(width); k++) {
+				writeInt(out, 2);
+				writeInt(out, -1); // continuation of a string
+				for (int n = 0; n < 4; n++)
+					writeInt(out, 0);
+				out.write(BLANKS, 0, 8);
+			}
+		}
+	}
+
+	static int getFormat(int type, int width, int decimals) {
+		return ((type << 16) | (Math.min(width, 255) << 8) | decimals);
+	}
+
+	/**
+	 * Writes the value labels of a numeric or short string variable (types 3 and 4)
+	 * 
+	 * @throws SPSSFileException
+	 */
+	void writeValueLabels(ByteArrayOutputStream out, OutputVariable v) throws SPSSFileException {
+		if (v.width > 8)
+			return; // written in the long string value labels record
+		List<SPSSVariableCategory> categories = getLabeledCategories(v);
+		if (categories.isEmpty())
+			return;
+		writeInt(out, 3);
+		writeInt(out, categories.size());
+		for (int i = 0; i < categories.size(); i++) {
+			SPSSVariableCategory cat = categories.get(i);
+			if (v.width == 0)
+				writeDouble(out, cat.value);
+			else
+				writePadded(out, cat.byteValue, 8);
+			byte[] label = truncate(cat.label, 255);
+			out.write(label.length);
+			out.write(label, 0, label.length);
+			for (int k = label.length + 1; k % 8 != 0; k++)
+				out.write(' ');
+		}
+		writeInt(out, 4);
+		writeInt(out, 1);
+		writeInt(out, v.slot + 1);
+	}
+
+	/**
+	 * @return the categories of a variable that have a label
+	 * @throws SPSSFileException
+	 */
+	static List<SPSSVariableCategory> getLabeledCategories(OutputVariable v) throws SPSSFileException {
+		List<SPSSVariableCategory> categories = new ArrayList<SPSSVariableCategory>();
+		if (!v.var.hasValueLabels())
+			return (categories);
+		Iterator<SPSSVariableCategory> it = v.var.getCategoryMap().values().iterator();
+		while (it.hasNext()) {
+			SPSSVariableCategory cat = it.next();
+			if (cat.label != null && cat.label.length() > 0 && (v.width == 0 || cat.byteValue != null))
+				categories.add(cat);
+		}
+		return (categories);
+	}
+
+	/**
+	 * Writes the machine integer and floating point information records (type 7 subtypes 3 and 4)
+	 */
+	void writeMachineInfo(ByteArrayOutputStream out) {
+		SPSSRecordType7Subtype3 source = file.integerInformationRecord;
+		writeInt(out, 7);
+		writeInt(out, 3);
+		writeInt(out, 4);
+		writeInt(out, 8);
+		writeInt(out, source != null ? source.releaseMajor : 1);
+		writeInt(out, source != null ? source.releaseMinor : 0);
+		writeInt(out, source != null ? source.releaseSpecial : 0);
+		writeInt(out, -1); // machine code
+		writeInt(out, 1); // IEEE 754
+		writeInt(out, 1); // compression code
+		writeInt(out, 2); // little-endian
+		writeInt(out, source != null ? source.characterRepresentation : 2);
+
+		writeInt(out, 7);
+		writeInt(out, 4);
+		writeInt(out, 8);
+		writeInt(out, 3);
+		writeDouble(out, -Double.MAX_VALUE); // system missing value
+		writeDouble(out, Double.MAX_VALUE); // HIGHEST
+		writeDouble(out, Math.nextUp(-Double.MAX_VALUE)); // LOWEST
+	}
+
+	/**
+	 * Writes the display parameters (type 7 subtype 11): the measure, width and alignment of each variable record but the continuations
+	 */
+	void writeDisplayParameters(ByteArrayOutputStream out) {
+		int count = 0;
+		for (int i = 0; i < variables.size(); i++)
+			count += variables.get(i).segmentWidth.length;
+		writeInt(out, 7);
+		writeInt(out, 11);
+		writeInt(out, 4);
+		writeInt(out, 3 * count);
+		for (int i = 0; i < variables.size(); i++) {
+			OutputVariable v = variables.get(i);
+			for (int j = 0; j < v.segmentWidth.length; j++) {
+				writeInt(out, v.var.measure > 0 ? v.var.measure : (v.width == 0 ? 3 : 1)); // scale or nominal
+				writeInt(out, v.var.displayWidth > 0 ? v.var.displayWidth : Math.max(1, Math.min(v.width == 0 ? 8 : v.width, 32)));
+				writeInt(out, v.var.alignment >= 0 ? v.var.alignment : (v.width == 0 ? 1 : 0)); // right or left
+			}
+		}
+	}
+
+	/**
+	 * Writes the long variable names (type 7 subtype 13): SHORT=Long pairs separated by tabs
+	 */
+	void writeLongNames(ByteArrayOutputStream out) {
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < variables.size(); i++) {
+			OutputVariable v = variables.get(i);
+			names.append(i > 0 ? "\t" : "").append(v.shortName).append('=').append(v.name);
+		}
+		writeTextRecord(out, 13, names.toString().getBytes(charset));
+	}
+
+	/**
+	 * Writes the widths of the very long strings (type 7 subtype 14): SHORT=width pairs, each followed by a null and a tab
+	 */
+	void writeVeryLongStrings(ByteArrayOutputStream out) {
+		StringBuilder widths = new StringBuilder();
+		for (int i = 0; i < variables.size(); i++) {
+			OutputVariable v = variables.get(i);
+			if (v.segmentWidth.length > 1)
+				widths.append(v.shortName).append('=').append(String.format("%05d", v.width)).append("\0\t");
+		}
+		if (widths.length() > 0)
+			writeTextRecord(out, 14, widths.toString().getBytes(charset));
+	}
+
+	/**
+	 * Writes the character encoding (type 7 subtype 20) of the source file
+	 */
+	void writeEncoding(ByteArrayOutputStream out) {
+		if (file.encodingRecord != null && file.encodingRecord.encoding != null)
+			writeTextRecord(out, 20, file.encodingRecord.encoding.getBytes(SPSSFlatBuffer.UTF8));
+	}
+
+	/**
+	 * Writes the value labels of the strings longer than 8 characters (type 7 subtype 21)
+	 * 
+	 * @throws SPSSFileException
+	 */
+	void writeLongStringValueLabels(ByteArrayOutputStream out) throws SPSSFileException {
+		ByteArrayOutputStream labels = new ByteArrayOutputStream();
+		for (int i = 0; i < variables.size(); i++) {
+			OutputVariable v = variables.get(i);
+			if (v.width <= 8)
+				continue;
+			List<SPSSVariableCategory> categories = getLabeledCategories(v);
+			if (categories.isEmpty())
+				continue;
+			byte[] name = v.name.getBytes(charset);
+			writeInt(labels, name.length);
+			labels.write(name, 0, name.length);
+			writeInt(labels, v.width);
+			writeInt(labels, categories.size());
+			for (int k = 0; k < categories.size(); k++) {
+				SPSSVariableCategory cat = categories.get(k);
+				writeInt(labels, v.width);
+				writePadded(labels, cat.byteValue, v.width);
+				byte[] label = truncate(cat.label, 255);
+				writeInt(labels, label.length);
+				labels.write(label, 0, label.length);
+			}
+		}
+		if (labels.size() > 0)
+			writeTextRecord(out, 21, labels.toByteArray());
+	}
+
+	/**
+	 * Writes a type 7 record made of bytes
+	 */
+	static void writeTextRecord(ByteArrayOutputStream out, int subtype, byte[] bytes) {
+		writeInt(out, 7);
+		writeInt(out, subtype);
+		writeInt(out, 1);
+		writeInt(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Copies the records. Each record is first laid out in 8-byte slots, the slots are then written as is, or compressed.
+	 * 
+	 * @param out
+	 * @param cancel
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	void writeData(OutputStream out, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		byte[] slots = new byte[8 * slotCount];
+		ByteBuffer slotView = ByteBuffer.wrap(slots).order(ByteOrder.LITTLE_ENDIAN);
+		boolean[] isNumeric = new boolean[slotCount];
+		for (int i = 0; i < variables.size(); i++) {
+			if (variables.get(i).width == 0)
+				isNumeric[variables.get(i).slot] = true;
+		}
+		ClusterWriter clusters = new ClusterWriter(out, Math.max(BLOCK_SIZE, slots.length));
+
+		SPSSDataRecord record = new SPSSDataRecord(file);
+		record.setPosition(file.dataStartPosition);
+		for (int obs = 1; obs <= caseCount; obs++) {
+			if (cancel != null && cancel.isCancelled())
+				throw new SPSSFileException("Export cancelled after " + (obs - 1) + " records");
+			record.readRecord();
+			for (int i = 0; i < variables.size(); i++) {
+				OutputVariable v = variables.get(i);
+				int position = 8 * v.slot;
+				if (v.width == 0) {
+					double value = record.numericValues[v.column];
+					slotView.putDouble(position, Double.isNaN(value) ? -Double.MAX_VALUE : value);
+					continue;
+				}
+				// each segment holds 255 characters of the value, padded with blanks to its slots
+				byte[] value = record.stringValues[v.column];
+				for (int j = 0; j < v.segmentWidth.length; j++) {
+					int start = 255 * j;
+					int length = Math.max(0, Math.min(v.segmentWidth.length == 1 ? v.width : 255, v.width - start));
+					int size = 8 * getSlots(v.segmentWidth[j]);
+					System.arraycopy(value, start, slots, position, length);
+					Arrays.fill(slots, position + length, position + size, (byte) ' ');
+					position += size;
+				}
+			}
+			if (!compressed) {
+				if (clusters.block.remaining() < slots.length)
+					clusters.flush();
+				clusters.block.put(slots);
+				continue;
+			}
+			for (int slot = 0, position = 0; slot < slotCount; slot++, position += 8) {
+				if (isNumeric[slot]) {
+					double value = slotView.getDouble(position);
+					if (value == -Double.MAX_VALUE)
+						clusters.putCode(255);
+					else if (value >= 1 - COMPRESSION_BIAS && value <= 251 - COMPRESSION_BIAS && value == (int) value)
+						clusters.putCode((int) (value + COMPRESSION_BIAS));
+					else
+						clusters.putLiteral(slots, position);
+				} else if (isBlank(slots, position))
+					clusters.putCode(254);
+				else
+					clusters.putLiteral(slots, position);
+			}
+		}
+		clusters.close();
+	}
+
+	static boolean isBlank(byte[] bytes, int position) {
+		for (int i = position; i < position + 8; i++) {
+			if (bytes[i] != ' ')
+				return (false);
+		}
+		return (true);
+	}
+
+	/**
+	 * Buffers the compression codes by clusters of 8, each cluster followed by the literal values of its codes, and writes them in blocks
+	 */
+	static class ClusterWriter {
+		final OutputStream out;
+		final ByteBuffer block;
+		final byte[] codes = new byte[8];
+		final byte[] literals = new byte[64];
+		int codeCount = 0;
+		int literalLength = 0;
+
+		ClusterWriter(OutputStream out, int blockSize) {
+			this.out = out;
+			block = ByteBuffer.allocate(blockSize);
+		}
+
+		void putCode(int code) throws IOException {
+			if (codeCount == 8)
+				endCluster();
+			codes[codeCount++] = (byte) code;
+		}
+
+		void putLiteral(byte[] bytes, int position) throws IOException {
+			putCode(253);
+			System.arraycopy(bytes, position, literals, literalLength, 8);
+			literalLength += 8;
+		}
+
+		/**
+		 * Moves the current cluster to the block, the unused codes being set to 0 (padding)
+		 */
+		void endCluster() throws IOException {
+			if (block.remaining() < 72)
+				flush();
+			Arrays.fill(codes, codeCount, 8, (byte) 0);
+			block.put(codes);
+			block.put(literals, 0, literalLength);
+			codeCount = 0;
+			literalLength = 0;
+		}
+
+		void flush() throws IOException {
+			out.write(block.array(), 0, block.position());
+			block.clear();
+		}
+
+		/**
+		 * Writes the last cluster and the buffered data
+		 */
+		void close() throws IOException {
+			if (codeCount > 0)
+				endCluster();
+			flush();
+		}
+	}
+
+	/**
+	 * Encodes a string, truncated to a number of bytes without splitting a character
+	 */
+	byte[] truncate(String str, int maxLength) {
+		if (str == null)
+			str = "";
+		byte[] bytes = str.getBytes(charset);
+		while (bytes.length > maxLength) {
+			str = str.substring(0, str.length() - 1);
+			bytes = str.getBytes(charset);
+		}
+		return (bytes);
+	}
+
+	/**
+	 * Writes bytes padded with blanks to a fixed size
+	 */
+	static void writePadded(ByteArrayOutputStream out, byte[] bytes, int size) {
+		int length = Math.min(bytes.length, size);
+		out.write(bytes, 0, length);
+		for (int i = length; i < size; i++)
+			out.write(' ');
+	}
+
+	/**
+	 * Writes a string padded with blanks to a fixed size
+	 */
+	void writeFixed(ByteArrayOutputStream out, String str, int size) {
+		writePadded(out, truncate(str, size), size);
+	}
+
+	static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+	static void writeDouble(ByteArrayOutputStream out, double value) {
+		long bits = Double.doubleToLongBits(value);
+		writeInt(out, (int) bits);
+		writeInt(out, (int) (bits >>> 32));
+	}
+}
@@ -0,0 +1,391 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opendatafoundation.data.FileFormatInfo;
+
+/**
+ * Exports the data of a file into shards limited by a number of rows and/or a number of bytes. The shards are named after a template file with a sequence number (data.csv gives data-00000.csv, data-00001.csv...) and each shard repeats the header line of the format. A manifest (data.manifest) lists the row range, the size and the SHA-256 checksum of each shard.
+ * <p>
+ * When the shards are only limited by rows, their row ranges are known in advance and they are written concurrently, each shard decoding its cases from its own position in the data. The positions of the shards of a compressed file are found by a serial scan of the compression codes (see SPSSFile.getDataPositions()) before any shard is started. A size limit depends on the formatted output, so these shards are written in sequence.
+ * <p>
+ * If the export fails, the shard files already written are deleted and no manifest is written.
+ * 
+ */
+public class SPSSShardedExport {
+	static final String CHECKSUM_ALGORITHM = "SHA-256";
+
+	final SPSSFile file;
+	final FileFormatInfo dataFormat;
+	long maxRows; // < the maximum number of rows per shard, 0 for no limit
+	long maxBytes; // < the maximum size of a shard (a shard holds at least one row), 0 for no limit
+	int threadCount = Runtime.getRuntime().availableProcessors();
+
+	final List<Shard> shards = new ArrayList<Shard>();
+	byte[] headerBytes;
+
+	/**
+	 * A shard of the export
+	 */
+	public static class Shard {
+		final File file;
+		final long firstRow; // < the 1-based number of the first row
+		long rows;
+		long bytes;
+		String checksum; // < the hex SHA-256 digest of the shard
+
+		Shard(File file, long firstRow) {
+			this.file = file;
+			this.firstRow = firstRow;
+		}
+
+		/**
+		 * @return the file of the shard
+		 */
+		public File getFile() {
+			return (file);
+		}
+
+		/**
+		 * @return the 1-based number of the first row of the shard
+		 */
+		public long getFirstRow() {
+			return (firstRow);
+		}
+
+		/**
+		 * @return the 1-based number of the last row of the shard
+		 */
+		public long getLastRow() {
+			return (firstRow + rows - 1);
+		}
+
+		/**
+		 * @return the number of rows of the shard
+		 */
+		public long getRows() {
+			return (rows);
+		}
+
+		/**
+		 * @return the size of the shard file in bytes
+		 */
+		public long getBytes() {
+			return (bytes);
+		}
+
+		/**
+		 * @return the SHA-256 checksum of the shard file, in hexadecimal
+		 */
+		public String getChecksum() {
+			return (checksum);
+		}
+
+		public String toString() {
+			return (file.getName() + "\t" + firstRow + "\t" + getLastRow() + "\t" + rows + "\t" + bytes + "\t" + checksum);
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            the file, its metadata must be loaded
+	 * @param dataFormat
+	 *            the export format
+	 * @param maxRows
+	 *            the maximum number of rows per shard, or 0 for no limit
+	 * @param maxBytes
+	 *            the maximum size of a shard in bytes, or 0 for no limit (a shard holds at least one row)
+	 * @throws SPSSFileException
+	 */
+	public SPSSShardedExport(SPSSFile file, FileFormatInfo dataFormat, long maxRows, long maxBytes) throws SPSSFileException {
+		if (file.decodePlan == null)
+			throw new SPSSFileException("Metadata has not been loaded");
+		if (maxRows <= 0 && maxBytes <= 0)
+			throw new SPSSFileException("A row or size limit is required to shard an export");
+		this.file = file;
+		this.dataFormat = dataFormat;
+		this.maxRows = maxRows;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Sets the number of shards written concurrently (one per available processor by default)
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	/**
+	 * Exports the data and writes the manifest. The shard files are deleted if the export fails.
+	 * 
+	 * @param template
+	 *            the template of the shard files
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void export(File template) throws IOException, SPSSFileException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		file.writeHeader(header, new SPSSRecordFormatter(file, dataFormat));
+		headerBytes = header.toByteArray();
+		shards.clear();
+		int caseCount = Math.max(0, file.getRecordCount());
+		boolean done = false;
+		try {
+			if (maxBytes <= 0 && threadCount > 1 && caseCount > maxRows)
+				exportConcurrently(template, caseCount);
+			else
+				exportSequentially(template, caseCount);
+			writeManifest(getManifestFile(template));
+			done = true;
+		} finally {
+			if (!done) {
+				for (int i = 0; i < shards.size(); i++) {
+					if (shards.get(i).file.isFile())
+						shards.get(i).file.delete();
+				}
+				getManifestFile(template).delete();
+				shards.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes the shards one after the other, starting a new shard when a limit is reached
+	 */
+	private void exportSequentially(File template, int caseCount) throws IOException, SPSSFileException {
+		SPSSRecordFormatter formatter = new SPSSRecordFormatter(file, dataFormat);
+		SPSSDataRecord record = new SPSSDataRecord(file);
+		record.setPosition(file.dataStartPosition);
+		Shard shard = null;
+		ShardOutput out = null;
+		try {
+			for (int i = 1; i <= caseCount; i++) {
+				record.readRecord();
+				record.trimStrings();
+				formatter.format(record);
+				int lineLength = formatter.getLength() + 1;
+				if (shard != null && ((maxRows > 0 && shard.rows == maxRows) || (maxBytes > 0 && out.bytes + lineLength > maxBytes))) {
+					out.close(shard);
+					out = null;
+				}
+				if (out == null) {
+					shard = new Shard(getShardFile(template, shards.size()), i);
+					shards.add(shard);
+					out = new ShardOutput(shard.file);
+				}
+				out.write(formatter.getBuffer(), formatter.getLength());
+				shard.rows++;
+			}
+			if (out != null)
+				out.close(shard);
+			out = null;
+		} finally {
+			if (out != null)
+				out.abort();
+		}
+	}
+
+	/**
+	 * Writes the shards limited by rows concurrently
+	 */
+	private void exportConcurrently(File template, int caseCount) throws IOException, SPSSFileException {
+		int shardCount = (int) ((caseCount + maxRows - 1) / maxRows);
+		int[] caseNumbers = new int[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			caseNumbers[i] = (int) (i * maxRows);
+			shards.add(new Shard(getShardFile(template, i), caseNumbers[i] + 1));
+		}
+		final SPSSDataPosition[] positions = file.getDataPositions(caseNumbers);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, shardCount));
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (int i = 0; i < shardCount; i++) {
+				final Shard shard = shards.get(i);
+				final long rows = Math.min(maxRows, caseCount - caseNumbers[i]);
+				final SPSSDataPosition position = positions[i];
+				results.add(executor.submit(new Callable<Object>() {
+					public Object call() throws IOException, SPSSFileException {
+						SPSSRecordFormatter formatter = new SPSSRecordFormatter(file, dataFormat);
+						SPSSDataRecord record = new SPSSDataRecord(file);
+						record.setDataPosition(position);
+						ShardOutput out = new ShardOutput(shard.file);
+						try {
+							for (long n = 0; n < rows; n++) {
+								record.readRecord();
+								record.trimStrings();
+								formatter.format(record);
+								out.write(formatter.getBuffer(), formatter.getLength());
+							}
+							shard.rows = rows;
+							out.close(shard);
+							out = null;
+						} finally {
+							if (out != null)
+								out.abort();
+						}
+						return (null);
+					}
+				}));
+			}
+			file.waitFor(results);
+		} finally {
+			// the tasks are not interrupted: this would close the channel of the file
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Writes the manifest: a tab delimited file with one line per shard
+	 */
+	private void writeManifest(File manifest) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8");
+		try {
+			out.write("file\tfirstRow\tlastRow\trows\tbytes\t" + CHECKSUM_ALGORITHM.toLowerCase().replace("-", "") + "\n");
+			for (int i = 0; i < shards.size(); i++)
+				out.write(shards.get(i) + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the file of a shard: the template name followed by the shard number
+	 */
+	static File getShardFile(File template, int number) {
+		String name = template.getName();
+		String extension = "";
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			extension = name.substring(dot);
+			name = name.substring(0, dot);
+		}
+		return (new File(template.getAbsoluteFile().getParentFile(), name + String.format("-%05d", number) + extension));
+	}
+
+	/**
+	 * @return the manifest file: the template name with the .manifest extension
+	 */
+	public static File getManifestFile(File template) {
+		String name = template.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		return (new File(template.getAbsoluteFile().getParentFile(), name + ".manifest"));
+	}
+
+	/**
+	 * @return the shards, in row order
+	 */
+	public List<Shard> getShards() {
+		return (Collections.unmodifiableList(shards));
+	}
+
+	/**
+	 * The output of a shard: counts the bytes and computes the checksum of what is written
+	 */
+	class ShardOutput {
+		final OutputStream out;
+		final MessageDigest digest;
+		long bytes;
+
+		ShardOutput(File shardFile) throws IOException, SPSSFileException {
+			try {
+				digest = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new SPSSFileException("Checksum algorithm not available: " + CHECKSUM_ALGORITHM);
+			}
+			out = new BufferedOutputStream(new FileOutputStream(shardFile), 65536);
+			write(headerBytes, headerBytes.length, false);
+		}
+
+		/**
+		 * Writes a formatted record and its line break
+		 */
+		void write(byte[] buffer, int length) throws IOException {
+			write(buffer, length, true);
+		}
+
+		private void write(byte[] buffer, int length, boolean newLine) throws IOException {
+			out.write(buffer, 0, length);
+			digest.update(buffer, 0, length);
+			bytes += length;
+			if (newLine) {
+				out.write('\n');
+				digest.update((byte) '\n');
+				bytes++;
+			}
+		}
+
+		/**
+		 * Closes the shard file and records its size and checksum
+		 */
+		void close(Shard shard) throws IOException {
+			out.close();
+			shard.bytes = bytes;
+			StringBuilder sb = new StringBuilder();
+			byte[] hash = digest.digest();
+			for (int i = 0; i < hash.length; i++)
+				sb.append(String.format("%02x", hash[i] & 0xFF));
+			shard.checksum = sb.toString();
+		}
+
+		/**
+		 * Closes the shard file after a failure
+		 */
+		void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the export already failed
+			}
+		}
+	}
+}
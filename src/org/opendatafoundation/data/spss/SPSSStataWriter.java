@@ -0,0 +1,754 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.opendatafoundation.data.FileFormatInfo;
+
+/**
+ * Writes the data of a SPSS file as a Stata .dta file (format 117 or 118, little-endian). A first pass over the data collects the range of the numeric variables and the length of the strings, so each variable gets the most compact Stata storage type holding all its values exactly. The records are then converted in large blocks and streamed to the output.
+ * <p>
+ * The variables keep their long names (made valid Stata names) and labels. Dates and times are converted to Stata dates (%td) and datetimes (%tc). System missing values are written as . and the user missing values as the extended missing values .a, .b and .c. The value labels with integer values are written as Stata value labels, a label set being shared by the variables with identical labels. Strings longer than 2045 bytes are written as strL.
+ * 
+ */
+public class SPSSStataWriter {
+	/* Stata storage types */
+	static final int TYPE_STRL = 32768;
+	static final int TYPE_DOUBLE = 65526;
+	static final int TYPE_FLOAT = 65527;
+	static final int TYPE_LONG = 65528;
+	static final int TYPE_INT = 65529;
+	static final int TYPE_BYTE = 65530;
+	static final int MAX_STR_WIDTH = 2045; // < the widest str# type
+
+	/* Value conversions */
+	static final int AS_NUMBER = 0; // < the value is written as is
+	static final int AS_DAYS = 1; // < SPSS date to Stata date (days since 1 Jan 1960)
+	static final int AS_MILLISECONDS = 2; // < SPSS date/time to Stata datetime (milliseconds since 1 Jan 1960)
+	static final int AS_TIME = 3; // < SPSS time to Stata datetime (milliseconds of a day)
+
+	static final double FLOAT_MAX = 1.70141173319e38; // < largest non missing Stata float
+	static final double DOUBLE_MAX = 8.988465674311579e307; // < largest non missing Stata double
+	static final Charset ASCII = Charset.forName("US-ASCII");
+	static final int BLOCK_SIZE = 1 << 20; // < size of the blocks of records written to the output
+	static final Set<String> RESERVED_NAMES = new HashSet<String>(Arrays.asList(new String[] { "_all", "_b", "byte", "_coef", "_cons", "double", "float", "if", "in", "int", "long", "_n", "_N", "_pi", "_pred", "_rc", "_skip", "strL", "using", "with" }));
+
+	SPSSFile file;
+	int release; // < 117 or 118
+	Charset charset; // < the character set of the strings (UTF-8 for 118, windows-1252 for 117)
+	int nameSize; // < the size of the name fields (variables, label sets)
+	int labelSize; // < the size of the variable label fields
+	int caseCount;
+
+	// one entry per variable
+	SPSSVariable[] columns;
+	int[] storageType;
+	int[] cellWidth; // < the number of bytes of the variable in a record
+	int[] conversion;
+	String[] names;
+	String[] labelSetNames; // < the value label set of each variable ("" if none)
+	int recordLength;
+	long strlSize; // < the size of the strL section content
+	boolean hasStrl;
+
+	// string conversion
+	boolean sameCharset; // < the strings of the SPSS file are already in the .dta character set
+	int convertedLength;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            the SPSS file, with its metadata loaded
+	 * @param dataFormat
+	 *            the export format (the stataRelease option selects the .dta format)
+	 * @throws SPSSFileException
+	 *             if the release is not supported or the file has too many variables
+	 */
+	public SPSSStataWriter(SPSSFile file, FileFormatInfo dataFormat) throws SPSSFileException {
+		this.file = file;
+		release = dataFormat.stataRelease;
+		if (release == 118) {
+			charset = Charset.forName("UTF-8");
+			nameSize = 129;
+			labelSize = 321;
+		} else if (release == 117) {
+			charset = Charset.forName("windows-1252");
+			nameSize = 33;
+			labelSize = 81;
+		} else
+			throw new SPSSFileException("Unsupported Stata release: " + release + " (117 or 118)");
+		columns = file.decodePlan.columns;
+		if (columns.length > 32767)
+			throw new SPSSFileException("Stata files cannot hold more than 32767 variables");
+		caseCount = file.getRecordCount();
+		if (caseCount < 0)
+			caseCount = 0;
+
+		int n = columns.length;
+		storageType = new int[n];
+		cellWidth = new int[n];
+		conversion = new int[n];
+		names = new String[n];
+		labelSetNames = new String[n];
+		Set<String> used = new HashSet<String>();
+		for (int i = 0; i < n; i++) {
+			names[i] = getStataName(columns[i].getName(), i, used);
+			if (columns[i].type == SPSSVariable.VariableType.NUMERIC) {
+				conversion[i] = getConversion(columns[i].variableRecord.writeFormatType);
+			}
+		}
+	}
+
+	/**
+	 * Writes the .dta file
+	 * 
+	 * @param out
+	 *            the destination of the file (not closed)
+	 * @param cancel
+	 *            a token stopping the export when cancelled, or null
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void write(OutputStream out, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		analyze(cancel);
+
+		// everything before the data is built in memory, the map of the section offsets is filled in last
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		long[] map = new long[14];
+		writeTag(head, "<stata_dta><header><release>" + release + "</release><byteorder>LSF</byteorder><K>");
+		writeShort(head, columns.length);
+		writeTag(head, "</K><N>");
+		if (release == 117)
+			writeInt(head, caseCount);
+		else
+			writeLong(head, caseCount);
+		writeTag(head, "</N><label>");
+		byte[] label = truncate(file.infoRecord.fileLabel, release == 117 ? 80 : 320);
+		if (release == 117)
+			head.write(label.length);
+		else
+			writeShort(head, label.length);
+		head.write(label, 0, label.length);
+		writeTag(head, "</label><timestamp>");
+		byte[] timestamp = new SimpleDateFormat("dd MMM yyyy HH:mm", Locale.US).format(new Date()).getBytes(ASCII);
+		head.write(timestamp.length);
+		head.write(timestamp, 0, timestamp.length);
+		writeTag(head, "</timestamp></header>");
+		map[1] = head.size();
+		writeTag(head, "<map>");
+		int mapPosition = head.size();
+		for (int i = 0; i < map.length; i++)
+			writeLong(head, 0);
+		writeTag(head, "</map>");
+		map[2] = head.size();
+		writeTag(head, "<variable_types>");
+		for (int i = 0; i < columns.length; i++)
+			writeShort(head, storageType[i]);
+		writeTag(head, "</variable_types>");
+		map[3] = head.size();
+		writeTag(head, "<varnames>");
+		for (int i = 0; i < columns.length; i++)
+			writeFixed(head, names[i], nameSize);
+		writeTag(head, "</varnames>");
+		map[4] = head.size();
+		writeTag(head, "<sortlist>");
+		for (int i = 0; i <= columns.length; i++)
+			writeShort(head, 0);
+		writeTag(head, "</sortlist>");
+		map[5] = head.size();
+		writeTag(head, "<formats>");
+		for (int i = 0; i < columns.length; i++)
+			writeFixed(head, getStataFormat(i), release == 117 ? 49 : 57);
+		writeTag(head, "</formats>");
+		byte[] valueLabels = getValueLabels();
+		map[6] = head.size();
+		writeTag(head, "<value_label_names>");
+		for (int i = 0; i < columns.length; i++)
+			writeFixed(head, labelSetNames[i], nameSize);
+		writeTag(head, "</value_label_names>");
+		map[7] = head.size();
+		writeTag(head, "<variable_labels>");
+		for (int i = 0; i < columns.length; i++)
+			writeFixed(head, columns[i].getLabel(), labelSize);
+		writeTag(head, "</variable_labels>");
+		map[8] = head.size();
+		writeTag(head, "<characteristics></characteristics>");
+		map[9] = head.size();
+		map[10] = map[9] + "<data>".length() + (long) caseCount * recordLength + "</data>".length();
+		map[11] = map[10] + "<strls>".length() + strlSize + "</strls>".length();
+		map[12] = map[11] + "<value_labels>".length() + valueLabels.length + "</value_labels>".length();
+		map[13] = map[12] + "</stata_dta>".length();
+		byte[] bytes = head.toByteArray();
+		ByteBuffer.wrap(bytes, mapPosition, 8 * map.length).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(map);
+		out.write(bytes);
+
+		out.write(getTag("<data>"));
+		writeData(out, cancel);
+		out.write(getTag("</data><strls>"));
+		if (hasStrl)
+			writeStrls(out, cancel);
+		out.write(getTag("</strls><value_labels>"));
+		out.write(valueLabels);
+		out.write(getTag("</value_labels></stata_dta>"));
+	}
+
+	/**
+	 * Reads the data once to choose the storage type of each variable
+	 * 
+	 * @param cancel
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	void analyze(SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		int n = columns.length;
+		boolean[] seen = new boolean[n];
+		boolean[] integral = new boolean[n];
+		boolean[] floatExact = new boolean[n];
+		double[] min = new double[n];
+		double[] max = new double[n];
+		int[] maxLength = new int[n];
+		long[] gsoSize = new long[n]; // < the size of the values of a string variable if it is written as strL
+		Arrays.fill(integral, true);
+		Arrays.fill(floatExact, true);
+
+		SPSSDataRecord record = new SPSSDataRecord(file);
+		record.setPosition(file.dataStartPosition);
+		sameCharset = charset.equals(record.stringDecoder.getCharset());
+		for (int obs = 1; obs <= caseCount; obs++) {
+			if (cancel != null && cancel.isCancelled())
+				throw new SPSSFileException("Export cancelled");
+			record.readRecord();
+			record.trimStrings();
+			for (int i = 0; i < n; i++) {
+				if (columns[i].type == SPSSVariable.VariableType.NUMERIC) {
+					double value = record.numericValues[i];
+					if (getMissingIndex(i, value) >= 0)
+						continue;
+					if (conversion[i] == AS_DAYS) {
+						if (value % 86400 != 0)
+							conversion[i] = AS_MILLISECONDS; // the dates have a time part
+						value = Math.floor((value - SPSSUtils.EPOCH_1960) / 86400);
+					}
+					if (!seen[i]) {
+						min[i] = value;
+						max[i] = value;
+						seen[i] = true;
+					} else if (value < min[i])
+						min[i] = value;
+					else if (value > max[i])
+						max[i] = value;
+					if (integral[i] && value != Math.rint(value))
+						integral[i] = false;
+					if (floatExact[i] && (double) (float) value != value)
+						floatExact[i] = false;
+				} else {
+					convertString(record, i);
+					if (convertedLength > maxLength[i])
+						maxLength[i] = convertedLength;
+					if (convertedLength > 0)
+						gsoSize[i] += (release == 117 ? 16 : 20) + convertedLength + 1;
+				}
+			}
+		}
+
+		// choose the storage types
+		recordLength = 0;
+		strlSize = 0;
+		hasStrl = false;
+		for (int i = 0; i < n; i++) {
+			if (columns[i].type != SPSSVariable.VariableType.NUMERIC) {
+				if (maxLength[i] > MAX_STR_WIDTH) {
+					storageType[i] = TYPE_STRL;
+					cellWidth[i] = 8;
+					strlSize += gsoSize[i];
+					hasStrl = true;
+				} else {
+					storageType[i] = Math.max(1, maxLength[i]);
+					cellWidth[i] = storageType[i];
+				}
+			} else if (conversion[i] == AS_MILLISECONDS || conversion[i] == AS_TIME) {
+				storageType[i] = TYPE_DOUBLE;
+				cellWidth[i] = 8;
+			} else if (!seen[i] || (integral[i] && min[i] >= -127 && max[i] <= 100)) {
+				storageType[i] = TYPE_BYTE;
+				cellWidth[i] = 1;
+			} else if (integral[i] && min[i] >= -32767 && max[i] <= 32740) {
+				storageType[i] = TYPE_INT;
+				cellWidth[i] = 2;
+			} else if (integral[i] && min[i] >= -2147483647 && max[i] <= 2147483620) {
+				storageType[i] = TYPE_LONG;
+				cellWidth[i] = 4;
+			} else if (floatExact[i] && min[i] >= -FLOAT_MAX && max[i] <= FLOAT_MAX) {
+				storageType[i] = TYPE_FLOAT;
+				cellWidth[i] = 4;
+			} else {
+				storageType[i] = TYPE_DOUBLE;
+				cellWidth[i] = 8;
+			}
+			recordLength += cellWidth[i];
+		}
+	}
+
+	/**
+	 * Writes the records in blocks
+	 * 
+	 * @param out
+	 * @param cancel
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	void writeData(OutputStream out, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		final int n = columns.length;
+		ByteBuffer block = ByteBuffer.allocate(Math.max(BLOCK_SIZE, recordLength)).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] blockBytes = block.array();
+		SPSSDataRecord record = new SPSSDataRecord(file);
+		record.setPosition(file.dataStartPosition);
+		for (int obs = 1; obs <= caseCount; obs++) {
+			if (cancel != null && cancel.isCancelled())
+				throw new SPSSFileException("Export cancelled after " + (obs - 1) + " records");
+			record.readRecord();
+			record.trimStrings();
+			if (block.remaining() < recordLength) {
+				out.write(blockBytes, 0, block.position());
+				block.clear();
+			}
+			for (int i = 0; i < n; i++) {
+				int type = storageType[i];
+				if (type <= MAX_STR_WIDTH) {
+					byte[] value = convertString(record, i);
+					int length = Math.min(convertedLength, type);
+					block.put(value, 0, length);
+					for (int k = length; k < type; k++)
+						block.put((byte) 0);
+				} else if (type == TYPE_STRL) {
+					convertString(record, i);
+					int v = convertedLength > 0 ? i + 1 : 0; // (0,0) is the empty string
+					int o = convertedLength > 0 ? obs : 0;
+					if (release == 117) {
+						block.putInt(v);
+						block.putInt(o);
+					} else {
+						block.putShort((short) v);
+						block.putInt(o);
+						block.putShort((short) 0);
+					}
+				} else {
+					double value = record.numericValues[i];
+					int missing = getMissingIndex(i, value);
+					if (missing >= 0) {
+						putMissing(block, type, missing);
+						continue;
+					}
+					switch (conversion[i]) {
+					case AS_DAYS:
+						value = Math.floor((value - SPSSUtils.EPOCH_1960) / 86400);
+						break;
+					case AS_MILLISECONDS:
+						value = (value - SPSSUtils.EPOCH_1960) * 1000;
+						break;
+					case AS_TIME:
+						value = value * 1000;
+						break;
+					}
+					switch (type) {
+					case TYPE_BYTE:
+						block.put((byte) value);
+						break;
+					case TYPE_INT:
+						block.putShort((short) value);
+						break;
+					case TYPE_LONG:
+						block.putInt((int) value);
+						break;
+					case TYPE_FLOAT:
+						block.putFloat((float) value);
+						break;
+					default:
+						block.putDouble(value);
+					}
+				}
+			}
+		}
+		out.write(blockBytes, 0, block.position());
+	}
+
+	/**
+	 * Writes the values of the strL variables as GSO (generic string object) entries
+	 * 
+	 * @param out
+	 * @param cancel
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	void writeStrls(OutputStream out, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		final int n = columns.length;
+		ByteBuffer gso = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+		ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 65536);
+		SPSSDataRecord record = new SPSSDataRecord(file);
+		record.setPosition(file.dataStartPosition);
+		for (int obs = 1; obs <= caseCount; obs++) {
+			if (cancel != null && cancel.isCancelled())
+				throw new SPSSFileException("Export cancelled");
+			record.readRecord();
+			record.trimStrings();
+			for (int i = 0; i < n; i++) {
+				if (storageType[i] != TYPE_STRL)
+					continue;
+				byte[] value = convertString(record, i);
+				if (convertedLength == 0)
+					continue;
+				gso.clear();
+				gso.put((byte) 'G').put((byte) 'S').put((byte) 'O');
+				gso.putInt(i + 1);
+				if (release == 117)
+					gso.putInt(obs);
+				else
+					gso.putLong(obs);
+				gso.put((byte) 130); // null terminated string
+				gso.putInt(convertedLength + 1);
+				block.write(gso.array(), 0, gso.position());
+				block.write(value, 0, convertedLength);
+				block.write(0);
+			}
+			if (block.size() >= BLOCK_SIZE) {
+				block.writeTo(out);
+				block.reset();
+			}
+		}
+		block.writeTo(out);
+	}
+
+	/**
+	 * Builds the value label sets of the numeric variables. The labels of non integer values cannot be written and are ignored, the labels of the user missing values are attached to the extended missing values.
+	 * 
+	 * @return the content of the value labels section
+	 * @throws SPSSFileException
+	 */
+	byte[] getValueLabels() throws SPSSFileException {
+		ByteArrayOutputStream labels = new ByteArrayOutputStream();
+		Map<ByteBuffer, String> labelSets = new HashMap<ByteBuffer, String>(); // < the name of each label table written, keyed on its content
+		for (int i = 0; i < columns.length; i++) {
+			labelSetNames[i] = "";
+			SPSSVariable var = columns[i];
+			if (var.type != SPSSVariable.VariableType.NUMERIC || conversion[i] != AS_NUMBER || !var.hasValueLabels())
+				continue;
+			TreeMap<Integer, byte[]> entries = new TreeMap<Integer, byte[]>();
+			Iterator<SPSSVariableCategory> it = var.getCategoryMap().values().iterator();
+			while (it.hasNext()) {
+				SPSSVariableCategory cat = it.next();
+				if (cat.label == null || cat.label.length() == 0)
+					continue;
+				int missing = getMissingIndex(i, cat.value);
+				if (missing > 0)
+					entries.put(2147483621 + missing, truncate(cat.label, 32000));
+				else if (missing < 0 && cat.value == Math.rint(cat.value) && cat.value >= -2147483647 && cat.value <= 2147483620)
+					entries.put((int) cat.value, truncate(cat.label, 32000));
+			}
+			if (entries.isEmpty())
+				continue;
+
+			// table: n, text length, text offsets, values, text
+			int textLength = 0;
+			Iterator<byte[]> texts = entries.values().iterator();
+			while (texts.hasNext())
+				textLength += texts.next().length + 1;
+			ByteBuffer table = ByteBuffer.allocate(8 + 8 * entries.size() + textLength).order(ByteOrder.LITTLE_ENDIAN);
+			table.putInt(entries.size());
+			table.putInt(textLength);
+			int offset = 0;
+			texts = entries.values().iterator();
+			while (texts.hasNext()) {
+				table.putInt(offset);
+				offset += texts.next().length + 1;
+			}
+			Iterator<Integer> values = entries.keySet().iterator();
+			while (values.hasNext())
+				table.putInt(values.next());
+			texts = entries.values().iterator();
+			while (texts.hasNext()) {
+				table.put(texts.next());
+				table.put((byte) 0);
+			}
+			table.flip(); // the map compares the remaining bytes of the tables
+
+			String name = labelSets.get(table);
+			if (name != null) {
+				labelSetNames[i] = name; // same labels as a previous variable
+				continue;
+			}
+			labelSets.put(table, names[i]);
+			labelSetNames[i] = names[i];
+			writeTag(labels, "<lbl>");
+			writeInt(labels, table.capacity());
+			writeFixed(labels, names[i], nameSize);
+			labels.write(0); // padding
+			labels.write(0);
+			labels.write(0);
+			labels.write(table.array(), 0, table.capacity());
+			writeTag(labels, "</lbl>");
+		}
+		return (labels.toByteArray());
+	}
+
+	/**
+	 * Gets the missing value index of a numeric value
+	 * 
+	 * @param column
+	 * @param value
+	 * @return -1 for a valid value, 0 for a system missing value (or a value out of the Stata range), 1 to 3 for the user missing values (.a to .c)
+	 */
+	int getMissingIndex(int column, double value) {
+		if (Double.isNaN(value) || value > DOUBLE_MAX || value < -DOUBLE_MAX)
+			return (0);
+		int index = ((SPSSNumericVariable) columns[column]).getMissingValueIndex(value);
+		if (index > 0)
+			return (index);
+		return (-1);
+	}
+
+	/**
+	 * Writes a missing value
+	 * 
+	 * @param block
+	 * @param type
+	 *            the storage type
+	 * @param index
+	 *            0 for ., 1 to 26 for .a to .z
+	 */
+	static void putMissing(ByteBuffer block, int type, int index) {
+		switch (type) {
+		case TYPE_BYTE:
+			block.put((byte) (101 + index));
+			break;
+		case TYPE_INT:
+			block.putShort((short) (32741 + index));
+			break;
+		case TYPE_LONG:
+			block.putInt(2147483621 + index);
+			break;
+		case TYPE_FLOAT:
+			block.putInt(0x7f000000 + (index << 11));
+			break;
+		default:
+			block.putLong(0x7fe0000000000000L + ((long) index << 40));
+		}
+	}
+
+	/**
+	 * Gets the conversion of the values of a numeric variable from its SPSS write format
+	 * 
+	 * @param formatType
+	 * @return the conversion
+	 */
+	static int getConversion(int formatType) {
+		switch (formatType) {
+		case 20: // DATE
+		case 23: // ADATE
+		case 24: // JDATE
+		case 28: // MOYR
+		case 29: // QYR
+		case 30: // WKYR
+		case 38: // EDATE
+		case 39: // SDATE
+			return (AS_DAYS);
+		case 22: // DATETIME
+			return (AS_MILLISECONDS);
+		case 21: // TIME
+			return (AS_TIME);
+		default:
+			return (AS_NUMBER);
+		}
+	}
+
+	/**
+	 * Gets the Stata display format of a variable
+	 * 
+	 * @param column
+	 * @return the format
+	 */
+	String getStataFormat(int column) {
+		SPSSVariable var = columns[column];
+		if (storageType[column] == TYPE_STRL)
+			return ("%9s");
+		if (var.type != SPSSVariable.VariableType.NUMERIC)
+			return ("%-" + storageType[column] + "s");
+		int width = Math.max(1, var.variableRecord.writeFormatWidth);
+		int decimals = var.getDecimals();
+		int formatType = var.variableRecord.writeFormatType;
+		switch (conversion[column]) {
+		case AS_DAYS:
+			if (formatType == 23)
+				return ("%tdNN/DD/CCYY");
+			else if (formatType == 38)
+				return ("%tdDD.NN.CCYY");
+			else if (formatType == 39)
+				return ("%tdCCYY/NN/DD");
+			else if (formatType == 28)
+				return ("%tdMon_CCYY");
+			return ("%td");
+		case AS_MILLISECONDS:
+			return (formatType == 21 ? "%tcHH:MM:SS" : "%tc");
+		case AS_TIME:
+			return ("%tcHH:MM:SS");
+		}
+		switch (formatType) {
+		case 3: // comma
+		case 4: // dollar
+			return ("%" + width + "." + decimals + "fc");
+		case 5: // fixed
+			return ("%" + width + "." + decimals + "f");
+		case 17: // scientific notation
+			return ("%" + width + "." + decimals + "e");
+		default:
+			return ("%9.0g");
+		}
+	}
+
+	/**
+	 * Makes a valid and unique Stata variable name from a SPSS variable name: the characters that are not letters, digits or underscores are replaced by underscores and the name is truncated to 32 characters
+	 * 
+	 * @param name
+	 *            the SPSS name
+	 * @param column
+	 *            the index of the variable
+	 * @param used
+	 *            the names already given
+	 * @return the Stata name
+	 */
+	String getStataName(String name, int column, Set<String> used) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < name.length() && sb.length() < 32; i++) {
+			char c = name.charAt(i);
+			boolean valid = c == '_' || (c < 128 || release >= 118) && Character.isLetterOrDigit(c);
+			sb.append(valid ? c : '_');
+		}
+		if (sb.length() == 0 || Character.isDigit(sb.charAt(0)) || RESERVED_NAMES.contains(sb.toString()) || sb.toString().matches("str[0-9]+"))
+			sb.insert(0, '_');
+		if (sb.length() > 32)
+			sb.setLength(32);
+		String stataName = sb.toString();
+		for (int k = 2; used.contains(stataName); k++) {
+			String suffix = "_" + k;
+			stataName = sb.substring(0, Math.min(sb.length(), 32 - suffix.length())) + suffix;
+		}
+		used.add(stataName);
+		return (stataName);
+	}
+
+	/**
+	 * Converts a string value of the current record to the character set of the .dta file. The length of the converted value is stored in convertedLength.
+	 * 
+	 * @param record
+	 * @param column
+	 * @return the converted value (the record buffer itself if the value needs no conversion)
+	 */
+	byte[] convertString(SPSSDataRecord record, int column) {
+		byte[] bytes = record.stringValues[column];
+		int length = record.stringLengths[column];
+		if (sameCharset || (record.stringDecoder.isAsciiCompatible && SPSSUtils.isAscii(bytes, length))) {
+			convertedLength = length;
+			return (bytes);
+		}
+		byte[] converted = record.stringDecoder.decode(bytes, 0, length).getBytes(charset);
+		convertedLength = converted.length;
+		return (converted);
+	}
+
+	/**
+	 * Encodes a string, truncated to a number of bytes without splitting a character
+	 * 
+	 * @param str
+	 * @param maxLength
+	 * @return the bytes
+	 */
+	byte[] truncate(String str, int maxLength) {
+		byte[] bytes = (str == null ? "" : str).getBytes(charset);
+		if (bytes.length <= maxLength)
+			return (bytes);
+		int length = maxLength;
+		if (release >= 118) {
+			while (length > 0 && (bytes[length] & 0xC0) == 0x80)
+				length--; // continuation byte of a UTF-8 character
+		}
+		return (Arrays.copyOf(bytes, length));
+	}
+
+	/**
+	 * Writes a null terminated string in a fixed size field
+	 */
+	void writeFixed(ByteArrayOutputStream out, String str, int size) {
+		byte[] bytes = truncate(str, size - 1);
+		out.write(bytes, 0, bytes.length);
+		for (int i = bytes.length; i < size; i++)
+			out.write(0);
+	}
+
+	static byte[] getTag(String tag) {
+		return (tag.getBytes(ASCII));
+	}
+
+	static void writeTag(ByteArrayOutputStream out, String tag) {
+		byte[] bytes = getTag(tag);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >>> 8);
+	}
+
+	static void writeInt(ByteArrayOutputStream out, int value) {
+		writeShort(out, value);
+		writeShort(out, value >>> 16);
+	}
+
+	static void writeLong(ByteArrayOutputStream out, long value) {
+		writeInt(out, (int) value);
+		writeInt(out, (int) (value >>> 32));
+	}
+}
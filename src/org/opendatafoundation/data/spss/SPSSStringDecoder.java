@@ -0,0 +1,116 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes the byte strings of a SPSS file into Strings. The charset decoder is created once and reused. Values made of 7-bit characters are copied directly when the charset is ASCII compatible, and Latin-1 values are always copied directly. Instances are not thread safe.
+ */
+public class SPSSStringDecoder {
+	static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	Charset charset;
+	CharsetDecoder decoder;
+	boolean isLatin1; // < every byte maps to the char with the same value
+	boolean isAsciiCompatible; // < bytes 0-127 map to the char with the same value
+	char[] chars = new char[256]; // < reusable output buffer of the decoder
+
+	/**
+	 * Constructor
+	 * 
+	 * @param charset
+	 *            the charset of the strings, or null for the platform default charset
+	 */
+	public SPSSStringDecoder(Charset charset) {
+		this.charset = (charset != null) ? charset : Charset.defaultCharset();
+		decoder = this.charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		isLatin1 = this.charset.equals(LATIN1);
+		// check the 7-bit range once
+		byte[] ascii = new byte[128];
+		for (int i = 0; i < 128; i++)
+			ascii[i] = (byte) i;
+		isAsciiCompatible = new String(ascii, LATIN1).equals(new String(ascii, this.charset));
+	}
+
+	/**
+	 * @return the charset used to decode the strings
+	 */
+	public Charset getCharset() {
+		return (charset);
+	}
+
+	/**
+	 * Decodes a byte string.
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return the decoded String
+	 */
+	public String decode(byte[] bytes, int offset, int length) {
+		if (length == 0)
+			return ("");
+		if (isLatin1 || (isAsciiCompatible && isAscii(bytes, offset, length)))
+			return (new String(bytes, offset, length, LATIN1));
+		// general case
+		int maxLength = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+		if (chars.length < maxLength)
+			chars = new char[maxLength];
+		CharBuffer out = CharBuffer.wrap(chars);
+		decoder.reset();
+		decoder.decode(ByteBuffer.wrap(bytes, offset, length), out, true);
+		decoder.flush(out);
+		return (new String(chars, 0, out.position()));
+	}
+
+	/**
+	 * Decodes a byte string.
+	 * 
+	 * @param bytes
+	 * @return the decoded String
+	 */
+	public String decode(byte[] bytes) {
+		return (decode(bytes, 0, bytes.length));
+	}
+
+	private static boolean isAscii(byte[] bytes, int offset, int length) {
+		for (int i = offset, end = offset + length; i < end; i++) {
+			if (bytes[i] < 0)
+				return (false);
+		}
+		return (true);
+	}
+}
@@ -29,7 +29,9 @@ package org.opendatafoundation.data.spss;
  * 
  */
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.opendatafoundation.data.FileFormatInfo;
@@ -45,6 +47,14 @@ public class SPSSStringVariable extends SPSSVariable {
 	public List<String> data;
 	/** a single data value used when reading data from disk */
 	public String value;
+	/** the raw bytes of the single value (the buffer is reused for each record read from disk) */
+	public byte[] valueBytes;
+	/** the length of the right trimmed raw value in valueBytes */
+	public int valueLength;
+	/** the slot of each segment of a very long string (null for strings of 255 characters or less) */
+	int[] segmentSlot;
+	/** the width declared by the type 2 record of each segment of a very long string */
+	int[] segmentWidth;
 
 	public SPSSStringVariable(SPSSFile file) {
 		super(file);
@@ -54,10 +64,14 @@ public class SPSSStringVariable extends SPSSVariable {
 
 	/**
 	 * Adds a category to the variable
+	 * 
+	 * @throws SPSSFileException
 	 */
-	public SPSSVariableCategory addCategory(byte[] byteValue, String label) {
+	public SPSSVariableCategory addCategory(byte[] byteValue, String label) throws SPSSFileException {
 		SPSSVariableCategory cat;
 		String strValue;
+		loadCategories();
+		detachCategoryScheme();
 		if (file.charset == null) {
 			strValue = SPSSUtils.byte8ToString(byteValue);
 		} else {
@@ -71,6 +85,7 @@ public class SPSSStringVariable extends SPSSVariable {
 			categoryMap.put(strValue, cat);
 		}
 		cat.strValue = strValue;
+		cat.byteValue = Arrays.copyOf(byteValue, SPSSUtils.rightTrim(byteValue, byteValue.length));
 		cat.label = label;
 		return (cat);
 	}
@@ -78,7 +93,10 @@ public class SPSSStringVariable extends SPSSVariable {
 	/**
 	 * Gets a category for this variable based on a byte[8] value
 	 */
-	public SPSSVariableCategory getCategory(byte[] byteValue) {
+	public SPSSVariableCategory getCategory(byte[] byteValue) throws SPSSFileException {
+		loadCategories();
+		if (categoryScheme != null)
+			return (categoryScheme.getCategory(byteValue, SPSSUtils.rightTrim(byteValue, byteValue.length)));
 		String strValue;
 		if (file.charset == null) {
 			strValue = SPSSUtils.byte8ToString(byteValue);
@@ -89,12 +107,42 @@ public class SPSSStringVariable extends SPSSVariable {
 	}
 
 	/**
-	 * Gets a category for this variable based on a double value
+	 * Gets the category of the single value read from disk, without decoding it
+	 * 
+	 * @return the category, or null if the value has no category
+	 * @throws SPSSFileException
 	 */
-	public SPSSVariableCategory getCategory(String strValue) {
+	public SPSSVariableCategory getValueCategory() throws SPSSFileException {
+		if (valueBytes == null)
+			return (value == null ? null : getCategory(value));
+		loadCategories();
+		if (categoryScheme != null)
+			return (categoryScheme.getCategory(valueBytes, valueLength));
+		return (getCategory(Arrays.copyOf(valueBytes, valueLength)));
+	}
+
+	/**
+	 * Gets a category for this variable based on a string value
+	 */
+	public SPSSVariableCategory getCategory(String strValue) throws SPSSFileException {
+		loadCategories();
 		return (categoryMap.get(strValue));
 	}
 
+	/**
+	 * @return the number of characters of the string (the full width of very long strings)
+	 */
+	public int getWidth() {
+		return (segmentSlot == null ? variableRecord.variableTypeCode : variableRecord.writeFormatWidth);
+	}
+
+	/**
+	 * @return true if this is a very long string stored as several segments in the file
+	 */
+	public boolean isVeryLongString() {
+		return (segmentSlot != null);
+	}
+
 	/**
 	 * @return A string representing variable in SPSS syntax
 	 */
@@ -103,6 +151,17 @@ public class SPSSStringVariable extends SPSSVariable {
 		return ("A" + variableRecord.writeFormatWidth);
 	}
 
+	/**
+	 * Returns a copy of the raw bytes of the single value read from disk
+	 * 
+	 * @return the right trimmed bytes of the value, or null if no value has been read
+	 */
+	public byte[] getValueBytes() {
+		if (valueBytes == null)
+			return (null);
+		return (Arrays.copyOf(valueBytes, valueLength));
+	}
+
 	/**
 	 * Returns an observation value as a string
 	 * 
@@ -117,27 +176,34 @@ public class SPSSStringVariable extends SPSSVariable {
 			throw new SPSSFileException("Invalid observation number [" + obsNumber + ". Range is 1 to " + data.size() + "] or 0.");
 		}
 		// init value
-		if (obsNumber == 0)
+		if (obsNumber == 0) {
+			if (value == null && valueBytes != null) // string decoding turned off
+				value = new String(valueBytes, 0, valueLength, file.charset != null ? file.charset : Charset.defaultCharset());
 			strValue = value;
-		else if (obsNumber > 0 && data.size() == 0)
+		} else if (obsNumber > 0 && data.size() == 0)
 			throw new SPSSFileException("No data availble");
 		else
 			strValue = data.get(obsNumber - 1);
+		return (formatValue(strValue, dataFormat));
+	}
 
+	/**
+	 * Formats a value based on the specified data format
+	 * 
+	 * @param strValue
+	 *            the value
+	 * @param dataFormat
+	 *            the file format
+	 * @return the formatted value
+	 */
+	public String formatValue(String strValue, FileFormatInfo dataFormat) {
 		// format output
 		if (dataFormat.format == FileFormatInfo.Format.ASCII) {
 			if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.FIXED) { // padding
 				strValue += Utils.leftPad("", this.getLength() - strValue.length());
 			} else if (dataFormat.asciiFormat == FileFormatInfo.ASCIIFormat.CSV) {
 				// see http://en.wikipedia.org/wiki/Comma-separated_values
-				// double the double-quote
-				if (strValue.contains("\"")) {
-					strValue = strValue.replaceAll("\"", "\"\"");
-				}
-				// surround by double-quote if contains comma, double-quote, line break
-				if (strValue.contains(",") || strValue.contains("\"") || strValue.contains("\n")) {
-					strValue = "\"" + strValue + "\"";
-				}
+				strValue = SPSSUtils.csvEscape(strValue);
 			}
 
 		}
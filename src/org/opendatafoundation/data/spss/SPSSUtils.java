@@ -39,6 +39,8 @@ import java.util.GregorianCalendar;
  * @author Pascal Heus (pheus@opendatafoundation.org)
  */
 public class SPSSUtils {
+	static final double EPOCH_1960 = 11903760000.0; // < the SPSS date value of 1 Jan 1960, the origin of the Stata and SAS dates
+	static final double EPOCH_1970 = 12219379200.0; // < the SPSS date value of 1 Jan 1970, the origin of the Unix and Arrow dates
 
 	/**
 	 * Converts a 8-byte value into a double
@@ -59,7 +61,7 @@ public class SPSSUtils {
 	 */
 	public static String byte8ToString(byte[] buffer) {
 		String str;
-		str = new String(buffer).replaceAll("\\s+$", "");
+		str = new String(buffer, 0, rightTrim(buffer, buffer.length));
 		return (str);
 	}
 
@@ -72,10 +74,130 @@ public class SPSSUtils {
 	 */
 	public static String byte8ToString(byte[] buffer, Charset charset) {
 		String str;
-		str = new String(buffer, charset).replaceAll("\\s+$", "");
+		str = new String(buffer, 0, rightTrim(buffer, buffer.length), charset);
 		return (str);
 	}
 
+	/**
+	 * Right trims a byte string. Spaces, tabs and line breaks are removed.
+	 * 
+	 * @param buffer
+	 * @param length
+	 *            the length of the string in the buffer
+	 * @return the length of the trimmed string
+	 */
+	public static int rightTrim(byte[] buffer, int length) {
+		while (length > 0) {
+			byte b = buffer[length - 1];
+			if (b != ' ' && (b < '\t' || b > '\r'))
+				break;
+			length--;
+		}
+		return (length);
+	}
+
+	/**
+	 * Determines if a byte string is blank, i.e. only made of spaces and control characters.
+	 * 
+	 * @param buffer
+	 * @param length
+	 *            the length of the string in the buffer
+	 * @return true if the string is blank
+	 */
+	public static boolean isBlank(byte[] buffer, int length) {
+		for (int i = 0; i < length; i++) {
+			if (buffer[i] < 0 || buffer[i] > ' ')
+				return (false);
+		}
+		return (true);
+	}
+
+	/**
+	 * Determines if a byte string is only made of 7-bit characters
+	 * 
+	 * @param buffer
+	 * @param length
+	 *            the length of the string in the buffer
+	 * @return true if no byte is outside the 0-127 range
+	 */
+	public static boolean isAscii(byte[] buffer, int length) {
+		for (int i = 0; i < length; i++) {
+			if (buffer[i] < 0)
+				return (false);
+		}
+		return (true);
+	}
+
+	/**
+	 * Determines if a character must be quoted in a CSV field (RFC 4180)
+	 */
+	static boolean isCsvSpecial(int c) {
+		return (c == ',' || c == '"' || c == '\n' || c == '\r');
+	}
+
+	/**
+	 * Escapes a value for a CSV file (RFC 4180). The value is scanned once: it is returned as is if it does not contain a comma, a double-quote or a line break, otherwise it is surrounded by double-quotes and its double-quotes are doubled.
+	 * 
+	 * @param value
+	 * @return the escaped value
+	 */
+	public static String csvEscape(String value) {
+		StringBuilder sb = null;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (sb == null) {
+				if (!isCsvSpecial(c))
+					continue;
+				sb = new StringBuilder(length + 8);
+				sb.append('"').append(value, 0, i);
+			}
+			if (c == '"')
+				sb.append('"');
+			sb.append(c);
+		}
+		if (sb == null)
+			return (value);
+		return (sb.append('"').toString());
+	}
+
+	/**
+	 * Quotes and escapes a string as a JSON string
+	 * 
+	 * @param value
+	 * @return the JSON string
+	 */
+	public static String jsonString(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return (sb.append('"').toString());
+	}
+
 	/**
 	 * Converts a 4-byte value into an integer
 	 * 
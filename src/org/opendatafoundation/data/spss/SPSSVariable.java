@@ -29,6 +29,10 @@ package org.opendatafoundation.data.spss;
  * 
  */
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -48,6 +52,9 @@ public abstract class SPSSVariable {
 	SPSSFile file; // < The SPSS file this variable belongs to
 	public SPSSRecordType2 variableRecord; // < The SPSS type 2 record describing this variable
 	public SPSSRecordType3 valueLabelRecord; // < The optional SPSS type 3 record holding this variable value labels
+	SPSSRecordType7Subtype21.LongStringValueLabels longStringValueLabels; // < The optional long string value labels of this variable
+	boolean categoriesPending = true; // < true until the missing values and value labels have been added to the categories
+	SPSSCategoryScheme categoryScheme; // < The shared category scheme, null if the variable has no categories or its categories were changed
 
 	static enum VariableType {
 		NUMERIC, STRING
@@ -69,8 +76,8 @@ public abstract class SPSSVariable {
 	int displayWidth = -1; // < display width (copied from record type 7 subtype 11) */
 	int alignment = -1; // < 0=left 1=right, 2=center (copied from record type 7 subtype 11) */
 
-	/** The map of categories. Note that the key is always a string, even for numeric variables */
-	public Map<String, SPSSVariableCategory> categoryMap = new LinkedHashMap<String, SPSSVariableCategory>();
+	/** The map of categories. Note that the key is always a string, even for numeric variables. The categories are loaded when first requested and may be shared with other variables: this field is no longer public, getCategoryMap() loads and returns the map (read-only when shared, see getCategoryMap()) */
+	Map<String, SPSSVariableCategory> categoryMap = new LinkedHashMap<String, SPSSVariableCategory>();
 
 	/**
 	 * Constructor
@@ -177,6 +184,7 @@ public abstract class SPSSVariable {
 		elem.setTextContent(getLabel());
 
 		// categories
+		loadCategories();
 		if (!categoryMap.isEmpty()) {
 			// iterate over categories
 			Iterator catIterator = categoryMap.keySet().iterator();
@@ -218,7 +226,7 @@ public abstract class SPSSVariable {
 	 * @return a String containing the r:ID
 	 */
 	public String getDDI3DefaultCategorySchemeID() {
-		return (file.getUniqueID() + "_" + file.categorySchemeIDSuffix + "_V" + variableNumber);
+		return (file.getUniqueID() + "_" + file.categorySchemeIDSuffix + "_V" + getCategorySchemeOwner().variableNumber);
 	}
 
 	/**
@@ -227,7 +235,7 @@ public abstract class SPSSVariable {
 	 * @return a String containing the r:ID
 	 */
 	public String getDDI3DefaultCodeSchemeID() {
-		return (file.getUniqueID() + "_" + file.codeSchemeIDSuffix + "_V" + variableNumber);
+		return (file.getUniqueID() + "_" + file.codeSchemeIDSuffix + "_V" + getCategorySchemeOwner().variableNumber);
 	}
 
 	/**
@@ -235,8 +243,9 @@ public abstract class SPSSVariable {
 	 * 
 	 * @param doc
 	 * @return a org.w3c.dom.Element containing the scheme
+	 * @throws SPSSFileException
 	 */
-	public Element getDDI3CategoryScheme(Document doc) {
+	public Element getDDI3CategoryScheme(Document doc) throws SPSSFileException {
 		return (getDDI3CategoryScheme(doc, null));
 	}
 
@@ -246,12 +255,14 @@ public abstract class SPSSVariable {
 	 * @param doc
 	 * @param categorySchemeID
 	 * @return
+	 * @throws SPSSFileException
 	 */
-	private Element getDDI3CategoryScheme(Document doc, String categorySchemeID) {
+	private Element getDDI3CategoryScheme(Document doc, String categorySchemeID) throws SPSSFileException {
 		Element scheme = null;
 		Element elem;
 
 		// only for variables with a value label set
+		loadCategories();
 		if (!categoryMap.isEmpty()) {
 			// CategoryScheme
 			scheme = doc.createElementNS(SPSSFile.DDI3_LOGICAL_PRODUCT_NAMESPACE, "CategoryScheme");
@@ -322,6 +333,7 @@ public abstract class SPSSVariable {
 		Element elem;
 
 		// only for variables with a value label set
+		loadCategories();
 		if (!categoryMap.isEmpty()) {
 			scheme = doc.createElementNS(SPSSFile.DDI3_LOGICAL_PRODUCT_NAMESPACE, "CodeScheme");
 			if (categorySchemeID == null)
@@ -483,8 +495,9 @@ public abstract class SPSSVariable {
 	 * 
 	 * @param doc
 	 * @return a org.w3c.dom.Element containing the Variable
+	 * @throws SPSSFileException
 	 */
-	public Element getDDI3Variable(Document doc) {
+	public Element getDDI3Variable(Document doc) throws SPSSFileException {
 		return (getDDI3Variable(doc, null));
 	}
 
@@ -494,11 +507,15 @@ public abstract class SPSSVariable {
 	 * @param doc
 	 * @param codeSchemeReferenceID
 	 * @return a org.w3c.dom.Element containing the Variable
+	 * @throws SPSSFileException
 	 */
-	private Element getDDI3Variable(Document doc, String codeSchemeReferenceID) {
+	private Element getDDI3Variable(Document doc, String codeSchemeReferenceID) throws SPSSFileException {
 		Element var = null;
 		Element elem;
 
+		// the code scheme reference may point to a scheme shared with another variable
+		loadCategories();
+
 		var = doc.createElementNS(SPSSFile.DDI3_LOGICAL_PRODUCT_NAMESPACE, "Variable");
 		Utils.setDDIVersionableId(var, file.variableIDPrefix + variableNumber);
 
@@ -699,6 +716,14 @@ public abstract class SPSSVariable {
 	 */
 	public int getLength(FileFormatInfo format) {
 		// TODO: compute generic ascii length
+		if (format.valueLabels && hasValueLabels()) {
+			// the column also holds the labels
+			try {
+				return (SPSSLabelTable.getWidth(this, format));
+			} catch (SPSSFileException e) {
+				// the labels cannot be read: the export fails with the same error
+			}
+		}
 		return (variableRecord.writeFormatWidth);
 	}
 
@@ -754,9 +779,190 @@ public abstract class SPSSVariable {
 	 * @return boolean true if a SPSSRecordtype3 exists for this variable
 	 */
 	public boolean hasValueLabels() {
+		if (categoriesPending)
+			return ((valueLabelRecord != null && valueLabelRecord.numberOfLabels > 0) || longStringValueLabels != null || (variableRecord != null && variableRecord.missingValueFormatCode != 0));
 		return (!categoryMap.isEmpty());
 	}
 
+	/**
+	 * Returns the categories of this variable, loading the missing values and value labels if they have not been loaded yet.
+	 * <p>
+	 * Note: when the variable shares its category scheme with other variables (see getCategoryScheme()), the map is read-only and changing it throws an UnsupportedOperationException, whereas it could be changed before schemes were shared. Categories are added with addCategory(), which first gives the variable its own copy of the scheme.
+	 * 
+	 * @return the map of categories keyed on the value string
+	 * @throws SPSSFileException
+	 */
+	public Map<String, SPSSVariableCategory> getCategoryMap() throws SPSSFileException {
+		loadCategories();
+		return (categoryMap);
+	}
+
+	/**
+	 * @return the shared category scheme of this variable, or null if the variable has no categories or its categories were changed
+	 * @throws SPSSFileException
+	 */
+	public SPSSCategoryScheme getCategoryScheme() throws SPSSFileException {
+		loadCategories();
+		return (categoryScheme);
+	}
+
+	/**
+	 * @return true if the DDI category and code schemes of this variable are written with this variable (not shared or first variable of the shared scheme)
+	 * @throws SPSSFileException
+	 */
+	public boolean isCategorySchemeOwner() throws SPSSFileException {
+		loadCategories();
+		return (getCategorySchemeOwner() == this);
+	}
+
+	/**
+	 * @return the variable whose identifiers are used for the DDI category and code schemes of this variable
+	 */
+	SPSSVariable getCategorySchemeOwner() {
+		return (categoryScheme != null ? categoryScheme.owner : this);
+	}
+
+	/**
+	 * Builds the categories of this variable from the missing values and the value labels. This is done once, the first time the categories are needed. Variables with identical definitions share the category scheme interned by the file.
+	 * 
+	 * @throws SPSSFileException
+	 */
+	synchronized void loadCategories() throws SPSSFileException {
+		if (!categoriesPending || variableRecord == null)
+			return;
+		// cleared first: addCategory() calls this method
+		categoriesPending = false;
+		try {
+			if (valueLabelRecord != null)
+				valueLabelRecord.load(file);
+		} catch (IOException e) {
+			categoriesPending = true;
+			throw new SPSSFileException("Error reading value labels of variable " + getName() + ": " + e.getMessage());
+		}
+		if (!hasCategoryDefinitions())
+			return;
+
+		ByteBuffer key = getCategorySchemeKey();
+		synchronized (file.categorySchemes) {
+			SPSSCategoryScheme scheme = file.categorySchemes.get(key);
+			if (scheme == null) {
+				addMissingValueCategories();
+				if (valueLabelRecord != null) {
+					for (int i = 0; i < valueLabelRecord.numberOfLabels; i++)
+						addCategory(valueLabelRecord.values[i], valueLabelRecord.labels[i]);
+				}
+				if (longStringValueLabels != null) {
+					for (int i = 0; i < longStringValueLabels.values.size(); i++)
+						addCategory(longStringValueLabels.values.get(i), longStringValueLabels.labels.get(i));
+				}
+				scheme = new SPSSCategoryScheme(this, categoryMap);
+				file.categorySchemes.put(key, scheme);
+			}
+			categoryScheme = scheme;
+			categoryMap = scheme.categoryMap;
+		}
+	}
+
+	/**
+	 * @return true if the variable has missing values or value labels
+	 */
+	private boolean hasCategoryDefinitions() {
+		return ((valueLabelRecord != null && valueLabelRecord.numberOfLabels > 0) || longStringValueLabels != null || variableRecord.missingValueFormatCode != 0);
+	}
+
+	/**
+	 * Adds the missing values as categories
+	 * 
+	 * @throws SPSSFileException
+	 */
+	private void addMissingValueCategories() throws SPSSFileException {
+		if (variableRecord.missingValueFormatCode > 0) {
+			// 1-3 --> discrete missing value codes (up to three)
+			for (int j = 0; j < variableRecord.missingValueFormatCode; j++) {
+				// if the value does not exist as a regular category, we need to create the catgry
+				SPSSVariableCategory cat = addCategory(variableRecord.missingValue[j], "");
+				cat.isMissing = true;
+			}
+		} else if (variableRecord.missingValueFormatCode <= -2) {
+			// -2 --> range of missing value codes
+			// Note1: This is only allowed for numeric variable
+			// Note2: We assume that the range ius made of integral values and increments by 1!!
+			int from = (int) SPSSUtils.byte8ToDouble(variableRecord.missingValue[0]);
+			int to = (int) SPSSUtils.byte8ToDouble(variableRecord.missingValue[1]);
+			for (int j = from; j <= to; j++) {
+				SPSSVariableCategory cat = ((SPSSNumericVariable) this).addCategory((double) j, "");
+				cat.isMissing = true;
+			}
+			if (variableRecord.missingValueFormatCode == -3) {
+				// -3 --> an extra discrete value is also specified
+				SPSSVariableCategory cat = addCategory(variableRecord.missingValue[2], "");
+				cat.isMissing = true;
+			}
+		}
+	}
+
+	/**
+	 * Builds the key used to intern category schemes. It holds everything the categories are built from: the variable type and format (numeric keys are formatted values), the missing values and the value labels.
+	 * 
+	 * @return the key
+	 */
+	private ByteBuffer getCategorySchemeKey() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(type.ordinal());
+			if (type == VariableType.NUMERIC) {
+				out.writeInt(variableRecord.writeFormatType);
+				out.writeInt(variableRecord.writeFormatWidth);
+				out.writeInt(variableRecord.writeFormatDecimals);
+			}
+			out.writeInt(variableRecord.missingValueFormatCode);
+			for (int i = 0; i < Math.abs(variableRecord.missingValueFormatCode); i++)
+				out.write(variableRecord.missingValue[i]);
+			if (valueLabelRecord != null) {
+				out.writeInt(valueLabelRecord.numberOfLabels);
+				for (int i = 0; i < valueLabelRecord.numberOfLabels; i++) {
+					out.write(valueLabelRecord.values[i]);
+					out.writeUTF(valueLabelRecord.labels[i]);
+				}
+			}
+			if (longStringValueLabels != null) {
+				out.writeInt(longStringValueLabels.values.size());
+				for (int i = 0; i < longStringValueLabels.values.size(); i++) {
+					out.writeInt(longStringValueLabels.values.get(i).length);
+					out.write(longStringValueLabels.values.get(i));
+					out.writeUTF(longStringValueLabels.labels.get(i));
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+		}
+		return (ByteBuffer.wrap(bytes.toByteArray()));
+	}
+
+	/**
+	 * Gives this variable its own copy of a shared category scheme before its categories are changed
+	 */
+	void detachCategoryScheme() {
+		if (categoryScheme == null)
+			return;
+		Map<String, SPSSVariableCategory> map = new LinkedHashMap<String, SPSSVariableCategory>();
+		Iterator<Map.Entry<String, SPSSVariableCategory>> it = categoryMap.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, SPSSVariableCategory> entry = it.next();
+			SPSSVariableCategory cat = new SPSSVariableCategory();
+			cat.value = entry.getValue().value;
+			cat.strValue = entry.getValue().strValue;
+			cat.label = entry.getValue().label;
+			cat.isMissing = entry.getValue().isMissing;
+			cat.byteValue = entry.getValue().byteValue;
+			map.put(entry.getKey(), cat);
+		}
+		categoryMap = map;
+		categoryScheme = null;
+	}
+
 	/**
 	 * Determines if a variable is a date without time information
 	 * 
@@ -36,6 +36,7 @@ package org.opendatafoundation.data.spss;
 public class SPSSVariableCategory {
 	public double value = Double.NaN; // < A numeric value
 	public String strValue = ""; // < A string value
+	byte[] byteValue; // < The right trimmed raw bytes of a string value
 	public String label = ""; // < The category label
 	boolean isMissing = false; // < Indicates if this should be treated as a missing value
 	long freq = 0; // The category frequency (not implemented)
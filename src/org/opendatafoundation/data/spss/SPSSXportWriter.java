@@ -0,0 +1,435 @@
+package org.opendatafoundation.data.spss;
+
+/*
+ * Author(s): Pascal Heus (pheus@opendatafoundation.org)
+ * 
+ * This product has been developed with the financial and
+ * technical support of the UK Data Archive Data Exchange Tools
+ * project (http://www.data-archive.ac.uk/dext/) and the
+ * Open Data Foundation (http://www.opendatafoundation.org)
+ * 
+ * Copyright 2007 University of Essex (http://www.esds.ac.uk)
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ * The full text of the license is also available on the Internet at
+ * http://www.gnu.org/copyleft/lesser.html
+ * 
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.opendatafoundation.data.FileFormatInfo;
+
+/**
+ * Writes the data of a SPSS file as a SAS transport (XPORT version 5) file, as described by SAS technical support document TS-140. The file holds a single member named after the SPSS file. The records are converted in large blocks straight from the decoded values: numbers are converted to 8-byte IBM floating point and strings are copied as bytes, blank padded.
+ * <p>
+ * The variables are named after the SPSS short names (8 characters, as required by the version 5 format) and keep their labels (up to 40 characters). The SAS formats are derived from the SPSS write formats, and the dates and datetimes are converted to SAS dates and datetimes. System missing values are written as . and the user missing values as the special missing values .A, .B and .C. Strings are limited to 200 characters.
+ * 
+ */
+public class SPSSXportWriter {
+	static final int RECORD_SIZE = 80; // < the transport file is a sequence of 80-byte records
+	static final int NAMESTR_SIZE = 140;
+	static final int MAX_STRING_LENGTH = 200;
+	static final int BLOCK_SIZE = 1 << 20; // < size of the blocks of observations written to the output
+	static final Charset CHARSET = Charset.forName("windows-1252");
+	static final String SAS_VERSION = "9.1";
+	static final String SAS_OS = "JAVA";
+	static final long MISSING = 0x2E00000000000000L; // < the . missing value, .A to .Z replace 0x2E by the letter
+
+	/* Value conversions */
+	static final int AS_NUMBER = 0; // < the value is written as is
+	static final int AS_DAYS = 1; // < SPSS date to SAS date (days since 1 Jan 1960)
+	static final int AS_SECONDS = 2; // < SPSS date/time to SAS datetime (seconds since 1 Jan 1960)
+
+	SPSSFile file;
+	String datasetName;
+	String timestamp;
+	int caseCount;
+
+	// one entry per variable
+	SPSSVariable[] columns;
+	String[] names;
+	int[] length; // < the number of bytes of the variable in an observation
+	int[] position; // < the offset of the variable in an observation
+	int[] conversion;
+	String[] formatName;
+	int[] formatWidth;
+	int[] formatDecimals;
+	int recordLength;
+
+	// string conversion
+	boolean sameCharset; // < the strings of the SPSS file are already in the transport file character set
+	int convertedLength;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            the SPSS file, with its metadata loaded
+	 * @param dataFormat
+	 *            the export format
+	 * @throws SPSSFileException
+	 *             if the file has too many variables
+	 */
+	public SPSSXportWriter(SPSSFile file, FileFormatInfo dataFormat) throws SPSSFileException {
+		this.file = file;
+		columns = file.decodePlan.columns;
+		if (columns.length > 9999)
+			throw new SPSSFileException("SAS transport files cannot hold more than 9999 variables");
+		caseCount = Math.max(0, file.getRecordCount());
+		String fileName = file.file != null ? file.file.getName().replaceFirst("\\.[^.]*$", "") : "";
+		datasetName = getSASName(fileName.length() > 0 ? fileName : "DATA", new HashSet<String>());
+		timestamp = new SimpleDateFormat("ddMMMyy:HH:mm:ss", Locale.US).format(new Date()).toUpperCase(Locale.US);
+
+		int n = columns.length;
+		names = new String[n];
+		length = new int[n];
+		position = new int[n];
+		conversion = new int[n];
+		formatName = new String[n];
+		formatWidth = new int[n];
+		formatDecimals = new int[n];
+		Set<String> used = new HashSet<String>();
+		recordLength = 0;
+		for (int i = 0; i < n; i++) {
+			SPSSVariable var = columns[i];
+			names[i] = getSASName(var.getShortName().length() > 0 ? var.getShortName() : var.getName(), used);
+			formatWidth[i] = var.variableRecord.writeFormatWidth;
+			formatDecimals[i] = var.getDecimals();
+			if (var.type == SPSSVariable.VariableType.NUMERIC) {
+				length[i] = 8;
+				setFormat(i, var.variableRecord.writeFormatType);
+			} else {
+				int width = ((SPSSStringVariable) var).getWidth();
+				if (width > MAX_STRING_LENGTH)
+					file.log("WARNING: the values of " + var.getName() + " are truncated to " + MAX_STRING_LENGTH + " characters");
+				length[i] = Math.max(1, Math.min(width, MAX_STRING_LENGTH));
+				formatName[i] = "$";
+				formatWidth[i] = length[i];
+				formatDecimals[i] = 0;
+			}
+			position[i] = recordLength;
+			recordLength += length[i];
+		}
+	}
+
+	/**
+	 * Writes the transport file
+	 * 
+	 * @param out
+	 *            the destination of the file (not closed)
+	 * @param cancel
+	 *            a token stopping the export when cancelled, or null
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	public void write(OutputStream out, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		int n = columns.length;
+		ByteBuffer head = ByteBuffer.allocate(RECORD_SIZE * (10 + (n * NAMESTR_SIZE + RECORD_SIZE - 1) / RECORD_SIZE));
+
+		// library header
+		putHeader(head, "LIBRARY", "000000000000000000000000000000");
+		putText(head, "SAS", 8);
+		putText(head, "SAS", 8);
+		putText(head, "SASLIB", 8);
+		putText(head, SAS_VERSION, 8);
+		putText(head, SAS_OS, 8);
+		putText(head, "", 24);
+		putText(head, timestamp, 16);
+		putText(head, timestamp, RECORD_SIZE);
+
+		// member header
+		putHeader(head, "MEMBER", "000000000000000001600000000" + NAMESTR_SIZE);
+		putHeader(head, "DSCRPTR", "000000000000000000000000000000");
+		putText(head, "SAS", 8);
+		putText(head, datasetName, 8);
+		putText(head, "SASDATA", 8);
+		putText(head, SAS_VERSION, 8);
+		putText(head, SAS_OS, 8);
+		putText(head, "", 24);
+		putText(head, timestamp, 16);
+		putText(head, timestamp, 32);
+		putText(head, file.infoRecord.fileLabel, 40);
+		putText(head, "", 8);
+
+		// variables
+		putHeader(head, "NAMESTR", "000000" + String.format("%04d", n) + "00000000000000000000");
+		for (int i = 0; i < n; i++) {
+			boolean isNumeric = columns[i].type == SPSSVariable.VariableType.NUMERIC;
+			head.putShort((short) (isNumeric ? 1 : 2));
+			head.putShort((short) 0);
+			head.putShort((short) length[i]);
+			head.putShort((short) (i + 1));
+			putText(head, names[i], 8);
+			putText(head, columns[i].getLabel(), 40);
+			putText(head, formatName[i], 8);
+			head.putShort((short) formatWidth[i]);
+			head.putShort((short) formatDecimals[i]);
+			head.putShort((short) (isNumeric ? 1 : 0)); // justification
+			head.putShort((short) 0);
+			putText(head, "", 8); // no informat
+			head.putShort((short) 0);
+			head.putShort((short) 0);
+			head.putInt(position[i]);
+			head.put(new byte[52]);
+		}
+		padRecord(head);
+		putHeader(head, "OBS", "000000000000000000000000000000");
+		out.write(head.array(), 0, head.position());
+
+		writeData(out, cancel);
+	}
+
+	/**
+	 * Writes the observations in blocks, the last record being blank padded
+	 * 
+	 * @param out
+	 * @param cancel
+	 * @throws IOException
+	 * @throws SPSSFileException
+	 */
+	void writeData(OutputStream out, SPSSCancellationToken cancel) throws IOException, SPSSFileException {
+		final int n = columns.length;
+		ByteBuffer block = ByteBuffer.allocate(Math.max(BLOCK_SIZE, recordLength) + RECORD_SIZE);
+		byte[] blockBytes = block.array();
+		long written = 0;
+		SPSSDataRecord record = new SPSSDataRecord(file);
+		record.setPosition(file.dataStartPosition);
+		sameCharset = CHARSET.equals(record.stringDecoder.getCharset());
+		for (int obs = 1; obs <= caseCount; obs++) {
+			if (cancel != null && cancel.isCancelled())
+				throw new SPSSFileException("Export cancelled after " + (obs - 1) + " records");
+			record.readRecord();
+			record.trimStrings();
+			if (block.remaining() < recordLength + RECORD_SIZE) {
+				out.write(blockBytes, 0, block.position());
+				written += block.position();
+				block.clear();
+			}
+			for (int i = 0; i < n; i++) {
+				if (columns[i].type == SPSSVariable.VariableType.NUMERIC) {
+					double value = record.numericValues[i];
+					if (Double.isNaN(value)) {
+						block.putLong(MISSING);
+						continue;
+					}
+					int missing = ((SPSSNumericVariable) columns[i]).getMissingValueIndex(value);
+					if (missing > 0) {
+						block.putLong(MISSING + ((long) ('A' - '.' + missing - 1) << 56));
+						continue;
+					}
+					if (conversion[i] == AS_DAYS)
+						value = (value - SPSSUtils.EPOCH_1960) / 86400;
+					else if (conversion[i] == AS_SECONDS)
+						value = value - SPSSUtils.EPOCH_1960;
+					block.putLong(toIBM(value));
+				} else {
+					byte[] value = convertString(record, i);
+					int count = Math.min(convertedLength, length[i]);
+					block.put(value, 0, count);
+					for (int k = count; k < length[i]; k++)
+						block.put((byte) ' ');
+				}
+			}
+		}
+		written += block.position();
+		while (written % RECORD_SIZE != 0) {
+			block.put((byte) ' ');
+			written++;
+		}
+		out.write(blockBytes, 0, block.position());
+	}
+
+	/**
+	 * Converts a number to IBM (System/360) double precision floating point: a sign bit, a 7-bit base 16 exponent biased by 64 and a 56-bit fraction. The 53 bits of an IEEE mantissa always fit in the fraction, so the conversion is exact within the IBM range; values out of the range are written as missing values or zero.
+	 * 
+	 * @param value
+	 * @return the IBM representation
+	 */
+	static long toIBM(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		long sign = bits & 0x8000000000000000L;
+		int exponent = (int) ((bits >>> 52) & 0x7ff);
+		if (exponent == 0)
+			return (0); // zero or subnormal, below the IBM range
+		if (exponent == 0x7ff)
+			return (MISSING); // infinity
+		long fraction = (bits & 0x000fffffffffffffL) | 0x0010000000000000L;
+		int e2 = exponent - 1022; // value = 0.1fff... * 2^e2
+		int e16 = (e2 + 3) >> 2; // smallest power of 16 with 16^e16 >= 2^e2
+		if (e16 + 64 > 127)
+			return (MISSING);
+		if (e16 + 64 < 0)
+			return (0);
+		return (sign | ((long) (e16 + 64) << 56) | (fraction << (3 - (4 * e16 - e2))));
+	}
+
+	/**
+	 * Sets the SAS format and the conversion of a numeric variable from its SPSS write format
+	 * 
+	 * @param column
+	 * @param formatType
+	 *            the SPSS write format type
+	 */
+	void setFormat(int column, int formatType) {
+		conversion[column] = AS_NUMBER;
+		switch (formatType) {
+		case 3: // comma
+			formatName[column] = "COMMA";
+			break;
+		case 4: // dollar
+			formatName[column] = "DOLLAR";
+			break;
+		case 5: // fixed
+		case 26: // day of the week number
+		case 27: // month number
+			formatName[column] = "F";
+			break;
+		case 17: // scientific notation
+			formatName[column] = "E";
+			formatDecimals[column] = 0;
+			break;
+		case 20: // dd-mmm-yyyy
+			formatName[column] = "DATE";
+			conversion[column] = AS_DAYS;
+			break;
+		case 23: // mm/dd/yyyy
+			formatName[column] = "MMDDYY";
+			conversion[column] = AS_DAYS;
+			break;
+		case 24: // yyyyddd
+			formatName[column] = "JULIAN";
+			conversion[column] = AS_DAYS;
+			break;
+		case 28: // mmm yyyy
+			formatName[column] = "MONYY";
+			conversion[column] = AS_DAYS;
+			break;
+		case 29: // q Q yyyy
+			formatName[column] = "YYQ";
+			conversion[column] = AS_DAYS;
+			break;
+		case 30: // wk WK yyyy
+			formatName[column] = "DATE";
+			formatWidth[column] = 9;
+			conversion[column] = AS_DAYS;
+			break;
+		case 38: // dd.mm.yyyy
+			formatName[column] = "DDMMYYP";
+			conversion[column] = AS_DAYS;
+			break;
+		case 39: // yyyy/mm/dd
+			formatName[column] = "YYMMDDS";
+			conversion[column] = AS_DAYS;
+			break;
+		case 22: // dd-mmm-yyyy hh:mm:ss
+			formatName[column] = "DATETIME";
+			conversion[column] = AS_SECONDS;
+			break;
+		case 21: // hh:mm:ss
+		case 25: // ddd:hh:mm:ss
+			formatName[column] = "TIME";
+			break;
+		default:
+			formatName[column] = "BEST";
+			formatDecimals[column] = 0;
+		}
+		if (conversion[column] == AS_DAYS)
+			formatDecimals[column] = 0;
+	}
+
+	/**
+	 * Makes a valid and unique SAS version 5 name: upper case letters, digits and underscores, 8 characters at most
+	 * 
+	 * @param name
+	 * @param used
+	 *            the names already given
+	 * @return the SAS name
+	 */
+	static String getSASName(String name, Set<String> used) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < name.length() && sb.length() < 8; i++) {
+			char c = Character.toUpperCase(name.charAt(i));
+			sb.append((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' ? c : '_');
+		}
+		if (sb.length() == 0 || Character.isDigit(sb.charAt(0)))
+			sb.insert(0, '_');
+		if (sb.length() > 8)
+			sb.setLength(8);
+		String sasName = sb.toString();
+		for (int k = 2; used.contains(sasName); k++) {
+			String suffix = "" + k;
+			sasName = sb.substring(0, Math.min(sb.length(), 8 - suffix.length())) + suffix;
+		}
+		used.add(sasName);
+		return (sasName);
+	}
+
+	/**
+	 * Converts a string value of the current record to the character set of the transport file. The length of the converted value is stored in convertedLength.
+	 * 
+	 * @param record
+	 * @param column
+	 * @return the converted value (the record buffer itself if the value needs no conversion)
+	 */
+	byte[] convertString(SPSSDataRecord record, int column) {
+		byte[] bytes = record.stringValues[column];
+		int length = record.stringLengths[column];
+		if (sameCharset || (record.stringDecoder.isAsciiCompatible && SPSSUtils.isAscii(bytes, length))) {
+			convertedLength = length;
+			return (bytes);
+		}
+		byte[] converted = record.stringDecoder.decode(bytes, 0, length).getBytes(CHARSET);
+		convertedLength = converted.length;
+		return (converted);
+	}
+
+	/**
+	 * Writes a header record
+	 */
+	static void putHeader(ByteBuffer head, String name, String numbers) {
+		putText(head, "HEADER RECORD*******" + name, 28);
+		putText(head, "HEADER RECORD!!!!!!!" + numbers, 52);
+	}
+
+	/**
+	 * Writes a blank padded text field
+	 */
+	static void putText(ByteBuffer head, String text, int size) {
+		byte[] bytes = (text == null ? "" : text).getBytes(CHARSET);
+		int count = Math.min(bytes.length, size);
+		head.put(bytes, 0, count);
+		for (int i = count; i < size; i++)
+			head.put((byte) ' ');
+	}
+
+	/**
+	 * Blank pads the current record
+	 */
+	static void padRecord(ByteBuffer head) {
+		while (head.position() % RECORD_SIZE != 0)
+			head.put((byte) ' ');
+	}
+}